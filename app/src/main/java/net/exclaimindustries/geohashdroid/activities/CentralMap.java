@@ -12,18 +12,15 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.Dialog;
 import android.app.DialogFragment;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.IntentSender;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.location.Location;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Parcelable;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -62,6 +59,7 @@ import net.exclaimindustries.geohashdroid.util.Graticule;
 import net.exclaimindustries.geohashdroid.util.Info;
 import net.exclaimindustries.geohashdroid.util.PermissionsDeniedListener;
 import net.exclaimindustries.geohashdroid.util.SelectAGraticuleMode;
+import net.exclaimindustries.geohashdroid.util.StockResult;
 import net.exclaimindustries.geohashdroid.util.UnitConverter;
 import net.exclaimindustries.geohashdroid.util.VersionHistoryParser;
 import net.exclaimindustries.geohashdroid.widgets.ErrorBanner;
@@ -71,10 +69,10 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.text.DateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * CentralMap replaces MainMap as the map display.  Unlike MainMap, it also
@@ -285,15 +283,30 @@ public class CentralMap
         public abstract void resume();
 
         /**
-         * Convenience method to call {@link CentralMap#requestStock(Graticule, Calendar, int)}.
+         * Convenience method to call {@link CentralMap#requestStock(Graticule, Calendar, int, String)}.
          *
          * @param g the Graticule (can be null for globalhashes)
          * @param c the Calendar
          * @param flags the {@link StockService} flags
          */
         protected void requestStock(@Nullable Graticule g, @NonNull Calendar c, int flags) {
+            requestStock(g, c, flags, false);
+        }
+
+        /**
+         * Convenience method to call {@link CentralMap#requestStock(Graticule, Calendar, int, String)},
+         * optionally superseding any requests this mode already has pending.
+         * Those will just quietly never come back.  Use this when the only
+         * answer that matters is the one to the newest request.
+         *
+         * @param g the Graticule (can be null for globalhashes)
+         * @param c the Calendar
+         * @param flags the {@link StockService} flags
+         * @param supersede true to supersede this mode's earlier requests
+         */
+        protected void requestStock(@Nullable Graticule g, @NonNull Calendar c, int flags, boolean supersede) {
             mCentralMap.getErrorBanner().animateBanner(false);
-            mCentralMap.requestStock(g, c, flags);
+            mCentralMap.requestStock(g, c, flags, supersede ? getClass().getName() : null);
         }
 
         /**
@@ -485,7 +498,7 @@ public class CentralMap
         }
     }
 
-    private class StockReceiver extends BroadcastReceiver {
+    private class StockReceiver implements StockResult.Listener {
         private final static String DEBUG_TAG = "StockReceiver";
 
         // This allows us to NOT blast out responses if the current mode didn't
@@ -516,26 +529,28 @@ public class CentralMap
         }
 
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onStockResult(StockResult result) {
             Log.d(DEBUG_TAG, "Stock has come in!");
 
-            Bundle bun = intent.getBundleExtra(StockService.EXTRA_STUFF);
-            bun.setClassLoader(getClassLoader());
-
             // A stock result arrives!  Let's get data!  That oughta tell us
-            // whether or not we're even going to bother with it.
-            int reqFlags = bun.getInt(StockService.EXTRA_REQUEST_FLAGS, 0);
-            long reqId = bun.getLong(StockService.EXTRA_REQUEST_ID, -1);
-            Calendar cal = (Calendar)bun.getSerializable(StockService.EXTRA_DATE);
+            // whether or not we're even going to bother with it.  It comes
+            // straight from StockService, no unparcelling required.
+            int reqFlags = result.getRequestFlags();
+            long reqId = result.getRequestId();
+            Calendar cal = result.getCalendar();
 
             // Now, if the flags state this was from the alarm or somewhere else
-            // we weren't expecting, give up now.  We don't want it.
-            if((reqFlags & StockService.FLAG_ALARM) != 0) return;
+            // we weren't expecting, give up now.  We don't want it.  Same goes
+            // for prefetches; those are just filling the cache.
+            if((reqFlags & (StockService.FLAG_ALARM | StockService.FLAG_PREFETCH)) != 0) return;
+
+            // Well, it's what we're looking for.  What was the result?
+            int responseCode = result.getResponseCode();
 
-            // Well, it's what we're looking for.  What was the result?  The
-            // default is RESPONSE_NETWORK_ERROR, as not getting a response code
-            // is a Bad Thing(tm).
-            int responseCode = bun.getInt(StockService.EXTRA_RESPONSE_CODE, StockService.RESPONSE_NETWORK_ERROR);
+            // If it got superseded, something newer's already on its way.
+            // That's all there is to it; don't even touch the waiting list.
+            // The mode switchers clear that out soon enough anyway.
+            if(responseCode == StockService.RESPONSE_CANCELLED) return;
 
             // Since the mode switchers wipe all requests from a given mode, all
             // we need for a mode match is whether or not the item exists in the
@@ -547,13 +562,10 @@ public class CentralMap
                 // the Info out of it and fire it away to the corresponding
                 // CentralMapMode, if applicable.
                 if(modeMatches) {
-                    Info received = bun.getParcelable(StockService.EXTRA_INFO);
-                    Parcelable[] pArr = bun.getParcelableArray(StockService.EXTRA_NEARBY_POINTS);
-
-                    Info[] nearby = null;
-                    if(pArr != null)
-                        nearby = Arrays.copyOf(pArr, pArr.length, Info[].class);
-                    mCurrentMode.handleInfo(received, nearby, reqFlags);
+                    Info[] nearby = result.getNearbyPoints();
+                    if(nearby != null && nearby.length == 0)
+                        nearby = null;
+                    mCurrentMode.handleInfo(result.getInfo(), nearby, reqFlags);
                 } else {
                     Log.w(DEBUG_TAG, "Request ID " + reqId + " was NOT expected by this mode, ignoring...");
                 }
@@ -599,6 +611,12 @@ public class CentralMap
 
     private StockReceiver mStockReceiver = new StockReceiver();
 
+    // The ID for the next stock request.  This is for the whole process, not
+    // just this CentralMap, since StockService can still be working on an old
+    // one's requests after a rotation, and those had better not look like
+    // the new one's.
+    private static final AtomicLong mNextRequestId = new AtomicLong(1);
+
     private LocationListener mLocationListener = new LocationListener() {
         @Override
         public void onLocationChanged(Location location) {
@@ -729,9 +747,7 @@ public class CentralMap
         // The receiver goes on during onStart, since the modes might need it
         // before onResume has a chance to kick in, thanks to the possibility of
         // the API connection happening really quickly.
-        IntentFilter filt = new IntentFilter();
-        filt.addAction(StockService.ACTION_STOCK_RESULT);
-        registerReceiver(mStockReceiver, filt);
+        StockResult.addListener(mStockReceiver);
 
         // Service up!
         mGoogleClient.connect();
@@ -740,7 +756,7 @@ public class CentralMap
     @Override
     protected void onStop() {
         // The receiver goes right off as soon as we stop.
-        unregisterReceiver(mStockReceiver);
+        StockResult.removeListener(mStockReceiver);
 
         // TODO: I probably want this in onPause, not onStop, but the Google API
         // client disconnect hits here, not in onPause, so I'd have to keep
@@ -971,18 +987,25 @@ public class CentralMap
      * @param g the Graticule (can be null for globalhashes)
      * @param cal the date
      * @param flags the {@link StockService} flags
+     * @param supersedeKey if not null, this request supersedes any earlier
+     *                     ones with the same key (see {@link StockService#EXTRA_SUPERSEDE_KEY})
      */
-    private void requestStock(@Nullable Graticule g, @NonNull Calendar cal, int flags) {
-        // As a request ID, we'll use the current date, because why not?
-        long date = cal.getTimeInMillis();
+    private void requestStock(@Nullable Graticule g, @NonNull Calendar cal, int flags, @Nullable String supersedeKey) {
+        // Every request gets its own ID.  The date used to work for that, but
+        // Select-A-Graticule can have a bunch out at once for the same date,
+        // and the waiting list needs to tell them apart.
+        long id = mNextRequestId.getAndIncrement();
 
         Intent i = new Intent(this, StockService.class)
                 .putExtra(StockService.EXTRA_DATE, cal)
                 .putExtra(StockService.EXTRA_GRATICULE, g)
-                .putExtra(StockService.EXTRA_REQUEST_ID, date)
+                .putExtra(StockService.EXTRA_REQUEST_ID, id)
                 .putExtra(StockService.EXTRA_REQUEST_FLAGS, flags);
 
-        mStockReceiver.addToWaitingList(date);
+        if(supersedeKey != null)
+            i.putExtra(StockService.EXTRA_SUPERSEDE_KEY, supersedeKey);
+
+        mStockReceiver.addToWaitingList(id);
 
         WakefulIntentService.sendWakefulWork(this, i);
     }
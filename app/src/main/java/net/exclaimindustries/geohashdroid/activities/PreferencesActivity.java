@@ -106,6 +106,7 @@ public class PreferencesActivity extends PreferenceActivity {
 
             bindPreferenceSummaryToValue(findPreference(GHDConstants.PREF_DIST_UNITS));
             bindPreferenceSummaryToValue(findPreference(GHDConstants.PREF_COORD_UNITS));
+            bindPreferenceSummaryToValue(findPreference(GHDConstants.PREF_NEARBY_RADIUS));
         }
     }
 
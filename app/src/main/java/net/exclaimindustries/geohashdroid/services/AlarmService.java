@@ -23,23 +23,33 @@ import android.util.Log;
 import com.commonsware.cwac.wakeful.WakefulIntentService;
 
 import net.exclaimindustries.geohashdroid.R;
-import net.exclaimindustries.geohashdroid.util.GHDConstants;
-import net.exclaimindustries.geohashdroid.util.Graticule;
-import net.exclaimindustries.geohashdroid.util.Info;
+import net.exclaimindustries.geohashdroid.util.HashBuilder;
+import net.exclaimindustries.geohashdroid.util.StockDay;
+import net.exclaimindustries.geohashdroid.util.StockSchedule;
 import net.exclaimindustries.tools.AndroidUtil;
 
 import java.text.DateFormat;
 import java.util.Calendar;
-import java.util.TimeZone;
+import java.util.Date;
+import java.util.Random;
 
 /**
  * <p>
  * <code>AlarmService</code> is a background service that retrieves the current stock
- * value around 9:30am ET (that is, a reasonable time after the opening of the
- * New York Stock Exchange, at which time the DJIA opening value is known).
- * It makes requests to {@link StockService}, which then stores the result away
- * in the cache so that later instances of hashing will have that data available
- * right away.
+ * value shortly after the opening of the New York Stock Exchange, at which time
+ * the DJIA opening value is known.  It makes requests to {@link StockService},
+ * which then stores the result away in the cache so that later instances of
+ * hashing will have that data available right away.
+ * </p>
+ *
+ * <p>
+ * It doesn't just go off at the same time every day, though.  Every time it
+ * wakes up, it works out (with {@link StockSchedule}) which stocks are still
+ * missing from the cache, fetches just those, and then sets ONE alarm for the
+ * next time it's needed: either the next trading day's opening, or a retry
+ * (with exponential backoff) if the stock wasn't there yet.  Weekends and
+ * exchange holidays don't get any network traffic at all, since there's
+ * nothing new to get.
  * </p>
  * 
  * <p>
@@ -60,24 +70,23 @@ public class AlarmService extends WakefulIntentService {
     
     private Notification.Builder mNotificationBuilder;
     
+    private final Random mRandom = new Random();
+
     /**
      * Broadcast intent for the alarm that tells StockService that it's time to
-     * go fetch a stock.  At that time, it'll retrieve stock data for "today"
-     * and "yesterday".  In this case, "today" and "yesterday" are both relative
-     * to when stock data is expected to exist for the actual "today"; for
-     * instance, if this is called on a Saturday, "today" will be Friday (the
-     * NYSE isn't open on Saturday, so Friday's open value is used) and
-     * "yesterday" will also be Friday (both 30W and non-30W users get the same
-     * hash data on Saturdays and Sundays).
+     * go fetch a stock.  This gets set for a few minutes after the next trading
+     * day's opening bell, at which point there's a new stock to fetch.  What
+     * actually gets fetched is whatever the cache is missing for the current
+     * date, with and without the 30W Rule.
      */
     private static final String STOCK_ALARM = "net.exclaimindustries.geohashdroid.STOCK_ALARM";
 
     /**
      * Broadcast intent for the alarm that tells StockService to try again on
-     * a failed check due to the stock not being posted yet.  In practice, the
-     * resulting action will be the same as STOCK_ALARM (cache the stocks). 
-     * This is needed because otherwise it'd be considered the same intent,
-     * meaning the single-shot alarm would cancel the first one.
+     * a failed check due to the stock not being posted yet (or a network
+     * error).  In practice, the resulting action will be the same as
+     * STOCK_ALARM (cache the stocks).  This carries {@link #EXTRA_ATTEMPT} so
+     * the backoff knows how far along it is.
      *
      * Do note, this intent should NOT be scheduled to be repeating.
      */
@@ -98,6 +107,13 @@ public class AlarmService extends WakefulIntentService {
      * Directed intent to tell StockService to cancel the alarms.
      */
     public static final String STOCK_ALARM_OFF = "net.exclaimindustries.geohashdroid.STOCK_ALARM_OFF";
+
+    /**
+     * Key for which retry a {@link #STOCK_ALARM_RETRY} is, starting from zero.
+     * This goes out to StockService as the request ID, too, so it comes back
+     * with the result.
+     */
+    private static final String EXTRA_ATTEMPT = "net.exclaimindustries.geohashdroid.EXTRA_ATTEMPT";
     
     /**
      * This receiver listens for network connectivity changes in case we ran
@@ -133,6 +149,7 @@ public class AlarmService extends WakefulIntentService {
             // of whatever we need handled.
             Intent i = new Intent(context, AlarmService.class);
             i.setAction(intent.getAction());
+            i.putExtra(EXTRA_ATTEMPT, intent.getIntExtra(EXTRA_ATTEMPT, 0));
             WakefulIntentService.sendWakefulWork(context, i);
         }
     }
@@ -145,10 +162,19 @@ public class AlarmService extends WakefulIntentService {
         @Override
         public void onReceive(Context context, Intent intent) {
             // Check the Intent for the alarm flag.  We'll just straight give up
-            // if it's not an alarm, since we don't really care.
-            int flags = intent.getIntExtra(StockService.EXTRA_REQUEST_FLAGS, 0);
+            // if it's not an alarm, since we don't really care.  The flags are
+            // in the extra Bundle, not on the Intent itself.
+            Bundle bun = intent.getBundleExtra(StockService.EXTRA_STUFF);
+            if(bun == null) return;
+            bun.setClassLoader(context.getClassLoader());
             
-            if((flags & StockService.FLAG_ALARM) != 0)
+            int flags = bun.getInt(StockService.EXTRA_REQUEST_FLAGS, 0);
+            int respFlags = bun.getInt(StockService.EXTRA_RESPONSE_FLAGS, 0);
+
+            // Prefetches send progress reports along the way.  We only want
+            // the last one.
+            if((flags & StockService.FLAG_ALARM) != 0
+                    && (respFlags & StockService.FLAG_PREFETCH_COMPLETE) != 0)
             {
                 Log.d(DEBUG_TAG, "StockService returned with an alarming response!");
                 
@@ -158,74 +184,6 @@ public class AlarmService extends WakefulIntentService {
             }
         }
     }
-
-    /**
-     * This makes a 9:30am ET Calendar for today's date.  Note that even if a
-     * Calendar is supplied, what will be returned will be in America/New_York,
-     * using the date it is in New York right now.
-     *
-     * @param source if not null, use this as the base, rather than build up a
-     *               new Calendar from scratch
-     * @return a new Calendar for 9:30am ET for today's (or the supplied) date
-     */
-    private Calendar makeNineThirty(Calendar source) {
-        Calendar base;
-
-        if(source == null) {
-            base = Calendar.getInstance(TimeZone.getTimeZone("America/New_York"));
-        } else {
-            base = (Calendar)source.clone();
-            base.setTimeZone(TimeZone.getTimeZone("America/New_York"));
-        }
-
-        base.set(Calendar.HOUR_OF_DAY, 9);
-        base.set(Calendar.MINUTE, 30);
-        base.set(Calendar.SECOND, 0);
-        base.set(Calendar.MILLISECOND, 0);
-
-        return base;
-    }
-
-    /**
-     * Makes a new Calendar that represents the most recent probable date that
-     * a stock would exist.  It does so by comparing the current time to 9:30am
-     * ET of the same day.  If it's before 9:30am (and would thus be before we
-     * can confidently say the NYSE has opened and a value reported), this will
-     * rewind it by one day.  If it's after 9:30am, the date will remain the
-     * same.  Note that the only important part of this is the date; the actual
-     * time and time zone of the returned value are not guaranteed, though
-     * chances are it'll be in the same time zone as what is given (or the
-     * default time zone if not given).
-     *
-     * This implicitly assumes that source is today, if given.  This won't
-     * return an accurate date if, say, source is next week.
-     *
-     * @param source if not null, use this as the base, rather than whatever
-     *               the system considers the current time.
-     * @return a new Calendar whose date is the most recent date a stock is
-     *         likely to exist.
-     */
-    private Calendar getMostRecentStockDate(Calendar source) {
-        Calendar base;
-
-        if(source == null) {
-            base = Calendar.getInstance();
-        } else {
-            base = (Calendar)source.clone();
-        }
-
-        // First, get 9:30 for today.
-        Calendar nineThirty = makeNineThirty(base);
-
-        // Then, compare it to the base.
-        if(base.before(nineThirty)) {
-            // It's before 9:30am!  Rewind!
-            base.add(Calendar.DAY_OF_MONTH, -1);
-        }
-
-        // And that should be that!
-        return base;
-    }
     
     public AlarmService() {
         super("AlarmService");
@@ -249,39 +207,89 @@ public class AlarmService extends WakefulIntentService {
         mNotificationManager.cancel(R.id.alarm_notification);
     }
     
-    private void snooze() {
-        Calendar cal = Calendar.getInstance();
-        cal.add(Calendar.MINUTE, 30);
-        
-        Intent alarmIntent = new Intent(this, StockAlarmReceiver.class);
-        alarmIntent.setAction(STOCK_ALARM_RETRY);
+    private PendingIntent makeAlarmIntent(String action, int attempt) {
+        Intent alarmIntent = new Intent(action).setClass(this, StockAlarmReceiver.class);
+        alarmIntent.putExtra(EXTRA_ATTEMPT, attempt);
         
-        mAlarmManager.set(AlarmManager.RTC_WAKEUP,
-                cal.getTimeInMillis(),
-                PendingIntent.getBroadcast(this, 0, alarmIntent, 0));
+        // UPDATE_CURRENT, so the attempt count doesn't get stuck on whatever
+        // the first one was.  The extras don't count when canceling, so this
+        // still cancels just fine, too.
+        return PendingIntent.getBroadcast(this, 0, alarmIntent, PendingIntent.FLAG_UPDATE_CURRENT);
     }
     
-    private void sendRequest(Graticule g) {
-        // The Graticule will be one of the dummies, as all we really care about
-        // is if it's 30W or not.  And we don't really care about it THAT much,
-        // just enough to put the right string in the notification.  Otherwise,
-        // StockService works it out.
-        Calendar cal = getMostRecentStockDate(null);
+    @SuppressLint("NewApi")
+    private void setAlarm(String action, long when, int attempt) {
+        // There's only ever one alarm going at a time.  Whichever one we're
+        // NOT setting gets canceled.
+        mAlarmManager.cancel(makeAlarmIntent(action.equals(STOCK_ALARM) ? STOCK_ALARM_RETRY : STOCK_ALARM, 0));
+
+        Log.d(DEBUG_TAG, "Setting " + action + " (attempt " + attempt + ") for " + new Date(when));
+
+        // As of KitKat, set() is allowed to be fashionably late.  Since the
+        // whole point is to go off at the right time, ask for exact.
+        PendingIntent pi = makeAlarmIntent(action, attempt);
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            mAlarmManager.setExact(AlarmManager.RTC_WAKEUP, when, pi);
+        else
+            mAlarmManager.set(AlarmManager.RTC_WAKEUP, when, pi);
+    }
+
+    private void cancelAlarms() {
+        mAlarmManager.cancel(makeAlarmIntent(STOCK_ALARM, 0));
+        mAlarmManager.cancel(makeAlarmIntent(STOCK_ALARM_RETRY, 0));
+    }
+
+    private StockSchedule makeSchedule() {
+        return StockSchedule.make(System.currentTimeMillis(), HashBuilder.getStockCache(this));
+    }
+
+    private void check(int attempt) {
+        StockSchedule schedule = makeSchedule();
+
+        if(schedule.isUpToDate()) {
+            // Nothing's missing, so there's nothing to do until the next
+            // trading day opens.  Weekends and holidays end up here.
+            Log.d(DEBUG_TAG, "The cache is up to date, sleeping until the next opening.");
+            clearNotification();
+            setAlarm(STOCK_ALARM, schedule.getNextCheck(), 0);
+            return;
+        }
+
+        // Otherwise, it's off to StockService.  A prefetch of the current date
+        // covers both sides of the 30W Rule at once, and it skips anything
+        // that's already cached.
+        Log.d(DEBUG_TAG, schedule.getMissing().length + " stock(s) missing, asking StockService...");
+        Calendar cal = StockDay.toCalendar(schedule.getDay());
         
         Intent request = new Intent(this, StockService.class);
-        request.setAction(StockService.ACTION_STOCK_REQUEST)
-            .putExtra(StockService.EXTRA_GRATICULE, g)
+        request.setAction(StockService.ACTION_STOCK_PREFETCH)
             .putExtra(StockService.EXTRA_DATE, cal)
-            .putExtra(StockService.EXTRA_REQUEST_ID, (int)(cal.getTimeInMillis() / 1000))
+            .putExtra(StockService.EXTRA_END_DATE, cal)
+            .putExtra(StockService.EXTRA_REQUEST_ID, (long)attempt)
             .putExtra(StockService.EXTRA_REQUEST_FLAGS, StockService.FLAG_ALARM);
         
         // The notification goes up first.
-        showNotification(Info.makeAdjustedCalendar(cal, g));
+        showNotification(cal);
         
         // THEN we send the request.
         WakefulIntentService.sendWakefulWork(this, request);
     }
 
+    private void retry(int attempt) {
+        // attempt is the one that just failed.  The first retry waits the
+        // base delay, and each one after that waits about twice as long.
+        StockSchedule schedule = makeSchedule();
+        long now = System.currentTimeMillis();
+        long when = schedule.getRetryTime(now, attempt, mRandom);
+
+        // If the backoff runs into the next opening, that's just the next
+        // regular check, and the backoff starts over.
+        if(when >= schedule.getNextCheck())
+            setAlarm(STOCK_ALARM, schedule.getNextCheck(), 0);
+        else
+            setAlarm(STOCK_ALARM_RETRY, when, attempt + 1);
+    }
+
     @SuppressLint("NewApi")
     @Override
     public void onCreate() {
@@ -319,118 +327,58 @@ public class AlarmService extends WakefulIntentService {
             // We've been told to stop all alarms!  While we're at it, abort any
             // in-progress connections, too!
             Log.d(DEBUG_TAG, "Got STOCK_ALARM_OFF!");
-            mAlarmManager.cancel(PendingIntent.getBroadcast(this, 0, new Intent(STOCK_ALARM).setClass(this, StockAlarmReceiver.class), 0));
-            mAlarmManager.cancel(PendingIntent.getBroadcast(this, 0, new Intent(STOCK_ALARM_RETRY).setClass(this, StockAlarmReceiver.class), 0));
+            cancelAlarms();
             AndroidUtil.setPackageComponentEnabled(this, NetworkReceiver.class, false);
             clearNotification();
-        } else if(intent.getAction().equals(STOCK_ALARM_ON)) {
-            Log.d(DEBUG_TAG, "Got STOCK_ALARM_ON!");
-            // At init time, set the alarm.  We're aiming at 9:30am ET (with any
-            // applicable DST adjustments).  The NYSE opens at 9:00am ET, but in
-            // the interests of possible clock discrepancies and such (not to
-            // mention any delays in the stock reporting sites being updated),
-            // we'll wait the extra half hour.  The first alarm should be the
-            // NEXT 9:30am ET.  If the user wants to take a chance and get a
-            // stock value closer to 9:00am ET than that, well, they can do it
-            // themselves.
-            Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("America/New_York"));
-            Calendar alarmTime = makeNineThirty(cal);
-            
-            if(alarmTime.before(cal)) {
-                alarmTime.add(Calendar.DAY_OF_MONTH, 1);
-            }
-            
-            Intent alarmIntent = new Intent(STOCK_ALARM);
-            alarmIntent.setClass(this, StockAlarmReceiver.class);
-            
-            Log.d(DEBUG_TAG, "Setting a daily wakeup alarm starting at " + alarmTime.getTime().toString());
-            
-            mAlarmManager.setRepeating(AlarmManager.RTC_WAKEUP,
-                    alarmTime.getTimeInMillis(),
-                    AlarmManager.INTERVAL_DAY,
-                    PendingIntent.getBroadcast(this, 0, alarmIntent, 0));
-                        
-            // AlarmManager sends out broadcasts, and the receiver we've got
-            // will wake the service back up, so we can stop everything right
-            // now.
-        } else  if(intent.getAction().equals(STOCK_ALARM)
-                || intent.getAction().equals(STOCK_ALARM_RETRY)
-                || intent.getAction().equals(STOCK_ALARM_NETWORK_BACK)
-                || intent.getAction().equals(StockService.ACTION_STOCK_RESULT)) {
-            // Aha!  NOW we've got something!
-            Log.d(DEBUG_TAG, "AlarmService has business to attend to!");
-
-            // If we got the REAL stock alarm while still waiting on the RETRY
-            // alarm (i.e. the server kept reporting the stock wasn't posted all
-            // day until the next 9:30), we should stop the retry alarm.  It'll
-            // get set back up if the stock is STILL unavailable, and by
-            // shutting it down here, we preferably avoid acting on two alarms
-            // at the same time.
-            mAlarmManager.cancel(PendingIntent.getBroadcast(this, 0, new Intent(STOCK_ALARM_RETRY).setClass(this, StockAlarmReceiver.class), 0));
-            
+        } else if(intent.getAction().equals(STOCK_ALARM_ON)
+                || intent.getAction().equals(STOCK_ALARM)
+                || intent.getAction().equals(STOCK_ALARM_NETWORK_BACK)) {
+            // Aha!  NOW we've got something!  Or we might.  The schedule will
+            // tell us.  Turning the alarm on works the same way; if something
+            // can be fetched right now, it will be, and either way, the next
+            // alarm gets set for when it's needed.
+            Log.d(DEBUG_TAG, "AlarmService has business to attend to (" + intent.getAction() + ")!");
+            check(0);
+        } else if(intent.getAction().equals(STOCK_ALARM_RETRY)) {
+            Log.d(DEBUG_TAG, "Retrying, attempt " + intent.getIntExtra(EXTRA_ATTEMPT, 0) + "...");
+            check(intent.getIntExtra(EXTRA_ATTEMPT, 0));
+        } else if(intent.getAction().equals(StockService.ACTION_STOCK_RESULT)) {
             // StockService takes care of all the network connectivity checks
             // and other things that the alarm-checking StockService used to
             // take care of.  It'll also tell us if the stock hasn't been
             // posted just yet.  So, we can count on that for error checking.
-            if(intent.getAction().equals(StockService.ACTION_STOCK_RESULT)) {
-                Log.d(DEBUG_TAG, "Just got a stock result!");
+            Log.d(DEBUG_TAG, "Just got a stock result!");
 
-                Bundle bun = intent.getBundleExtra(StockService.EXTRA_STUFF);
-                bun.setClassLoader(getClassLoader());
+            Bundle bun = intent.getBundleExtra(StockService.EXTRA_STUFF);
+            bun.setClassLoader(getClassLoader());
 
-                int result = bun.getInt(StockService.EXTRA_RESPONSE_CODE, StockService.RESPONSE_NOT_POSTED_YET);
-                Graticule g = bun.getParcelable(StockService.EXTRA_GRATICULE);
-                
-                if(result == StockService.RESPONSE_NO_CONNECTION) {
-                    // No connection means we just set up the receiver and wait.
-                    // And wait.  And wait.
-                    Log.d(DEBUG_TAG, "No network connection available, waiting until we get one...");
-                    AndroidUtil.setPackageComponentEnabled(this, NetworkReceiver.class, true);
-                    clearNotification();
-                    return;
-                }
+            int result = bun.getInt(StockService.EXTRA_RESPONSE_CODE, StockService.RESPONSE_NOT_POSTED_YET);
+            int attempt = (int)bun.getLong(StockService.EXTRA_REQUEST_ID, 0);
                 
-                if(result == StockService.RESPONSE_NOT_POSTED_YET) {
-                    // Not posted yet means we hit the snooze and try again in a
-                    // half hour or so.  Good night!
-                    Log.d(DEBUG_TAG, "Stock wasn't posted yet, snoozing for a half hour...");
-                    snooze();
-                    clearNotification();
-                    return;
-                }
+            clearNotification();
                 
-                if(result == StockService.RESPONSE_NETWORK_ERROR) {
-                    // A network error that ISN'T "no connection" is really bad.
-                    // So bad, in fact, that we're not even going to bother
-                    // figuring it out.  Give up now.
-                    Log.w(DEBUG_TAG, "Network reported an error, NOT rescheduling!");
-                    clearNotification();
-                    return;
-                }
+            if(result == StockService.RESPONSE_NO_CONNECTION) {
+                // No connection means we just set up the receiver and wait.
+                // And wait.  And wait.
+                Log.d(DEBUG_TAG, "No network connection available, waiting until we get one...");
+                AndroidUtil.setPackageComponentEnabled(this, NetworkReceiver.class, true);
+                return;
+            }
                 
-                if(result == StockService.RESPONSE_OKAY) {
-                    // An okay response means the Graticule IS good.  If not,
-                    // fix StockService.
-                    if(g.uses30WRule()) {
-                        // If the response we just checked for was a 30W one and
-                        // it came back okay, then we fire off a check for the
-                        // non-30W one.
-                        Log.d(DEBUG_TAG, "That was the 30W response, going up to non-30W...");
-                        sendRequest(GHDConstants.DUMMY_TODAY);
-                    } else {
-                        // If, however, we got the non-30W back, then our job is
-                        // done!  Yay!
-                        Log.d(DEBUG_TAG, "The 30W response!  We're done!");
-                        clearNotification();
-                    }
-                }
-            } else {
-                // If it's NOT a result, that means we're starting a new check
-                // at a 30W hash for some reason.  Doesn't matter what reason.
-                // We just need to do it.
-                Log.d(DEBUG_TAG, "That wasn't a result, so asking for a 30W...");
-                sendRequest(GHDConstants.DUMMY_YESTERDAY);
+            if(result == StockService.RESPONSE_NOT_POSTED_YET
+                    || result == StockService.RESPONSE_NETWORK_ERROR) {
+                // Not posted yet (or the mirrors are having a bad time) means
+                // we back off and try again.  Each time, we wait about twice
+                // as long as the last.  Good night!
+                Log.d(DEBUG_TAG, "Stock wasn't available (response " + result + "), backing off...");
+                retry(attempt);
+                return;
             }
+                
+            // Otherwise, we got everything!  Yay!  Back to sleep until the next
+            // opening.
+            Log.d(DEBUG_TAG, "Got the stocks!  We're done!");
+            setAlarm(STOCK_ALARM, makeSchedule().getNextCheck(), 0);
         } else {
             // Stop doing this!
             Log.w(DEBUG_TAG, "Told to start on unknown action " + intent.getAction() + ", ignoring...");
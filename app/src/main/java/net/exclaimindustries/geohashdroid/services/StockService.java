@@ -7,23 +7,40 @@
  */
 package net.exclaimindustries.geohashdroid.services;
 
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Parcelable;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.commonsware.cwac.wakeful.WakefulIntentService;
 
+import net.exclaimindustries.geohashdroid.util.BulkHashpoints;
+import net.exclaimindustries.geohashdroid.util.GHDConstants;
 import net.exclaimindustries.geohashdroid.util.Graticule;
 import net.exclaimindustries.geohashdroid.util.HashBuilder;
 import net.exclaimindustries.geohashdroid.util.HashBuilder.StockRunner;
 import net.exclaimindustries.geohashdroid.util.Info;
+import net.exclaimindustries.geohashdroid.util.QuickCache;
+import net.exclaimindustries.geohashdroid.util.StockPrefetch;
+import net.exclaimindustries.geohashdroid.util.StockResult;
 import net.exclaimindustries.tools.AndroidUtil;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>
@@ -41,6 +58,33 @@ import java.util.List;
  * the stock cache).
  * </p>
  * 
+ * <p>
+ * Requests the cache can answer are answered right away, one after another,
+ * on the service's own thread.  Requests that need the network are handed off
+ * to a small pool of threads and answered whenever they're done.  That means
+ * responses won't necessarily come back in the same order the requests went
+ * out, so use {@link #EXTRA_REQUEST_ID} to match them up.  The exceptions are
+ * {@link #FLAG_ALARM} requests and prefetches, which go to the network right
+ * on the service's own thread; those usually happen with nothing else of the
+ * app on screen, and the service has to stay running (and awake) until
+ * they're done, lest the whole process get killed partway through.
+ * </p>
+ * 
+ * <p>
+ * Network requests for the same date and side of the 30W line only ever go
+ * out once.  If another one comes in while the first is still pending, it
+ * joins up with it, and everyone gets an answer when it's done.  Requests can
+ * also supersede older ones; see {@link #EXTRA_SUPERSEDE_KEY}.
+ * </p>
+ * 
+ * <p>
+ * Results go straight to any {@link StockResult.Listener} registered in this
+ * process, as plain objects.  They only go out as {@link #ACTION_STOCK_RESULT}
+ * broadcasts if they came from the stock alarm (whose receiver lives in the
+ * manifest, so it can wake AlarmService up) or if nobody in this process is
+ * listening.
+ * </p>
+ * 
  * @author Nicholas Killewald
  */
 public class StockService extends WakefulIntentService {
@@ -69,10 +113,37 @@ public class StockService extends WakefulIntentService {
      * Action that gets broadcast whenever StockService is returning a stock
      * result.  The intent will have a motley assortment of extras with it, each
      * of which are mentioned in this class, most of which were supplied with
-     * the {@link #ACTION_STOCK_REQUEST} that started this.
+     * the {@link #ACTION_STOCK_REQUEST} that started this.  Note that this only
+     * goes out for {@link #FLAG_ALARM} requests, or if there's no
+     * {@link StockResult.Listener} registered to take it directly.
      */
     public static final String ACTION_STOCK_RESULT = "net.exclaimindustries.geohashdroid.STOCK_RESULT";
 
+    /**
+     * <p>
+     * Action to send out when you want every stock needed for a range of dates
+     * fetched into the stock cache ahead of time, for, say, a week of
+     * retrohashes or a long trip.  This needs a Calendar for
+     * {@link #EXTRA_DATE} (the first day) and {@link #EXTRA_END_DATE} (the
+     * last day), both inclusive and both the REAL dates of the hashes you'll
+     * want.  The range can't be longer than {@link StockPrefetch#MAX_DAYS}.
+     * </p>
+     *
+     * <p>
+     * Progress comes back as {@link #ACTION_STOCK_RESULT} broadcasts with
+     * {@link #FLAG_PREFETCH} added to the request flags, a null Info, and
+     * {@link #EXTRA_PREFETCH_DONE} and {@link #EXTRA_PREFETCH_TOTAL} filled
+     * in.  The last one has {@link #FLAG_PREFETCH_COMPLETE} in its response
+     * flags and a response code saying how it went overall:
+     * {@link #RESPONSE_NETWORK_ERROR} if anything couldn't be fetched,
+     * {@link #RESPONSE_NOT_POSTED_YET} if anything wasn't posted,
+     * {@link #RESPONSE_INVALID_REQUEST} if the dates were missing, backwards,
+     * or too far apart (in which case that's the only response), or
+     * {@link #RESPONSE_OKAY} if everything's in the cache now.
+     * </p>
+     */
+    public static final String ACTION_STOCK_PREFETCH = "net.exclaimindustries.geohashdroid.STOCK_PREFETCH";
+
     /**
      * <p>
      * Key for the extra stuff Bundle.  This Bundle will contain all the needed
@@ -96,7 +167,8 @@ public class StockService extends WakefulIntentService {
      * Key for an ID extra on the response.  This isn't actually used and is not
      * required, but whatever is stored here (so long as it's a long) will be
      * put in the broadcast Intent when done.  If this isn't specified, it will
-     * come back as -1.
+     * come back as -1.  Since responses can come back in any order, this is
+     * how to tell which request one goes with.
      */
     public static final String EXTRA_REQUEST_ID = "net.exclaimindustries.geohashdroid.EXTRA_REQUEST_ID";
     /**
@@ -124,6 +196,21 @@ public class StockService extends WakefulIntentService {
      * Calendar.
      */
     public static final String EXTRA_DATE = "net.exclaimindustries.geohashdroid.EXTRA_DATE";
+    /**
+     * Key for the last day of a {@link #ACTION_STOCK_PREFETCH} request.  This
+     * is a Calendar, just like {@link #EXTRA_DATE}.
+     */
+    public static final String EXTRA_END_DATE = "net.exclaimindustries.geohashdroid.EXTRA_END_DATE";
+    /**
+     * Key for how many stock dates a prefetch has dealt with so far.  This
+     * will be an int.
+     */
+    public static final String EXTRA_PREFETCH_DONE = "net.exclaimindustries.geohashdroid.EXTRA_PREFETCH_DONE";
+    /**
+     * Key for how many stock dates a prefetch needs in all.  This will be an
+     * int.
+     */
+    public static final String EXTRA_PREFETCH_TOTAL = "net.exclaimindustries.geohashdroid.EXTRA_PREFETCH_TOTAL";
     /**
      * Key for an Info extra.  This comes back in the broadcast.  Note that the
      * data will be null if there was an error.
@@ -135,12 +222,35 @@ public class StockService extends WakefulIntentService {
     public static final String EXTRA_RESPONSE_CODE = "net.exclaimindustries.geohashdroid.EXTRA_RESPONSE_CODE";
     /**
      * Key for nearby points, if {@link #FLAG_INCLUDE_NEARBY_POINTS} was
-     * specified.  This will be an array of Info objects.  The order of the
-     * array is arbitrary.  There will usually be eight elements in it, though
-     * there may be fewer if the request is either at the poles or in rare
-     * 30W-related cases.
+     * specified.  In a broadcast, this will be a byte array; use
+     * {@link Info#decodeArray(byte[])} to get the Info objects back out of it.
+     * They're row by row from south to north.  How many there are depends on the nearby points radius pref
+     * (eight for the usual 3x3, up to 48 for 7x7), though there may be fewer
+     * if the request is near the poles or the other side of the 30W line
+     * couldn't be fetched.
      */
     public static final String EXTRA_NEARBY_POINTS = "net.exclaimindustries.geohashdroid.EXTRA_NEARBY_POINTS";
+    /**
+     * <p>
+     * Key for a supersede key on an {@link #ACTION_STOCK_REQUEST}.  This is a
+     * String, and it's optional.  Requests that share a key supersede each
+     * other: once a newer one's been sent, any older one that hasn't been
+     * answered yet is dropped and comes back as {@link #RESPONSE_CANCELLED}
+     * instead.  That's for things like Select-A-Graticule, where the user can
+     * go through a dozen graticules in a few seconds and only cares about
+     * wherever they stopped.
+     * </p>
+     *
+     * <p>
+     * This doesn't stop a stock from being fetched if something else still
+     * wants it; it just means nobody gets told about it who doesn't care.
+     * </p>
+     */
+    public static final String EXTRA_SUPERSEDE_KEY = "net.exclaimindustries.geohashdroid.EXTRA_SUPERSEDE_KEY";
+
+    // This gets stamped on every request with a supersede key as it comes in.
+    // It's how we know which one's newest.
+    private static final String EXTRA_SEQUENCE = "net.exclaimindustries.geohashdroid.EXTRA_SEQUENCE";
     
     /**
      * Flag meaning this request came from the stock alarm around 9:30am EST.
@@ -172,17 +282,28 @@ public class StockService extends WakefulIntentService {
     public static final int FLAG_SELECT_A_GRATICULE = 0x10;
 
     /**
-     * Flag meaning that, in addition to the point requested, the (up to) eight
-     * surrounding points should also be included in the response.
+     * Flag meaning that, in addition to the point requested, the surrounding
+     * points should also be included in the response.  That's the eight
+     * around it, or more, depending on {@link GHDConstants#PREF_NEARBY_RADIUS}.
      */
     public static final int FLAG_INCLUDE_NEARBY_POINTS = 0x20;
 
+    /**
+     * Flag meaning this is a response to an {@link #ACTION_STOCK_PREFETCH}.
+     * StockService adds this itself; there's no need to put it in the request.
+     */
+    public static final int FLAG_PREFETCH = 0x40;
+
     /**
      * Flag meaning this response was found in the cache.  If not set, it was
      * either found on the web or it wasn't found at all, the latter of which
      * implying you really ought to have checked the response code first.
      */
     public static final int FLAG_CACHED = 0x1;
+    /**
+     * Flag meaning this is the last response to an {@link #ACTION_STOCK_PREFETCH}.
+     */
+    public static final int FLAG_PREFETCH_COMPLETE = 0x2;
 
     /** All okay response. */
     public static final int RESPONSE_OKAY = 0;
@@ -195,6 +316,17 @@ public class StockService extends WakefulIntentService {
     public static final int RESPONSE_NO_CONNECTION = -2;
     /** Error response if there was some network error involved. */
     public static final int RESPONSE_NETWORK_ERROR = -3;
+    /**
+     * Error response if the request itself didn't make sense, like a prefetch
+     * with missing or backwards dates.  Trying it again won't help.
+     */
+    public static final int RESPONSE_INVALID_REQUEST = -4;
+    /**
+     * Response if a newer request with the same {@link #EXTRA_SUPERSEDE_KEY}
+     * came in before this one could be answered.  There's no Info, and
+     * nothing went wrong; it's just not needed any more.
+     */
+    public static final int RESPONSE_CANCELLED = -5;
     
     /**
      * A dummy Graticule that uses the 30W rule, and thus needs yesterday's date
@@ -206,30 +338,139 @@ public class StockService extends WakefulIntentService {
      * date to work.
      */
     public static final Graticule DUMMY_TODAY = new Graticule(38, false, 84, true);
+
+    // Prefetch progress doesn't need to go out any more often than this, in
+    // milliseconds.
+    private static final long PREFETCH_PROGRESS_INTERVAL = 500;
+
+    // How many network lookups can run at once in the pool.  The mirrors
+    // don't need more than this from one phone.
+    private static final int NETWORK_THREADS = 3;
+
+    // Network requests run here, so they don't block the service's own
+    // thread.  It's static so it outlives any one StockService; whatever's
+    // running keeps its own WakeLock.  The threads go away after a while
+    // with nothing to do.
+    private static final ThreadPoolExecutor mNetworkPool = new ThreadPoolExecutor(
+            NETWORK_THREADS, NETWORK_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        mNetworkPool.allowCoreThreadTimeOut(true);
+    }
+
+    // The newest sequence number handed out for each supersede key.  Any
+    // request with an older number has been superseded.
+    private static final Map<String, Long> mNewestRequests = new ConcurrentHashMap<>();
+    private static final AtomicLong mNextSequence = new AtomicLong();
+
+    // Network lookups that haven't finished yet, keyed by date and side of
+    // the 30W line (the same keys QuickCache uses).  Lock on this before
+    // touching it or any Lookup in it.
+    private static final Map<Long, Lookup> mLookups = new HashMap<>();
+
+    // One stock request, pulled out of its Intent.
+    private static class Request {
+        final long mId;
+        final int mFlags;
+        final Calendar mCal;
+        final Graticule mGraticule;
+        final String mSupersedeKey;
+        final long mSequence;
+
+        Request(long id, int flags, Calendar cal, Graticule graticule, String supersedeKey, long sequence) {
+            mId = id;
+            mFlags = flags;
+            mCal = cal;
+            mGraticule = graticule;
+            mSupersedeKey = supersedeKey;
+            mSequence = sequence;
+        }
+
+        boolean isSuperseded() {
+            if(mSupersedeKey == null) return false;
+
+            Long newest = mNewestRequests.get(mSupersedeKey);
+            return newest != null && newest > mSequence;
+        }
+    }
+
+    // A network lookup for one date and side of the 30W line, and all the
+    // requests waiting on it.
+    private static class Lookup {
+        final long mKey;
+        final List<Request> mRequests = new ArrayList<>();
+
+        Lookup(long key) {
+            mKey = key;
+        }
+
+        boolean isAllSuperseded() {
+            for(Request req : mRequests) {
+                if(!req.isSuperseded()) return false;
+            }
+
+            return true;
+        }
+    }
     
     public StockService() {
         super("StockService");
     }
 
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // This runs on the main thread as each request comes in, well before
+        // doWakefulWork gets to it.  So, this is where a request with a
+        // supersede key gets its number, and where it supersedes everything
+        // before it.  IntentService hands this same Intent to doWakefulWork,
+        // number and all.
+        if(intent != null && ACTION_STOCK_REQUEST.equals(intent.getAction())) {
+            String key = intent.getStringExtra(EXTRA_SUPERSEDE_KEY);
+
+            if(key != null && !intent.hasExtra(EXTRA_SEQUENCE)) {
+                long sequence = mNextSequence.incrementAndGet();
+                intent.putExtra(EXTRA_SEQUENCE, sequence);
+                mNewestRequests.put(key, sequence);
+            }
+        }
+
+        return super.onStartCommand(intent, flags, startId);
+    }
+
     @Override
     protected void doWakefulWork(Intent intent) {
         // Gee, thanks, WakefulIntentService, for covering all that confusing
         // WakeLock stuff!  You're even off the main thread, too, so I don't
         // have to spawn a new thread to not screw up the UI!  So let's get that
         // data right in hand, shall we?
+
+        // This thread is the fast lane.  Anything the cache can answer gets
+        // answered right here, right now.  Anything that needs the network
+        // goes off to the network pool, so one slow mirror doesn't hold up
+        // every cached lookup queued up behind it.
+        final Context con = getApplicationContext();
+
+        if(ACTION_STOCK_PREFETCH.equals(intent.getAction())) {
+            // Well, okay, first, prefetches go their own way.  They run right
+            // here, slow lane or not.  A prefetch is usually the only thing
+            // keeping the process going (the alarm sends them in the middle
+            // of the night), and once doWakefulWork returns, the service
+            // stops, the WakeLock goes away, and nothing's stopping Android
+            // from killing the whole thing halfway through.
+            doPrefetch(con, intent);
+            return;
+        }
+
         if(!intent.hasExtra(EXTRA_DATE)) {
             Log.e(DEBUG_TAG, "BAILING OUT: There's no date!");
             return;
         }
         
         // Maybe we have a request ID!
-        long requestId = intent.getLongExtra(EXTRA_REQUEST_ID, -1);
+        final long requestId = intent.getLongExtra(EXTRA_REQUEST_ID, -1);
 
         // Maybe we have flags!
-        int flags = intent.getIntExtra(EXTRA_REQUEST_FLAGS, 0);
-
-        // Maybe we'll respond with flags!
-        int respFlags = 0;
+        final int flags = intent.getIntExtra(EXTRA_REQUEST_FLAGS, 0);
         
         // Oh, man, can we ever parcelize a Graticule!
         Parcelable p = intent.getParcelableExtra(EXTRA_GRATICULE);
@@ -239,7 +480,7 @@ public class StockService extends WakefulIntentService {
             Log.e(DEBUG_TAG, "BAILING OUT: p is not null and isn't a Graticule!");
             return;
         }
-        Graticule graticule = (Graticule)p;
+        final Graticule graticule = (Graticule)p;
         
         // Calendar, well, we can't parcelize that, but we CAN serialize it,
         // which is almost as good!
@@ -249,135 +490,404 @@ public class StockService extends WakefulIntentService {
             Log.e(DEBUG_TAG, "BAILING OUT: s is null or not a Calendar!");
             return;
         }
-        Calendar cal = (Calendar)s;
+        final Calendar cal = (Calendar)s;
+
+        Request req = new Request(requestId, flags, cal, graticule,
+                intent.getStringExtra(EXTRA_SUPERSEDE_KEY), intent.getLongExtra(EXTRA_SEQUENCE, 0));
+
+        // If something newer already came in to replace this, don't bother.
+        if(req.isSuperseded()) {
+            Log.d(DEBUG_TAG, "Request " + requestId + " was superseded, skipping it.");
+            dispatchCancelled(con, req);
+            return;
+        }
+
+        boolean connected = AndroidUtil.isConnected(con);
         
         // First, ask the stock cache if we've got an Info we can throw back.
-        Info info = HashBuilder.getStoredInfo(this, cal, graticule);
+        Info info = HashBuilder.getStoredInfo(con, cal, graticule);
         
-        // If we got something, great!  Broadcast it right on out!
+        // If we got something, great!  Broadcast it right on out!  Unless we
+        // need nearby points, and those need the other side of the 30W line,
+        // and THAT isn't in the cache.  If we can't go to the web for it, we
+        // make do with what we've got.
         if(info != null) {
-            respFlags |= FLAG_CACHED;
             Info[] nearby = null;
-            if((flags & FLAG_INCLUDE_NEARBY_POINTS) != 0)
-                nearby = getNearbyPoints(cal, graticule);
-            dispatchIntent(RESPONSE_OKAY, requestId, flags, respFlags, cal, graticule, info, nearby);
-        } else {
-            // Otherwise, we need to go to the web.
-            if(!AndroidUtil.isConnected(this)) {
-                // ...if we CAN go to the web, that is.
-                Log.i(DEBUG_TAG, "We're not connected, stopping now.");
-                dispatchIntent(RESPONSE_NO_CONNECTION, requestId, flags, respFlags, cal, graticule, null, null);
-            } else {
-                StockRunner runner = HashBuilder.requestStockRunner(this, cal, graticule, null);
-                runner.runStock();
-
-                // And the results are in!
-                int result = runner.getStatus();
-
-                switch(result) {
-                    case HashBuilder.StockRunner.ALL_OKAY:
-                        // Hooray!  We win!  Dispatch an intent with the info.
-                        Log.d(DEBUG_TAG, "Stock's good!  Away it goes!");
-                        Info[] nearby = null;
-                        if((flags & FLAG_INCLUDE_NEARBY_POINTS) != 0)
-                            nearby = getNearbyPoints(cal, graticule);
-                        dispatchIntent(RESPONSE_OKAY, requestId, flags, respFlags, cal, graticule, runner.getLastResultObject(), nearby);
-                        break;
-                    case HashBuilder.StockRunner.ERROR_NOT_POSTED:
-                        // Aw.  It's not posted yet.
-                        Log.d(DEBUG_TAG, "Stock isn't posted yet.");
-                        dispatchIntent(RESPONSE_NOT_POSTED_YET, requestId, flags, respFlags, cal, graticule, null, null);
-                        break;
-                    default:
-                        // In all other cases, just assume it's a network error.
-                        // We either got ERROR_NETWORK, which is just that, or
-                        // we got IDLE, BUSY, or ABORTED, none of which make any
-                        // sense in this context, which means something went
-                        // horribly, horribly wrong.
-                        Log.e(DEBUG_TAG, "Network error!");
-                        dispatchIntent(RESPONSE_NETWORK_ERROR, requestId, flags, respFlags, cal, graticule, null, null);
+
+            if((flags & FLAG_INCLUDE_NEARBY_POINTS) != 0 && graticule != null) {
+                int radius = getNearbyRadius(con);
+                double[] fractions = new double[4];
+                HashBuilder.getStoredSideFractions(con, cal, fractions);
+
+                if(connected && getMissingSide(graticule, radius, fractions) != null)
+                    info = null;
+                else
+                    nearby = BulkHashpoints.calculateNearby(fractions, cal, graticule, radius);
+            }
+
+            if(info != null) {
+                dispatchIntent(con, RESPONSE_OKAY, requestId, flags, FLAG_CACHED, cal, graticule, info, nearby);
+                return;
+            }
+        }
+
+        // Otherwise, we need to go to the web.
+        if(!connected) {
+            // ...if we CAN go to the web, that is.
+            Log.i(DEBUG_TAG, "We're not connected, stopping now.");
+            dispatchIntent(con, RESPONSE_NO_CONNECTION, requestId, flags, 0, cal, graticule, null, null);
+            return;
+        }
+
+        joinLookup(con, req);
+    }
+
+    private void joinLookup(final Context con, Request req) {
+        // If there's already a lookup pending for this date and side of the
+        // 30W line, this request just tags along with it.  Whatever that one
+        // finds, this one gets, too.
+        //
+        // Unless it's from the alarm.  Same as prefetches, those have to be
+        // done before doWakefulWork returns, so they get their own lookup and
+        // do it right here.  A pending one could be stuck behind anything in
+        // the pool, and the service would be long gone by the time it's done.
+        boolean inline = (req.mFlags & FLAG_ALARM) != 0;
+        long key = QuickCache.makeKey(req.mCal, req.mGraticule);
+        final Lookup lookup = new Lookup(key);
+        lookup.mRequests.add(req);
+
+        synchronized(mLookups) {
+            Lookup pending = mLookups.get(key);
+
+            if(pending != null && !inline) {
+                Log.d(DEBUG_TAG, "Request " + req.mId + " is joining a lookup that's already pending.");
+                pending.mRequests.add(req);
+                return;
+            }
+
+            // Anyone else can join this one, so long as there isn't another
+            // one already (that'd be the one to join).
+            if(pending == null) mLookups.put(key, lookup);
+        }
+
+        if(inline) {
+            doLookup(con, lookup);
+            return;
+        }
+
+        runOnNetworkPool(new Runnable() {
+            @Override
+            public void run() {
+                doLookup(con, lookup);
+            }
+        });
+    }
+
+    private void runOnNetworkPool(final Runnable work) {
+        // WakefulIntentService lets go of its WakeLock as soon as
+        // doWakefulWork returns, which is well before this'll be done.  So,
+        // this gets its own, taken now, while that one's still held.
+        final PowerManager.WakeLock wakeLock = ((PowerManager)getSystemService(Context.POWER_SERVICE))
+                .newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, DEBUG_TAG);
+        wakeLock.acquire();
+
+        mNetworkPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    work.run();
+                } finally {
+                    wakeLock.release();
                 }
             }
+        });
+    }
+
+    private static void doLookup(Context con, Lookup lookup) {
+        // If everyone waiting on this got superseded while it sat in the
+        // queue, there's nobody left to do it for.  Once it's out of the map,
+        // nobody else can join it, so its list is safe to read from here on.
+        Request first;
+        boolean cancelled = false;
+
+        synchronized(mLookups) {
+            if(lookup.isAllSuperseded()) {
+                removeLookup(lookup);
+                cancelled = true;
+            }
+
+            first = lookup.mRequests.get(0);
+        }
+
+        if(cancelled) {
+            Log.d(DEBUG_TAG, "Everyone waiting on this lookup was superseded, skipping it.");
+            for(Request req : lookup.mRequests)
+                dispatchCancelled(con, req);
+            return;
+        }
+
+        // Check the cache again first.  Another request for the same thing may
+        // have beaten us here, or we might just be here for the nearby points.
+        int responseCode = RESPONSE_OKAY;
+        int respFlags = 0;
+        Info fetched = HashBuilder.getStoredInfo(con, first.mCal, first.mGraticule);
+
+        if(fetched != null) {
+            respFlags |= FLAG_CACHED;
+        } else {
+            StockRunner runner = HashBuilder.requestStockRunner(con, first.mCal, first.mGraticule, null);
+            runner.runStock();
+
+            // And the results are in!
+            int result = runner.getStatus();
+
+            switch(result) {
+                case HashBuilder.StockRunner.ALL_OKAY:
+                    // Hooray!  We win!
+                    Log.d(DEBUG_TAG, "Stock's good!  Away it goes!");
+                    fetched = runner.getLastResultObject();
+                    break;
+                case HashBuilder.StockRunner.ERROR_NOT_POSTED:
+                    // Aw.  It's not posted yet.
+                    Log.d(DEBUG_TAG, "Stock isn't posted yet.");
+                    responseCode = RESPONSE_NOT_POSTED_YET;
+                    break;
+                default:
+                    // In all other cases, just assume it's a network error.
+                    // We either got ERROR_NETWORK, which is just that, or
+                    // we got IDLE, BUSY, or ABORTED, none of which make any
+                    // sense in this context, which means something went
+                    // horribly, horribly wrong.
+                    Log.e(DEBUG_TAG, "Network error!");
+                    responseCode = RESPONSE_NETWORK_ERROR;
+                    break;
+            }
+        }
+
+        // Done.  Anyone who comes in after this starts a new lookup, which
+        // will find it in the cache if it worked.
+        synchronized(mLookups) {
+            removeLookup(lookup);
+        }
+
+        // Now, everyone gets an answer.
+        for(Request req : lookup.mRequests)
+            respond(con, req, responseCode, respFlags, req == first ? fetched : null);
+    }
+
+    private static void removeLookup(Lookup lookup) {
+        // An alarm's lookup might not be the one in the map, if another one
+        // was already pending.  That one's still going, so leave it be.
+        if(mLookups.get(lookup.mKey) == lookup) mLookups.remove(lookup.mKey);
+    }
+
+    private static void respond(Context con, Request req, int responseCode, int respFlags, Info info) {
+        if(req.isSuperseded()) {
+            dispatchCancelled(con, req);
+            return;
+        }
+
+        if(responseCode != RESPONSE_OKAY) {
+            dispatchIntent(con, responseCode, req.mId, req.mFlags, respFlags, req.mCal, req.mGraticule, null, null);
+            return;
+        }
+
+        // Everyone on a lookup wanted the same hash, just maybe on different
+        // graticules.  It's in the cache now, so the Info for this one's
+        // graticule comes right out of it.
+        if(info == null) {
+            info = HashBuilder.getStoredInfo(con, req.mCal, req.mGraticule);
+
+            if(info == null) {
+                // This really shouldn't happen.
+                Log.e(DEBUG_TAG, "The stock was fetched, but the hash isn't in the cache?");
+                dispatchIntent(con, RESPONSE_NETWORK_ERROR, req.mId, req.mFlags, respFlags, req.mCal, req.mGraticule, null, null);
+                return;
+            }
+        }
+
+        Info[] nearby = null;
+        if((req.mFlags & FLAG_INCLUDE_NEARBY_POINTS) != 0) {
+            nearby = getNearbyPoints(con, req.mCal, req.mGraticule);
+
+            // The nearby points might've meant another trip out to the web,
+            // so it's worth checking one more time.
+            if(req.isSuperseded()) {
+                dispatchCancelled(con, req);
+                return;
+            }
+        }
+
+        dispatchIntent(con, RESPONSE_OKAY, req.mId, req.mFlags, respFlags, req.mCal, req.mGraticule, info, nearby);
+    }
+    
+    private static void doPrefetch(final Context con, Intent intent) {
+        final long requestId = intent.getLongExtra(EXTRA_REQUEST_ID, -1);
+        final int flags = intent.getIntExtra(EXTRA_REQUEST_FLAGS, 0) | FLAG_PREFETCH;
+
+        Serializable s = intent.getSerializableExtra(EXTRA_DATE);
+        Serializable e = intent.getSerializableExtra(EXTRA_END_DATE);
+
+        if(s == null || !(s instanceof Calendar) || e == null || !(e instanceof Calendar)) {
+            // Whoever asked is still waiting on that FLAG_PREFETCH_COMPLETE,
+            // so they get one, even if there's no sensible date to put on it.
+            Log.e(DEBUG_TAG, "BAILING OUT: The prefetch dates are null or not Calendars!");
+            dispatchPrefetchIntent(con, RESPONSE_INVALID_REQUEST, requestId, flags, FLAG_PREFETCH_COMPLETE,
+                    s instanceof Calendar ? (Calendar)s : null, 0, 0);
+            return;
+        }
+        final Calendar start = (Calendar)s;
+        Calendar end = (Calendar)e;
+
+        if(!AndroidUtil.isConnected(con)) {
+            Log.i(DEBUG_TAG, "We're not connected, not prefetching.");
+            dispatchPrefetchIntent(con, RESPONSE_NO_CONNECTION, requestId, flags, FLAG_PREFETCH_COMPLETE, start, 0, 0);
+            return;
         }
+
+        StockPrefetch prefetch;
+        try {
+            prefetch = HashBuilder.requestStockPrefetch(con, start, end);
+        } catch(IllegalArgumentException iae) {
+            Log.e(DEBUG_TAG, "BAILING OUT: " + iae.getMessage());
+            dispatchPrefetchIntent(con, RESPONSE_INVALID_REQUEST, requestId, flags, FLAG_PREFETCH_COMPLETE, start, 0, 0);
+            return;
+        }
+
+        StockPrefetch.Result result = prefetch.run(new StockPrefetch.ProgressListener() {
+            private long mLastSent = 0;
+
+            @Override
+            public synchronized void onProgress(int done, int total) {
+                // This can be called a few hundred times for a long range, so
+                // don't flood everyone with broadcasts.  The last one always
+                // goes out once it's all done, anyway.
+                long now = SystemClock.elapsedRealtime();
+                if(now - mLastSent < PREFETCH_PROGRESS_INTERVAL) return;
+                mLastSent = now;
+
+                dispatchPrefetchIntent(con, RESPONSE_OKAY, requestId, flags, 0, start, done, total);
+            }
+        });
+
+        int responseCode;
+        if(result.getFailed() > 0)
+            responseCode = RESPONSE_NETWORK_ERROR;
+        else if(result.getNotPosted() > 0)
+            responseCode = RESPONSE_NOT_POSTED_YET;
+        else
+            responseCode = RESPONSE_OKAY;
+
+        dispatchPrefetchIntent(con, responseCode, requestId, flags, FLAG_PREFETCH_COMPLETE, start,
+                result.getCached() + result.getFetched(), result.getTotal());
+    }
+
+    private static void dispatchPrefetchIntent(Context con, int responseCode, long requestId, int flags, int respFlags, Calendar date, int done, int total) {
+        sendResult(con, new StockResult(responseCode, requestId, flags, respFlags, date, done, total));
     }
     
-    private void dispatchIntent(int responseCode, long requestId, int flags, int respFlags, Calendar date, Graticule graticule, Info info, Info[] nearby) {
+    private static void dispatchCancelled(Context con, Request req) {
+        dispatchIntent(con, RESPONSE_CANCELLED, req.mId, req.mFlags, 0, req.mCal, req.mGraticule, null, null);
+    }
+
+    private static void dispatchIntent(Context con, int responseCode, long requestId, int flags, int respFlags, Calendar date, Graticule graticule, Info info, Info[] nearby) {
         // Welcome to central Intent dispatch.  How may I help you?
+        sendResult(con, new StockResult(responseCode, requestId, flags, respFlags, date, graticule, info, nearby));
+    }
+
+    private static void sendResult(Context con, StockResult result) {
+        // Anyone listening in this process gets the result as-is.  That's
+        // usually CentralMap, and it doesn't need everything packed into a
+        // Bundle just so it can unpack it all again.
+        boolean delivered = StockResult.deliver(result);
+
+        // The alarm still needs a broadcast, since that's what wakes up
+        // AlarmService.  And if nobody's listening here, send it out anyway,
+        // just in case anyone's listening the old-fashioned way.
+        if(delivered && (result.getRequestFlags() & FLAG_ALARM) == 0) return;
+
         Intent intent = new Intent(ACTION_STOCK_RESULT);
+        intent.putExtra(EXTRA_STUFF, makeResultBundle(result));
+        
+        // And away it goes!
+        Log.d(DEBUG_TAG, "Dispatching intent...");
+        con.sendBroadcast(intent);
+    }
 
+    private static Bundle makeResultBundle(StockResult result) {
         // Stuff all the extras into a Bundle.  There's ClassLoader issues on
         // some devices that require us to do it this way (see comments on
         // EXTRA_STUFF).
         Bundle bun = new Bundle();
-        bun.putInt(EXTRA_RESPONSE_CODE, responseCode);
-        bun.putLong(EXTRA_REQUEST_ID, requestId);
-        bun.putInt(EXTRA_REQUEST_FLAGS, flags);
-        bun.putInt(EXTRA_RESPONSE_FLAGS, respFlags);
-        bun.putSerializable(EXTRA_DATE, date);
-        bun.putParcelable(EXTRA_GRATICULE, graticule);
-        bun.putParcelable(EXTRA_INFO, info);
+        bun.putInt(EXTRA_RESPONSE_CODE, result.getResponseCode());
+        bun.putLong(EXTRA_REQUEST_ID, result.getRequestId());
+        bun.putInt(EXTRA_REQUEST_FLAGS, result.getRequestFlags());
+        bun.putInt(EXTRA_RESPONSE_FLAGS, result.getResponseFlags());
+        bun.putSerializable(EXTRA_DATE, result.getCalendar());
+        bun.putParcelable(EXTRA_GRATICULE, result.getGraticule());
+        bun.putParcelable(EXTRA_INFO, result.getInfo());
+
+        // The nearby points can run to a few dozen Infos.  As one small blob,
+        // that's one allocation on either end instead of a few dozen.
+        Info[] nearby = result.getNearbyPoints();
         if(nearby != null && nearby.length != 0) {
-            bun.putParcelableArray(EXTRA_NEARBY_POINTS, nearby);
+            bun.putByteArray(EXTRA_NEARBY_POINTS, Info.encodeArray(nearby));
         }
 
-        intent.putExtra(EXTRA_STUFF, bun);
-        
-        // And away it goes!
-        Log.d(DEBUG_TAG, "Dispatching intent...");
-        sendBroadcast(intent);
+        if((result.getRequestFlags() & FLAG_PREFETCH) != 0) {
+            bun.putInt(EXTRA_PREFETCH_DONE, result.getPrefetchDone());
+            bun.putInt(EXTRA_PREFETCH_TOTAL, result.getPrefetchTotal());
+        }
+
+        return bun;
     }
 
-    private Info[] getNearbyPoints(Calendar cal, Graticule g) {
+    private static Info[] getNearbyPoints(Context con, Calendar cal, Graticule g) {
         if(g == null) return new Info[0];
 
-        List<Info> infos = new LinkedList<>();
-
-        // Hopefully, each nearby point is available.  In addition to cases
-        // involving the poles, I *think* there's cases where a 30W point IS
-        // available, but a neighboring non-30W point ISN'T.  We'll just ignore
-        // those cases.
-        for(int i = -1; i <= 1; i++) {
-            for(int j = -1; j <= 1; j++) {
-                // Zero and zero isn't a nearby point, that's the very point
-                // we're at right now!
-                if(i == 0 && j == 0) continue;
-
-                // If the user's truly adventurous enough to go to the 90N/S
-                // graticules, there aren't any nearby points north/south of
-                // where they are.  Also, the nearby points aren't going to
-                // be drawn anyway due to the projection, but hey, that's
-                // nitpicking.
-                if(Math.abs((g.isSouth() ? -1 : 1) * g.getLatitude() + i) > 90)
-                    continue;
-
-                // Make a new Graticule, properly offset...
-                Graticule offset = Graticule.createOffsetFrom(g, i, j);
-
-                // ...then do the request.  Check the cache first!
-                Info info = HashBuilder.getStoredInfo(this, cal, offset);
-                if(info == null) {
-                    // It's not in the cache.  Try to make it be in the cache.
-                    StockRunner runner = HashBuilder.requestStockRunner(this, cal, offset, null);
-                    runner.runStock();
-
-                    if(runner.getStatus() == HashBuilder.StockRunner.ALL_OKAY) {
-                        // We've got a winner!
-                        info = runner.getLastResultObject();
-                    }
-                    // We'll just ignore it if not.  The user doesn't need to be
-                    // bugged about cache failures or whatnot, they already got
-                    // what they were looking for.
-                }
+        // On any given day, there's only ever two hashes, one for each side of
+        // the 30W line.  Every nearby point is just one of those stuck onto a
+        // different graticule.  The one for this graticule's side is already
+        // in the cache (we just got it), so the only thing that could need
+        // fetching is the other side, and only if the neighborhood actually
+        // crosses the line.
+        int radius = getNearbyRadius(con);
+        double[] fractions = new double[4];
+        HashBuilder.getStoredSideFractions(con, cal, fractions);
 
-                // Now, add that to the array, if it's not null...
-                if(info != null)
-                    infos.add(info);
+        Graticule other = getMissingSide(g, radius, fractions);
+        if(other != null) {
+            StockRunner runner = HashBuilder.requestStockRunner(con, cal, other, null);
+            runner.runStock();
 
-                // And continue on!
-            }
+            // If it didn't work, that side just doesn't get any nearby
+            // points.  The user doesn't need to be bugged about it, they
+            // already got what they were looking for.
+            if(runner.getStatus() == HashBuilder.StockRunner.ALL_OKAY)
+                HashBuilder.getStoredSideFractions(con, cal, fractions);
         }
 
-        Info[] toReturn = new Info[8];
-        return infos.toArray(toReturn);
+        return BulkHashpoints.calculateNearby(fractions, cal, g, radius);
+    }
+
+    private static Graticule getMissingSide(Graticule g, int radius, double[] fractions) {
+        // This is the graticule to fetch if the neighborhood crosses the 30W
+        // line and the other side's hash isn't known yet, or null if there's
+        // nothing to fetch.
+        Graticule other = BulkHashpoints.findOtherSide(g, radius);
+        if(other == null) return null;
+
+        int side = other.uses30WRule() ? BulkHashpoints.SIDE_30W : BulkHashpoints.SIDE_NON_30W;
+        return Double.isNaN(fractions[side]) ? other : null;
+    }
+
+    private static int getNearbyRadius(Context con) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(con);
+
+        try {
+            return Integer.parseInt(prefs.getString(GHDConstants.PREF_NEARBY_RADIUS, "1"));
+        } catch(NumberFormatException nfe) {
+            return 1;
+        }
     }
 }
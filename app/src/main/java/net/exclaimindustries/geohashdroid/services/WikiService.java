@@ -36,10 +36,10 @@ import net.exclaimindustries.geohashdroid.wiki.WikiImageUtils;
 import net.exclaimindustries.geohashdroid.wiki.WikiUtils;
 import net.exclaimindustries.tools.AndroidUtil;
 import net.exclaimindustries.tools.DateTools;
+import net.exclaimindustries.tools.HttpConnectionPool;
 import net.exclaimindustries.tools.QueueService;
 
 import org.apache.http.client.HttpClient;
-import org.apache.http.impl.client.DefaultHttpClient;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -205,8 +205,9 @@ public class WikiService extends QueueService {
             return ReturnCode.CONTINUE;
         }
 
-        // Prep an HttpClient for later...
-        HttpClient client = new DefaultHttpClient();
+        // Prep an HttpClient for later...  This shares its connections with
+        // everything else, but gets its own cookies for the login.
+        HttpClient client = HttpConnectionPool.newClient();
 
         // To Preferences!
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
@@ -0,0 +1,351 @@
+/**
+ * BulkHashpoints.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.util.Calendar;
+
+/**
+ * <p>
+ * <code>BulkHashpoints</code> works out the final destinations for a whole lot
+ * of graticules at once.  On any given day, there are only ever two distinct
+ * hashes in play: one for graticules following the 30W Rule, and one for
+ * those that don't.  Everything else is just sticking the graticule's integer
+ * part in front of the fraction, so there's no need to build an Info for
+ * every single graticule on a continent.
+ * </p>
+ *
+ * <p>
+ * The fractions for each side come in as a four-element array, laid out as
+ * per {@link #SIDE_NON_30W} and {@link #SIDE_30W}.  The results go out as one
+ * big array of latitude/longitude pairs, in the same order as the graticules
+ * went in (or, for a box, row by row from south to north, and west to east
+ * within each row).  If a side's fractions are NaN (that is, that side's hash
+ * isn't known), every graticule on that side gets NaN coordinates.
+ * </p>
+ *
+ * <p>
+ * Boxes are given in terms of index space, the same thing Graticule uses for
+ * parceling: latitude indices go from 0 (89S) to 179 (89N), longitude indices
+ * from 0 (179W) to 359 (179E), with the negative zero graticules getting
+ * their own spots.  A box whose western edge is east of its eastern edge
+ * wraps around the 180 line.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public final class BulkHashpoints {
+    /** Offset in a side fraction array of the hash for non-30W graticules. */
+    public static final int SIDE_NON_30W = 0;
+    /** Offset in a side fraction array of the hash for 30W graticules. */
+    public static final int SIDE_30W = 2;
+
+    /** Number of latitude indices (89S to 89N, counting both zeroes). */
+    public static final int LATITUDE_INDICES = 180;
+    /** Number of longitude indices (179W to 179E, counting both zeroes). */
+    public static final int LONGITUDE_INDICES = 360;
+
+    /**
+     * The widest ring of nearby graticules it'll work out, in graticules out
+     * from the center.  1 is the usual 3x3 block, 3 is 7x7.
+     */
+    public static final int MAX_NEARBY_RADIUS = 3;
+
+    // Longitude index of 29W, the first graticule (heading east) that falls
+    // under the 30W Rule.
+    private static final int FIRST_30W_LONGITUDE_INDEX = 179 - 29;
+
+    // Nope, this is all static, too.
+    private BulkHashpoints() { }
+
+    /**
+     * Gets the latitude index of a Graticule.
+     *
+     * @param g Graticule in question
+     * @return its latitude index (0-179)
+     */
+    public static int latitudeIndex(Graticule g) {
+        return g.isSouth() ? 89 - g.getLatitude() : g.getLatitude() + 90;
+    }
+
+    /**
+     * Gets the longitude index of a Graticule.
+     *
+     * @param g Graticule in question
+     * @return its longitude index (0-359)
+     */
+    public static int longitudeIndex(Graticule g) {
+        return g.isWest() ? 179 - g.getLongitude() : g.getLongitude() + 180;
+    }
+
+    /**
+     * Makes a Graticule out of its indices.
+     *
+     * @param latIndex latitude index (0-179)
+     * @param lonIndex longitude index (0-359)
+     * @return a new Graticule
+     */
+    public static Graticule graticuleAt(int latIndex, int lonIndex) {
+        return new Graticule(latIndex < 90 ? 89 - latIndex : latIndex - 90, latIndex < 90,
+                lonIndex < 180 ? 179 - lonIndex : lonIndex - 180, lonIndex < 180);
+    }
+
+    /**
+     * Determines if a graticule at the given longitude index follows the 30W
+     * Rule.  This is the same as {@link Graticule#uses30WRule()}.
+     *
+     * @param lonIndex longitude index
+     * @return true if 30W, false if not
+     */
+    public static boolean uses30WRule(int lonIndex) {
+        return lonIndex >= FIRST_30W_LONGITUDE_INDEX;
+    }
+
+    /**
+     * Works out how many graticules are in the given box, wrapping around the
+     * 180 line if need be.
+     *
+     * @param southIndex latitude index of the southernmost row
+     * @param northIndex latitude index of the northernmost row
+     * @param westIndex longitude index of the westernmost column
+     * @param eastIndex longitude index of the easternmost column
+     * @return the number of graticules in the box (0 if south is north of
+     *         north)
+     */
+    public static int boxSize(int southIndex, int northIndex, int westIndex, int eastIndex) {
+        if(northIndex < southIndex) return 0;
+        return (northIndex - southIndex + 1) * boxWidth(westIndex, eastIndex);
+    }
+
+    /**
+     * Calculates the final destinations for every graticule in the box
+     * bounded by the two given corner Graticules, inclusive.
+     *
+     * @param sideFractions the four hash fractions (see the class docs)
+     * @param southwest the southwest corner
+     * @param northeast the northeast corner
+     * @return a new array of latitude/longitude pairs
+     */
+    public static double[] calculateBox(double[] sideFractions, Graticule southwest, Graticule northeast) {
+        int south = latitudeIndex(southwest);
+        int north = latitudeIndex(northeast);
+        int west = longitudeIndex(southwest);
+        int east = longitudeIndex(northeast);
+
+        double[] dest = new double[boxSize(south, north, west, east) * 2];
+        calculateBox(sideFractions, south, north, west, east, dest, 0);
+        return dest;
+    }
+
+    /**
+     * Calculates the final destinations for every graticule in the given box
+     * of indices, inclusive, and writes them out as latitude/longitude pairs.
+     * dest needs room for {@link #boxSize(int, int, int, int)} pairs.
+     *
+     * @param sideFractions the four hash fractions (see the class docs)
+     * @param southIndex latitude index of the southernmost row
+     * @param northIndex latitude index of the northernmost row
+     * @param westIndex longitude index of the westernmost column
+     * @param eastIndex longitude index of the easternmost column
+     * @param dest array to receive the coordinates
+     * @param offset where in dest to start
+     * @return the number of graticules that got real coordinates (that is,
+     *         weren't NaN)
+     */
+    public static int calculateBox(double[] sideFractions,
+                                   int southIndex, int northIndex,
+                                   int westIndex, int eastIndex,
+                                   double[] dest, int offset) {
+        if(northIndex < southIndex) return 0;
+
+        int width = boxWidth(westIndex, eastIndex);
+        int valid = 0;
+
+        // Longitudes are the same for every row, and there's only two
+        // fractions they could use, so we only need to figure out the columns
+        // once.  Write the first row's longitudes in, then copy them down to
+        // every other row.
+        int pos = offset;
+        for(int col = 0; col < width; col++) {
+            int lonIndex = (westIndex + col) % LONGITUDE_INDICES;
+            dest[pos + 1] = longitude(lonIndex, lonFraction(sideFractions, lonIndex));
+            pos += 2;
+        }
+
+        for(int latIndex = southIndex; latIndex <= northIndex; latIndex++) {
+            int rowStart = offset + (latIndex - southIndex) * width * 2;
+
+            if(rowStart != offset) {
+                for(int col = 0; col < width; col++)
+                    dest[rowStart + col * 2 + 1] = dest[offset + col * 2 + 1];
+            }
+
+            for(int col = 0; col < width; col++) {
+                int lonIndex = (westIndex + col) % LONGITUDE_INDICES;
+                double lat = latitude(latIndex, latFraction(sideFractions, lonIndex));
+                dest[rowStart + col * 2] = lat;
+                if(!Double.isNaN(lat)) valid++;
+            }
+        }
+
+        return valid;
+    }
+
+    /**
+     * Calculates the final destinations for each of the given Graticules.
+     * null Graticules (globalhashes) don't make sense here and will get NaN
+     * coordinates.
+     *
+     * @param sideFractions the four hash fractions (see the class docs)
+     * @param graticules the Graticules in question
+     * @return a new array of latitude/longitude pairs
+     */
+    public static double[] calculate(double[] sideFractions, Graticule[] graticules) {
+        double[] dest = new double[graticules.length * 2];
+        calculate(sideFractions, graticules, dest, 0);
+        return dest;
+    }
+
+    /**
+     * Calculates the final destinations for each of the given Graticules and
+     * writes them out as latitude/longitude pairs.
+     *
+     * @param sideFractions the four hash fractions (see the class docs)
+     * @param graticules the Graticules in question
+     * @param dest array to receive the coordinates
+     * @param offset where in dest to start
+     * @return the number of graticules that got real coordinates
+     */
+    public static int calculate(double[] sideFractions, Graticule[] graticules, double[] dest, int offset) {
+        int valid = 0;
+        int pos = offset;
+
+        for(Graticule g : graticules) {
+            if(g == null) {
+                dest[pos] = Double.NaN;
+                dest[pos + 1] = Double.NaN;
+            } else {
+                int lonIndex = longitudeIndex(g);
+                dest[pos] = latitude(latitudeIndex(g), latFraction(sideFractions, lonIndex));
+                dest[pos + 1] = longitude(lonIndex, lonFraction(sideFractions, lonIndex));
+                if(!Double.isNaN(dest[pos])) valid++;
+            }
+            pos += 2;
+        }
+
+        return valid;
+    }
+
+    /**
+     * Finds a graticule within the given radius of the center that's on the
+     * other side of the 30W line from it, if there is one.  If there isn't,
+     * the center's hash is the only one the whole neighborhood needs.  Note
+     * that this doesn't care about the date; before the 30W Rule, both sides
+     * have the same hash anyway.
+     *
+     * @param center the Graticule in the middle
+     * @param radius how many graticules out from the center to look
+     * @return a Graticule on the other side of the line, or null if there
+     *         isn't one that close
+     */
+    public static Graticule findOtherSide(Graticule center, int radius) {
+        radius = clampRadius(radius);
+        int latIndex = latitudeIndex(center);
+        int lonIndex = longitudeIndex(center);
+        boolean centerSide = uses30WRule(lonIndex);
+
+        for(int col = -radius; col <= radius; col++) {
+            int index = (lonIndex + col + LONGITUDE_INDICES) % LONGITUDE_INDICES;
+            if(uses30WRule(index) != centerSide)
+                return graticuleAt(latIndex, index);
+        }
+
+        return null;
+    }
+
+    /**
+     * Works out the Infos for every graticule within the given radius of the
+     * center (not counting the center itself), all from the two side hashes.
+     * Rows past the poles are left out, as is anything on a side whose hash
+     * is NaN.  They come out row by row from south to north, and west to east
+     * within each row.
+     *
+     * @param sideFractions the four hash fractions (see the class docs)
+     * @param c the date (the REAL date, same as for the center's Info)
+     * @param center the Graticule in the middle
+     * @param radius how many graticules out from the center to go (1 to
+     *               {@link #MAX_NEARBY_RADIUS})
+     * @return the nearby Infos
+     */
+    public static Info[] calculateNearby(double[] sideFractions, Calendar c, Graticule center, int radius) {
+        radius = clampRadius(radius);
+        int latIndex = latitudeIndex(center);
+        int lonIndex = longitudeIndex(center);
+
+        int south = Math.max(latIndex - radius, 0);
+        int north = Math.min(latIndex + radius, LATITUDE_INDICES - 1);
+        int west = (lonIndex - radius + LONGITUDE_INDICES) % LONGITUDE_INDICES;
+        int east = (lonIndex + radius) % LONGITUDE_INDICES;
+        int width = radius * 2 + 1;
+
+        double[] coords = new double[boxSize(south, north, west, east) * 2];
+        calculateBox(sideFractions, south, north, west, east, coords, 0);
+
+        Info[] nearby = new Info[coords.length / 2];
+        int count = 0;
+        int pos = 0;
+
+        for(int row = south; row <= north; row++) {
+            for(int col = 0; col < width; col++, pos += 2) {
+                // The center isn't nearby, it's the center.
+                if(row == latIndex && col == radius) continue;
+                if(Double.isNaN(coords[pos])) continue;
+
+                nearby[count++] = new Info(coords[pos], coords[pos + 1],
+                        graticuleAt(row, (west + col) % LONGITUDE_INDICES), c);
+            }
+        }
+
+        Info[] toReturn = new Info[count];
+        System.arraycopy(nearby, 0, toReturn, 0, count);
+        return toReturn;
+    }
+
+    private static int clampRadius(int radius) {
+        return Math.max(1, Math.min(radius, MAX_NEARBY_RADIUS));
+    }
+
+    private static int boxWidth(int westIndex, int eastIndex) {
+        return (eastIndex >= westIndex)
+                ? eastIndex - westIndex + 1
+                : LONGITUDE_INDICES - westIndex + eastIndex + 1;
+    }
+
+    private static double latFraction(double[] sideFractions, int lonIndex) {
+        return sideFractions[(uses30WRule(lonIndex) ? SIDE_30W : SIDE_NON_30W) + HashCalculator.LATITUDE];
+    }
+
+    private static double lonFraction(double[] sideFractions, int lonIndex) {
+        return sideFractions[(uses30WRule(lonIndex) ? SIDE_30W : SIDE_NON_30W) + HashCalculator.LONGITUDE];
+    }
+
+    private static double latitude(int latIndex, double fraction) {
+        // These work out to the same thing HashBuilder does for an Info, down
+        // to the last bit.
+        if(latIndex < 90)
+            return ((89 - latIndex) + fraction) * -1;
+        else
+            return (latIndex - 90) + fraction;
+    }
+
+    private static double longitude(int lonIndex, double fraction) {
+        if(lonIndex < 180)
+            return ((179 - lonIndex) + fraction) * -1;
+        else
+            return (lonIndex - 180) + fraction;
+    }
+}
@@ -42,10 +42,24 @@ public final class GHDConstants {
     public static final String PREF_AUTOZOOM = "AutoZoom";
     /** Prefs key specifying info box visibility. */
     public static final String PREF_INFOBOX = "InfoBox";
-    /** Prefs key specifying stock cache size. */
+    /**
+     * Prefs key specifying how many days stocks and hashes stay in the stock
+     * cache after they're stored.
+     */
     public static final String PREF_STOCK_CACHE_SIZE = "StockCacheSize";
+    /**
+     * Prefs key holding when the stock cache was last pruned (wall-clock
+     * milliseconds).  This one's for StockStoreDatabase's own bookkeeping, not
+     * for the user.
+     */
+    public static final String PREF_STOCK_CACHE_LAST_PRUNE = "StockCacheLastPrune";
     /** Prefs key specifying to show nearby meetup points. */
     public static final String PREF_NEARBY_POINTS = "NearbyPoints";
+    /**
+     * Prefs key specifying how many graticules out from the current one to
+     * show nearby meetup points for (1 for 3x3, 2 for 5x5, 3 for 7x7).
+     */
+    public static final String PREF_NEARBY_RADIUS = "NearbyRadius";
     /** Prefs key specifying wiki user name. */
     public static final String PREF_WIKI_USER = "WikiUserName";
     /** Prefs key specifying wiki user pass. */
@@ -67,6 +81,12 @@ public final class GHDConstants {
      * the name's from an older time when AlarmService was called StockService.
      */
     public static final String PREF_STOCK_ALARM = "UseStockService";
+    /**
+     * Prefs key specifying where stocks get cached.  This is read when the
+     * stock cache is first opened, so it won't change anything until the next
+     * time the app starts.
+     */
+    public static final String PREF_STOCK_STORE = "StockStore";
 
     /** Prefs value for metric distances. */
     public static final String PREFVAL_DIST_METRIC = "Metric";
@@ -80,6 +100,11 @@ public final class GHDConstants {
     /** Prefs value for coordinates in minutes and seconds. */
     public static final String PREFVAL_COORD_SECONDS = "Seconds";
     
+    /** Prefs value for caching stocks in the database. */
+    public static final String PREFVAL_STOCK_STORE_DATABASE = "Database";
+    /** Prefs value for caching stocks in a memory-mapped file. */
+    public static final String PREFVAL_STOCK_STORE_MAPPED = "Mapped";
+    
     /** Threshold for the "Accuracy Low" warning (currently 64m). **/
     public static final int LOW_ACCURACY_THRESHOLD = 64;
     /** Threshold for the "Accuracy Really Low" warning (currently 200m). **/
@@ -33,6 +33,13 @@ import android.os.Parcelable;
  * @author Nicholas Killewald
  */
 public class Graticule implements Parcelable {
+    /**
+     * How many different values {@link #pack()} can return.  Everything from
+     * zero up to (but not including) this is a Graticule.  It's small enough
+     * to fit in a char.
+     */
+    public static final int PACKED_COUNT = 180 * 360;
+
     private int mLatitude;
     private int mLongitude;
 
@@ -213,6 +220,67 @@ public class Graticule implements Parcelable {
         return new Graticule(finalLat, finalSouth, finalLon, finalWest);
     }
     
+    /**
+     * <p>
+     * Packs this Graticule into a single int, from zero to
+     * {@link #PACKED_COUNT} minus one.  That's the latitude from 0-179 and
+     * the longitude from 0-359, going from 89 south to 89 north and 179 west
+     * to 179 east (both including a negative zero), as latitude * 360 +
+     * longitude.
+     * </p>
+     *
+     * <p>
+     * It's the same numbering the Parcel uses, and it's what goes in
+     * {@link Info}'s compact encoding.
+     * </p>
+     *
+     * @return this Graticule, packed
+     */
+    public int pack() {
+        int absLat = mSouth ? 89 - mLatitude : mLatitude + 90;
+        int absLon = mWest ? 179 - mLongitude : mLongitude + 180;
+
+        return absLat * 360 + absLon;
+    }
+
+    /**
+     * Unpacks a Graticule from {@link #pack()}.
+     *
+     * @param packed the packed Graticule
+     * @return a new Graticule
+     * @throws IllegalArgumentException packed isn't from zero to
+     *                                  {@link #PACKED_COUNT} minus one
+     */
+    public static Graticule unpack(int packed) {
+        if(packed < 0 || packed >= PACKED_COUNT)
+            throw new IllegalArgumentException("Packed Graticule " + packed + " is out of range");
+
+        Graticule g = new Graticule(0, false, 0, false);
+        g.setFromPacked(packed);
+        return g;
+    }
+
+    private void setFromPacked(int packed) {
+        int absLat = packed / 360;
+        int absLon = packed % 360;
+
+        if(absLat < 90) {
+            mSouth = true;
+            setLatitude(89 - absLat);
+        } else {
+            mSouth = false;
+            setLatitude(absLat - 90);
+        }
+        
+        if(absLon < 180) {
+            mWest = true;
+            setLongitude(179 - absLon);
+        } else {
+            mWest = false;
+            setLongitude(absLon - 180);
+        }
+    }
+    
     /**
      * Deparcelizinate a Graticule.
      * 
@@ -239,31 +307,11 @@ public class Graticule implements Parcelable {
      * @param in parcel to deparcelize
      */
     public void readFromParcel(Parcel in) {
-        // For the sake of efficiency, we store exactly two things in the
-        // parcel.  Specifically, the latitude and longitude, represented from
-        // 0-179 and 0-356, respectively, going from 89 south to 89 north and
-        // 179 west to 179 east (both including a negative zero).  We can
-        // determine mSouth and mWest from there.
-        int absLat = in.readInt();
-        int absLon = in.readInt();
-        
-        // I swear, if these wind up not being valid, I reserve the right to
-        // dope slap you.
-        if(absLat < 90) {
-            mSouth = true;
-            setLatitude(89 - absLat);
-        } else {
-            mSouth = false;
-            setLatitude(absLat - 90);
-        }
-        
-        if(absLon < 180) {
-            mWest = true;
-            setLongitude(179 - absLon);
-        } else {
-            mWest = false;
-            setLongitude(absLon - 180);
-        }
+        // For the sake of efficiency, we store exactly one thing in the
+        // parcel: the packed form (see pack()).  We can determine everything
+        // else from there.  I swear, if it winds up not being valid, I reserve
+        // the right to dope slap you.
+        setFromPacked(in.readInt());
     }
     
     @Override
@@ -274,20 +322,9 @@ public class Graticule implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        // Hey!  We've got a parcel to write out!  To compress this down a bit
-        // further, we want to only store two ints (instead of two ints and two
-        // booleans).  See the comments in readFromParcel for details.  To wit:
-        
-        // Latitude!
-        if(mSouth)
-            dest.writeInt(Math.abs(mLatitude - 89));
-        else
-            dest.writeInt(mLatitude + 90);
-        
-        if(mWest)
-            dest.writeInt(Math.abs(mLongitude - 179));
-        else
-            dest.writeInt(mLongitude + 180);
+        // Hey!  We've got a parcel to write out!  To compress this down as far
+        // as it'll go, it's just the one int.  See pack() for details.
+        dest.writeInt(pack());
     }
 
     /**
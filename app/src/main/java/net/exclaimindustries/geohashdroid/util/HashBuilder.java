@@ -7,28 +7,35 @@
  */
 package net.exclaimindustries.geohashdroid.util;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
+import java.io.InterruptedIOException;
+import java.io.Reader;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import net.exclaimindustries.tools.DateTools;
-import net.exclaimindustries.tools.HexFraction;
+import net.exclaimindustries.tools.CharToByte;
+import net.exclaimindustries.tools.HttpConnectionPool;
 import net.exclaimindustries.tools.MD5Tools;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.Message;
 import android.os.PowerManager;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 /**
@@ -54,26 +61,138 @@ import android.util.Log;
  */
 public class HashBuilder {
     
-    // This is used as the lock to prevent multiple requests from happening at
-    // once.  This really shouldn't ever happen, but just in case.
-    private static final Object locker = new Object();
-    
     private static final String DEBUG_TAG = "HashBuilder";
     
-    private static StockStoreDatabase mStore;
-    // This set allows for quick reloading of the most recent stock and hash in
-    // a given instance of the program, bypassing the SQLite database, as well
-    // as allow for a small cache even if the SQLite database is turned off by
-    // preferences.
-    private static Info mLastInfo;
-    private static Info mTwoInfosAgo;
+    // Stock fetches currently in flight, keyed by stock day (see StockDay).
+    // Any StockRunner that needs a stock that's already being fetched just
+    // waits on that fetch instead of starting its own.
+    private static final ConcurrentHashMap<Integer, StockFlight> mFlights = new ConcurrentHashMap<>();
+    
+    // The flights themselves run here, so that whoever started one can give up
+    // on it without taking it away from anyone else waiting on it.  Each one
+    // starts on the same first mirror, so there's no point in more flights at
+    // once than there are connections to one server.  Any more just wait in
+    // line (along with whoever's waiting on them).
+    private static final ThreadPoolExecutor mFlightExecutor = new ThreadPoolExecutor(
+            HttpConnectionPool.MAX_PER_ROUTE, HttpConnectionPool.MAX_PER_ROUTE,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        mFlightExecutor.allowCoreThreadTimeOut(true);
+    }
+    
+    private static volatile StockStore mStore;
+
+    // How many date/30W combinations the quick cache holds.  That's a couple
+    // weeks' worth of flipping around both sides of the 30W line, which should
+    // cover just about anything short of a batch job.
+    private static final int QUICKCACHE_SIZE = 16;
+
+    // This allows for quick reloading of the most recent hashes in a given
+    // instance of the program, bypassing the SQLite database, as well as allow
+    // for a small cache even if the SQLite database is turned off by
+    // preferences.  It has its own locking, so nobody needs to synchronize on
+    // HashBuilder to read from it.
+    private static final QuickCache mQuickCache = new QuickCache(QUICKCACHE_SIZE);
+
+    // How the stock mirrors have been doing.  This gets loaded from the
+    // database the first time it's needed and written back after each fetch.
+    private static volatile MirrorHealth mMirrorHealth;
+
+    /**
+     * A <code>StockFlight</code> is one stock fetch in flight, shared by every
+     * StockRunner that wants that stock.  Each of those waits on its own latch,
+     * which gets tripped when the fetch is done.  If everyone waiting gives up
+     * (aborts), the fetch itself is aborted, and the next StockRunner to come
+     * along starts a new one.
+     */
+    private static class StockFlight extends FutureTask<String> {
+        private final int mStockDay;
+        private final MirrorFetch mFetch;
+        private final List<CountDownLatch> mWaiters = new ArrayList<>();
+        private boolean mClosed = false;
+
+        StockFlight(final Context con, final int stockDay, final MirrorFetch fetch) {
+            super(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    String stock;
+                    try {
+                        stock = fetch.run();
+                    } finally {
+                        // However it went, the mirrors' stats changed.
+                        storeMirrorHealth(con);
+                    }
+
+                    // If this didn't throw an exception AND it's not blank,
+                    // stash it in the database.  That's the only part that
+                    // needs a lock.
+                    if(stock.trim().length() != 0)
+                        storeStock(con, stockDay, stock);
+
+                    return stock;
+                }
+            });
+
+            mStockDay = stockDay;
+            mFetch = fetch;
+        }
+
+        /**
+         * Starts waiting on this flight.  The latch gets tripped when it's
+         * done (or right away if it already is).
+         *
+         * @param wake latch to trip
+         * @return true if joined, false if this flight was abandoned and a new
+         *         one is needed
+         */
+        synchronized boolean join(CountDownLatch wake) {
+            if(mClosed) return false;
+
+            if(isDone())
+                wake.countDown();
+            else
+                mWaiters.add(wake);
+
+            return true;
+        }
+
+        /**
+         * Stops waiting on this flight.  If nobody else is waiting, the fetch
+         * gets aborted.
+         *
+         * @param wake the latch given to join
+         */
+        synchronized void leave(CountDownLatch wake) {
+            mWaiters.remove(wake);
+
+            if(mWaiters.isEmpty() && !isDone() && !mClosed) {
+                Log.v(DEBUG_TAG, "Nobody's waiting on the fetch for " + StockDay.toDateKey(mStockDay) + " anymore, aborting it...");
+                mClosed = true;
+                mFlights.remove(mStockDay, this);
+                mFetch.abort();
+            }
+        }
+
+        @Override
+        protected void done() {
+            mFlights.remove(mStockDay, this);
+
+            synchronized(this) {
+                for(CountDownLatch wake : mWaiters)
+                    wake.countDown();
+                mWaiters.clear();
+            }
+        }
+    }
 
     /**
      * <code>StockRunner</code> is what fetches the stocks.  It can be run as a
      * separate thread where it will respond to the given Handler or in
      * single-thread mode where you need to pull the data from the StockRunner
-     * when it's done.  Only one will run at a time for purposes of the stock
-     * cache database remaining sane.  Once it has the data, it'll go back to
+     * when it's done.  Any number can run at once; if two or more need the
+     * same stock at the same time, they share one fetch.  Once it has the
+     * data, it'll go back to
      * the static methods of HashBuilder to make the Info bundle and put it in
      * the cache.
      */
@@ -108,13 +227,21 @@ public class HashBuilder {
          * The user aborted the request.
          */
         public static final int ABORTED = 5;
+        
+        /**
+         * How long, by default, to wait on one mirror before also trying the
+         * next, in milliseconds.
+         */
+        public static final long DEFAULT_HEDGE_DELAY = 1500;
     
         private Context mContext;
         private Calendar mCal;
         private Graticule mGrat;
         private Handler mHandler;
-        private HttpGet mRequest;
-        private int mStatus;
+        private volatile StockFlight mFlight;
+        private volatile CountDownLatch mWake;
+        private long mHedgeDelay = DEFAULT_HEDGE_DELAY;
+        private volatile int mStatus;
         private Info mLastObject;
         private PowerManager.WakeLock mWakeLock;
         
@@ -126,6 +253,12 @@ public class HashBuilder {
         private final static String[] mServers = { "http://geo.crox.net/djia/%Y/%m/%d",
             "http://irc.peeron.com/xkcd/map/data/%Y/%m/%d"};
 
+        // Mirrors that can answer for a whole range of dates at once, for
+        // StockPrefetch.  See that for the template and response format.
+        // None of the current mirrors do this, so it's empty for now, and
+        // prefetches go one day at a time.
+        private final static String[] mRangeServers = {};
+
         
         private StockRunner(Context con, Calendar c, Graticule g, Handler h) {
             mContext = con;
@@ -183,51 +316,49 @@ public class HashBuilder {
             // range of the 30W rule.  To that end, sCal is for stock calendar.
             Calendar sCal = Info.makeAdjustedCalendar(mCal, mGrat);
             
-            // Grab a lock on our lock object.
-            synchronized(locker) {
-                // First, if this exists in the cache, use it instead of going
-                // off to the internet.  This method uses the ACTUAL date, so
-                // we can ignore sCal for now.
-                toReturn = getStoredInfo(mContext, mCal, mGrat);
-                if(toReturn != null) {
-                    // Hey, whadya know, we've got something!  Send this data
-                    // back to the Handler and return!
-                    mStatus = ALL_OKAY;
-                    sendMessage(toReturn);
+            // No locks here.  The caches can look after themselves, and if we
+            // need to go to the internet, we'll share the trip with anyone else
+            // after the same stock.
+            
+            // First, if this exists in the cache, use it instead of going off
+            // to the internet.  This method uses the ACTUAL date, so we can
+            // ignore sCal for now.
+            toReturn = getStoredInfo(mContext, mCal, mGrat);
+            if(toReturn != null) {
+                // Hey, whadya know, we've got something!  Send this data back
+                // to the Handler and return!
+                mStatus = ALL_OKAY;
+                sendMessage(toReturn);
+                return;
+            }
+            
+            // If that failed, we need a stock price.  First, check to see if
+            // it's in the database.
+            int stockDay = StockDay.fromCalendar(sCal);
+            stock = getStoredStock(mContext, stockDay);
+            
+            // If we found something, great!  Let's move on!
+            if(stock == null) {
+                // Otherwise, we need to start heading off to the net.
+                mStatus = BUSY;
+                try {
+                    stock = fetchStock(stockDay);
+                } catch (FileNotFoundException fnfe) {
+                    // If we got a 404, assume it's not posted yet.
+                    mStatus = ERROR_NOT_POSTED;
+                    sendMessage(createInvalidInfo(mCal, mGrat));
+                    return;
+                } catch (IOException ioe) {
+                    // If we got anything else, assume a problem.
+                    mStatus = ERROR_SERVER;
+                    sendMessage(createInvalidInfo(mCal, mGrat));
                     return;
                 }
                 
-                // If that failed, we need a stock price.  First, check to see
-                // if it's in the database.  
-                stock = getStoredStock(mContext, sCal);
-                
-                // If we found something, great!  Let's move on!
-                if(stock == null) {
-                    // Otherwise, we need to start heading off to the net.
-                    mStatus = BUSY;
-                    try {
-                        stock = fetchStock(sCal);
-                        // If this didn't throw an exception AND it's not blank,
-                        // stash it in the database.
-                        if(stock.trim().length() != 0)
-                            storeStock(mContext, sCal, stock);
-                    } catch (FileNotFoundException fnfe) {
-                        // If we got a 404, assume it's not posted yet.
-                        mStatus = ERROR_NOT_POSTED;
-                        sendMessage(createInvalidInfo(mCal, mGrat));
-                        return;
-                    } catch (IOException ioe) {
-                        // If we got anything else, assume a problem.
-                        mStatus = ERROR_SERVER;
-                        sendMessage(createInvalidInfo(mCal, mGrat));
-                        return;
-                    }
-                    
-                    if(mStatus == ABORTED) {
-                        // If we aborted, send that back, too.
-                        sendMessage(createInvalidInfo(mCal, mGrat));
-                        return;
-                    }
+                if(mStatus == ABORTED) {
+                    // If we aborted, send that back, too.
+                    sendMessage(createInvalidInfo(mCal, mGrat));
+                    return;
                 }
             }
 
@@ -235,10 +366,14 @@ public class HashBuilder {
             // the REAL date so we display the right thing on the detail screen
             // (or anywhere else; the point is, we can report to the user if
             // they're in the influence of the 30W Rule).
-            toReturn = createInfo(mCal, stock, mGrat);
+            double[] hash = new double[2];
+            HashCalculator.makeFractions(mCal, stock, hash, 0);
+            toReturn = makeInfo(mCal, mGrat, hash);
                 
             // Good!  Now, we can stash this away in the database for later.
-            storeInfo(mContext, toReturn);
+            // The quick cache gets the exact fractions, not whatever we'd get
+            // back out of the Info.
+            storeInfo(mContext, toReturn, hash);
             
             // And we're done!
             mStatus = ALL_OKAY;
@@ -270,125 +405,72 @@ public class HashBuilder {
             return mLastObject;
         }
         
-        private String fetchStock(Calendar sCal) throws IOException {
-            // Now, generate a string for the URL.
-            String sMonthStr;
-            String sDayStr;
+        private String fetchStock(int stockDay) throws IOException {
+            // Now, generate the URLs.
+            String[] locations = makeLocations(mServers, stockDay);
 
-            if (sCal.get(Calendar.MONTH) + 1 < 10)
-                sMonthStr = "0" + (sCal.get(Calendar.MONTH) + 1);
-            else
-                sMonthStr = Integer.valueOf(sCal.get(Calendar.MONTH) + 1).toString();
-
-            if (sCal.get(Calendar.DAY_OF_MONTH) < 10)
-                sDayStr = "0" + sCal.get(Calendar.DAY_OF_MONTH);
-            else
-                sDayStr = Integer.valueOf(sCal.get(Calendar.DAY_OF_MONTH)).toString();
-
-            // Good, good! Now, to the web!  Go through our list of sites in
-            // order until we find an answer, we bottom out, or we abort.  In
-            // terms of what we report to the user, "Server error" is lowest-
-            // priority, with "Stock not posted" rating above it.  That is to
-            // say, if one server reports and error but another one explicitly
-            // tells us the stock wasn't found, the latter is what we use.  Of
-            // course, if we get an abort request, that takes absolute
-            // precedence.
-            int curStatus = ERROR_SERVER;
-            String result = "";
-            
-            for(String s : mServers) {
-                // Do all our substitutions...
-                String location = s.replaceAll("%Y", Integer.toString(sCal.get(Calendar.YEAR)));
-                location = location.replaceAll("%m", sMonthStr);
-                location = location.replaceAll("%d", sDayStr);
-                Log.v(DEBUG_TAG, "Trying " + location + "...");
-                
-                // And go fetch!
-                HttpClient client = new DefaultHttpClient();
-                mRequest = new HttpGet(location);
-                HttpResponse response;
-                
-                try {
-                    response = client.execute(mRequest);
-                } catch (IOException e) {
-                    // If there was an exception, but we aborted, return a blank
-                    // response (aborting throws an IOException).  If not, there
-                    // was a legitimate problem with this particular server.
-                    if(mStatus == ABORTED) {
-                        return "";
+            // Good, good! Now, to the web!  MirrorFetch goes through our list
+            // of sites, hedging onto the next one if one's being slow, until
+            // it finds an answer, bottoms out, or we abort.  In terms of what
+            // we report to the user, "Server error" is lowest-priority, with
+            // "Stock not posted" rating above it.  That is to say, if one
+            // server reports and error but another one explicitly tells us the
+            // stock wasn't found, the latter is what we use (MirrorFetch
+            // throws a FileNotFoundException for that).  Of course, if we get
+            // an abort request, that takes absolute precedence.
+            //
+            // But first, if someone's already fetching this stock, we just
+            // tag along with them.  If the flight we find gets abandoned
+            // before we can join it, go around and make a new one.
+            CountDownLatch wake = new CountDownLatch(1);
+            StockFlight flight;
+            do {
+                flight = mFlights.get(stockDay);
+                if(flight == null) {
+                    StockFlight fresh = new StockFlight(mContext, stockDay,
+                            new MirrorFetch(mServers, locations, mHedgeDelay, getMirrorHealth(mContext)));
+                    flight = mFlights.putIfAbsent(stockDay, fresh);
+                    if(flight == null) {
+                        flight = fresh;
+                        mFlightExecutor.execute(fresh);
                     }
-                    continue;
-                }
-                
-                // Make sure we've caught an abort...
-                if(mStatus == ABORTED) {
-                    return "";
-                }
-                
-                if (response.getStatusLine().getStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
-                    curStatus = ERROR_NOT_POSTED;
-                } else if (response.getStatusLine().getStatusCode() != HttpURLConnection.HTTP_OK) {
-                    // A non-okay response that isn't a 404 is bad.  Count this
-                    // one as ERROR_SERVER and just continue.
-                    continue;
-                }
-                
-                // Well, we got this far!  Let's read!
-                result = getStringFromStream(response.getEntity().getContent());
-                
-                // With that done, we try to convert the output to the float.
-                // If this fails, we got bogus data and should roll on.
-                try {
-                    Float.parseFloat(result);
-                } catch (NumberFormatException nfe) {
-                    result = "";
-                    continue;
+                } else {
+                    Log.v(DEBUG_TAG, "Stock for " + StockDay.toDateKey(stockDay) + " is already being fetched, waiting on that...");
                 }
-                
-                // We survived!  Set the status flag and keep going!
-                curStatus = ALL_OKAY;
-                break;
-            }
+            } while(!flight.join(wake));
             
-            // If we got this far and we still had an ERROR_SERVER or
-            // ERROR_NOT_POSTED, throw 'em.  We failed.  If we got an ABORTED,
-            // return a blank.
+            mWake = wake;
+            mFlight = flight;
+            
+            try {
+                // If we got aborted while setting all that up, don't bother
+                // waiting.  abort() might've missed the flight, so leave it
+                // here just in case (leaving twice is harmless).
+                if(mStatus != ABORTED)
+                    wake.await();
+            } catch(InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                if(mStatus == ABORTED || Thread.currentThread().isInterrupted())
+                    flight.leave(wake);
+            }
+
+            // If we got an ABORTED, return a blank.
             if(mStatus == ABORTED)
                 return "";
-            else if(curStatus == ERROR_NOT_POSTED)
-                throw new FileNotFoundException();
-            else if(curStatus == ERROR_SERVER)
-                throw new IOException();
-
-
 
-            // If we finally, FINALLY got this far, we've got a successful stock!
-            return result;
-        }
-        
-        /**
-         * Takes the given stream and makes a String out of whatever data it has. Be
-         * really careful with this, as it will just attempt to read whatever's in
-         * the stream until it stops, meaning it'll spin endlessly if this isn't the
-         * sort of stream that ends.
-         * 
-         * @param stream
-         *            InputStream to read from
-         * @return a String consisting of the data from the stream
-         */
-        protected static String getStringFromStream(InputStream stream)
-                throws IOException {
-            BufferedReader buff = new BufferedReader(new InputStreamReader(stream));
-
-            // Load it up...
-            StringBuilder tempstring = new StringBuilder();
-            char bean[] = new char[1024];
-            int read;
-            while ((read = buff.read(bean)) != -1) {
-                tempstring.append(bean, 0, read);
+            // If we finally, FINALLY got this far, the flight's landed.  It
+            // either has our stock or the exception saying why not.
+            try {
+                return flight.get();
+            } catch(ExecutionException ee) {
+                if(ee.getCause() instanceof IOException)
+                    throw (IOException)ee.getCause();
+                throw new IOException(ee.getCause());
+            } catch(CancellationException | InterruptedException e) {
+                throw new IOException(e);
             }
-
-            return tempstring.toString();
         }
         
         /**
@@ -404,15 +486,33 @@ public class HashBuilder {
          * Abort the current connection, if one exists.
          */
         public void abort() {
-            if(mRequest != null)
-            {
-                // Bail out of the request (if there is one)...
-                mRequest.abort();
-            }
+            // Change status first, so runStock notices no matter how far
+            // along it is...
+            mStatus = ABORTED;
             // Put the brakes on the handler...
             mHandler = null;
-            // And change status.
-            mStatus = ABORTED;
+            
+            StockFlight flight = mFlight;
+            CountDownLatch wake = mWake;
+            if(flight != null && wake != null)
+            {
+                // Then stop waiting on the fetch (if there is one).  If nobody
+                // else was waiting on it, that bails out of the requests, too.
+                flight.leave(wake);
+                wake.countDown();
+            }
+        }
+        
+        /**
+         * Sets how long to wait on one mirror before also trying the next.
+         * Whichever answers first wins.  A negative delay means only move on
+         * to the next mirror once the previous one has failed.  This needs to
+         * be set before the StockRunner starts.
+         * 
+         * @param millis the hedge delay, in milliseconds
+         */
+        public void setHedgeDelay(long millis) {
+            mHedgeDelay = millis;
         }
         
         /**
@@ -437,24 +537,53 @@ public class HashBuilder {
      */
     public static synchronized void initialize(Context c) {
         if(mStore == null) {
-            mStore = new StockStoreDatabase(c).init();
+            mStore = makeStore(c);
         }
     }
     
     /**
-     * Initializes and returns a StockStoreDatabase object.  This should be used
-     * in ALL cases the mStore is needed to ensure it actually exists.  It can,
-     * for instance, stop existing if the app is destroyed to reclaim memory.
+     * Initializes and returns a StockStore object.  This should be used in ALL
+     * cases the mStore is needed to ensure it actually exists.  It can, for
+     * instance, stop existing if the app is destroyed to reclaim memory.
      * 
-     * @param c Context with which StockStoreDatabase will be initialized.
-     * @return a new StockStoreDatabase object
+     * @param c Context with which the StockStore will be initialized.
+     * @return a new StockStore object
      */
-    private static synchronized StockStoreDatabase getStore(Context c) {
-        if(mStore == null) {
-            mStore = new StockStoreDatabase(c).init();
+    private static StockStore getStore(Context c) {
+        // Only lock if we actually have to make a new one.  The rest of the
+        // time, this gets called from all over the place, and there's no sense
+        // making everybody line up for it.
+        StockStore store = mStore;
+        if(store == null) {
+            synchronized(HashBuilder.class) {
+                if(mStore == null) {
+                    mStore = makeStore(c);
+                }
+                store = mStore;
+            }
         }
         
-        return mStore;
+        return store;
+    }
+    
+    private static StockStore makeStore(Context c) {
+        // The database is always there, since it's got the hashes and mirror
+        // stats no matter where the stocks go.
+        StockStoreDatabase database = new StockStoreDatabase(c).init();
+        
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(c);
+        String which = prefs.getString(GHDConstants.PREF_STOCK_STORE, GHDConstants.PREFVAL_STOCK_STORE_DATABASE);
+        
+        if(which.equals(GHDConstants.PREFVAL_STOCK_STORE_MAPPED)) {
+            try {
+                return new MappedStockStore(new File(c.getFilesDir(), MappedStockStore.FILE_NAME), database).init();
+            } catch(IOException ioe) {
+                // If the file won't work, the database still will.
+                Log.w(DEBUG_TAG, "Couldn't open the stock file, using the database instead", ioe);
+            }
+        }
+        
+        return database;
     }
     
     /**
@@ -471,6 +600,77 @@ public class HashBuilder {
         return new StockRunner(con, c, g, h);
     }
     
+    /**
+     * Makes a new <code>StockPrefetch</code> to get all the stocks needed for
+     * the given range of dates into the stock cache, using the usual mirrors.
+     * Call {@link StockPrefetch#run(StockPrefetch.ProgressListener)} on it to
+     * get it going (NOT on the main thread).
+     * 
+     * @param con Context for databasey stuff
+     * @param start first day (inclusive, the REAL date)
+     * @param end last day (inclusive, the REAL date)
+     * @return a new StockPrefetch
+     * @throws IllegalArgumentException the range is backwards or longer than
+     *                                  {@link StockPrefetch#MAX_DAYS}
+     */
+    public static StockPrefetch requestStockPrefetch(Context con, Calendar start, Calendar end) {
+        return new StockPrefetch(StockDay.fromCalendar(start), StockDay.fromCalendar(end),
+                getStockCache(con), StockRunner.mServers, StockRunner.mRangeServers,
+                getMirrorHealth(con));
+    }
+
+    /**
+     * Gets the stock cache as a {@link StockPrefetch.StockCache}, for things
+     * that need to look at or fill in a bunch of stocks at once (prefetches
+     * and the stock alarm's schedule, for instance).  Storing stocks through
+     * this writes out the mirror stats, too.
+     *
+     * @param con Context for databasey stuff
+     * @return the stock cache
+     */
+    public static StockPrefetch.StockCache getStockCache(final Context con) {
+        final StockStore store = getStore(con);
+
+        return new StockPrefetch.StockCache() {
+            @Override
+            public String getStock(int stockDay) {
+                return store.getStock(stockDay);
+            }
+
+            @Override
+            public int storeStocks(int[] stockDays, String[] stocks, int count) {
+                int stored = store.storeStocks(stockDays, stocks, count);
+                storeMirrorHealth(con);
+                return stored;
+            }
+        };
+    }
+
+    /**
+     * Fills in the mirror URL templates for the given stock date.  In the
+     * templates, %Y is the four-digit year, %m is the zero-padded month, and
+     * %d is the zero-padded date.
+     *
+     * @param templates URL templates
+     * @param stockDay the stock date, as days since the epoch
+     * @return the URLs, in the same order
+     */
+    static String[] makeLocations(String[] templates, int stockDay) {
+        int dateKey = StockDay.toDateKey(stockDay);
+        int month = (dateKey / 100) % 100;
+        int dom = dateKey % 100;
+
+        String yearStr = Integer.toString(dateKey / 10000);
+        String monthStr = (month < 10 ? "0" : "") + month;
+        String dayStr = (dom < 10 ? "0" : "") + dom;
+
+        String[] locations = new String[templates.length];
+        for(int i = 0; i < templates.length; i++)
+            locations[i] = templates[i].replace("%Y", yearStr).replace("%m", monthStr).replace("%d", dayStr);
+
+        return locations;
+    }
+    
     /**
      * Checks if the stock price for the given date and graticule (accounting
      * for the 30W rule) is stored and can be retrieved without going to the
@@ -485,9 +685,11 @@ public class HashBuilder {
      *         internet for it
      */
     public static boolean hasStockStored(Context con, Calendar c, Graticule g) {
-//        Calendar sCal = Info.makeAdjustedCalendar(c, g);
+        int day = StockDay.fromCalendar(c);
+        double[] hash = new double[2];
         
-        return getQuickCache(c, g) != null || getStore(con).getInfo(c, g) != null;
+        return getQuickCache(day, g, hash)
+                || getStore(con).getHashes(day, StockDay.uses30WRule(day, g), hash);
     }
 
     /**
@@ -503,29 +705,28 @@ public class HashBuilder {
      *         without going to the internet.
      */
     public static Info getStoredInfo(Context con, Calendar c, Graticule g) {
-        // First, check the quick cache.
-//        Calendar sCal = Info.makeAdjustedCalendar(c, g);
-
-        // If it's in the quick cache, use it.
-        Log.v(DEBUG_TAG, "Checking caches for " + DateTools.getDateString(c)
-                + ((g == null || g.uses30WRule()) ? " with 30W rule" : " without 30W rule"));
-        Info result = getQuickCache(c, g);
-        if(result != null) {
+        // Everything from here on down works on the day number, not the
+        // Calendar.  The Calendar only comes back in when we make the Info.
+        int day = StockDay.fromCalendar(c);
+        boolean uses30W = StockDay.uses30WRule(day, g);
+        
+        // First, check the quick cache.  If it's in there, use it.
+        Log.v(DEBUG_TAG, "Checking caches for " + StockDay.toDateKey(day)
+                + (uses30W ? " with 30W rule" : " without 30W rule"));
+        double[] hash = new double[2];
+        if(getQuickCache(day, g, hash)) {
             Log.v(DEBUG_TAG, "Data found in quickcache!");
-            if(result.isGlobalHash()) return result;
-            else return cloneInfo(result, g);
+            return makeInfo(c, g, hash);
         }
         
         // Otherwise, check the stock cache.
-        Info i = getStore(con).getInfo(c, g);
-        
-        if(i == null)
+        if(!getStore(con).getHashes(day, uses30W, hash))
             return null;
             
         Log.v(DEBUG_TAG, "Data found in database!  Quickcaching...");
         // If it was in the main cache but not the quick cache, quick cache it.
-        quickCache(i);
-        return i;
+        quickCache(day, g, hash[HashCalculator.LATITUDE], hash[HashCalculator.LONGITUDE]);
+        return makeInfo(c, g, hash);
     }
     
     /**
@@ -538,22 +739,144 @@ public class HashBuilder {
      * @return the String representation of the stock, or null if it's not there
      */
     public static String getStoredStock(Context con, Calendar c) {
+        return getStoredStock(con, StockDay.fromCalendar(c));
+    }
+    
+    /**
+     * Attempt to get the stock value stored in the database for the given
+     * already-adjusted day (see {@link StockDay}).  This won't go to the
+     * internet, either.
+     * 
+     * @param con Context used to retrieve the database, if needed 
+     * @param stockDay already-adjusted date to check, as days since the epoch
+     * @return the String representation of the stock, or null if it's not there
+     */
+    public static String getStoredStock(Context con, int stockDay) {
         // We don't quickcache the stock values.
-        Log.v(DEBUG_TAG, "Going to the database for a stock for " + DateTools.getDateString(c));
+        Log.v(DEBUG_TAG, "Going to the database for a stock for " + StockDay.toDateKey(stockDay));
         
-        return getStore(con).getStock(c);
+        return getStore(con).getStock(stockDay);
     }
     
     /**
-     * Puts the given data into the quick cache.  Note that the Calendar object
-     * is the date of the stock, not the date of the expedition.
+     * <p>
+     * Fills in the hash fractions for both sides of the 30W line for the given
+     * date, using only what's stored (no internet).  The layout is as per
+     * {@link BulkHashpoints}.  Any side that can't be worked out without going
+     * to the internet gets NaNs.
+     * </p>
+     *
+     * <p>
+     * If the date is before the 30W Rule existed, both sides wind up the same.
+     * </p>
+     *
+     * @param con Context used to retrieve the database, if needed
+     * @param c Calendar object with the adventure date requested (this will
+     *          account for the 30W Rule, so don't put it in)
+     * @param dest four-element array to receive the fractions
+     * @return the number of sides that were found (0, 1, or 2)
+     */
+    public static int getStoredSideFractions(Context con, Calendar c, double[] dest) {
+        int found = 0;
+
+        if(getStoredFractions(con, c, GHDConstants.DUMMY_TODAY, dest, BulkHashpoints.SIDE_NON_30W))
+            found++;
+        if(getStoredFractions(con, c, GHDConstants.DUMMY_YESTERDAY, dest, BulkHashpoints.SIDE_30W))
+            found++;
+
+        return found;
+    }
+
+    /**
+     * Gets the final destinations of every graticule in a box for the given
+     * date, using only what's stored.  See {@link BulkHashpoints} for how the
+     * results are laid out.  Graticules whose side of the 30W line isn't
+     * stored get NaN coordinates.
+     *
+     * @param con Context used to retrieve the database, if needed
+     * @param c Calendar object with the adventure date requested
+     * @param southwest the southwest corner of the box
+     * @param northeast the northeast corner of the box
+     * @return an array of latitude/longitude pairs
+     */
+    public static double[] getStoredHashpoints(Context con, Calendar c, Graticule southwest, Graticule northeast) {
+        double[] fractions = new double[4];
+        getStoredSideFractions(con, c, fractions);
+        return BulkHashpoints.calculateBox(fractions, southwest, northeast);
+    }
+
+    /**
+     * Gets the final destinations of each of the given Graticules for the
+     * given date, using only what's stored.  Graticules whose side of the 30W
+     * line isn't stored get NaN coordinates.
+     *
+     * @param con Context used to retrieve the database, if needed
+     * @param c Calendar object with the adventure date requested
+     * @param graticules Graticules to use
+     * @return an array of latitude/longitude pairs, in the same order as
+     *         graticules
+     */
+    public static double[] getStoredHashpoints(Context con, Calendar c, Graticule[] graticules) {
+        double[] fractions = new double[4];
+        getStoredSideFractions(con, c, fractions);
+        return BulkHashpoints.calculate(fractions, graticules);
+    }
+
+    /**
+     * Makes a new HashpointRange over the given dates and Graticules, which
+     * gets its stock values from the stock cache (and only the stock cache;
+     * it won't go to the internet).
+     *
+     * @param con Context used to retrieve the database, if needed
+     * @param start first day (inclusive)
+     * @param end last day (inclusive)
+     * @param graticules Graticules to work out on each day
+     * @return a new HashpointRange
+     */
+    public static HashpointRange requestHashpointRange(Context con, Calendar start, Calendar end, Graticule[] graticules) {
+        final StockStore store = getStore(con);
+
+        return new HashpointRange(start, end, graticules, new HashpointRange.StockSource() {
+            @Override
+            public String getStock(int stockDay) {
+                return store.getStock(stockDay);
+            }
+        });
+    }
+
+    private static boolean getStoredFractions(Context con, Calendar c, Graticule side, double[] dest, int offset) {
+        // If the stock itself is around, that gets us the exact fractions.
+        String stock = getStoredStock(con, StockDay.adjust(StockDay.fromCalendar(c), side));
+        if(stock != null) {
+            HashCalculator.makeFractions(c, stock, dest, offset);
+            return true;
+        }
+
+        // Otherwise, maybe we've at least got the hash stored.
+        Info info = getStoredInfo(con, c, side);
+        if(info != null) {
+            dest[offset + HashCalculator.LATITUDE] = info.getLatitudeHash();
+            dest[offset + HashCalculator.LONGITUDE] = info.getLongitudeHash();
+            return true;
+        }
+
+        dest[offset + HashCalculator.LATITUDE] = Double.NaN;
+        dest[offset + HashCalculator.LONGITUDE] = Double.NaN;
+        return false;
+    }
+    
+    /**
+     * Puts the given hash fractions into the quick cache.  Note that the
+     * Calendar object is the date of the expedition, not the date of the
+     * stock.
      * 
-     * @param i Info to store
+     * @param day date of the expedition, as days since the epoch
+     * @param g Graticule in question (null for a globalhash)
+     * @param latHash the latitude fraction
+     * @param lonHash the longitude fraction
      */
-    private static void quickCache(Info i) {
-        // Slide over!
-        mTwoInfosAgo = mLastInfo;
-        mLastInfo = i;
+    private static void quickCache(int day, Graticule g, double latHash, double lonHash) {
+        mQuickCache.put(QuickCache.makeKey(day, g), latHash, lonHash);
     }
     
     /**
@@ -562,33 +885,39 @@ public class HashBuilder {
      * 
      * @param con Context used to retrieve the database, if needed
      * @param i an Info bundle with everything we need
+     * @param hash the two hash fractions that went into i
      */
-    private synchronized static void storeInfo(Context con, Info i) {
-        // First, replace the last-known results.
-        quickCache(i);
-        
-        StockStoreDatabase store = getStore(con);
+    private static void storeInfo(Context con, Info i, double[] hash) {
+        // First, replace the last-known results.  The quick cache doesn't need
+        // anyone to lock it down first.
+        quickCache(StockDay.fromCalendar(i.getCalendar()), i.getGraticule(),
+                hash[HashCalculator.LATITUDE], hash[HashCalculator.LONGITUDE]);
         
-        // Then, write it to the database.
-        store.storeInfo(i);
-        store.cleanup();
+        // Then, write it to the database.  THAT still goes one at a time.
+        synchronized(HashBuilder.class) {
+            StockStore store = getStore(con);
+            store.storeInfo(i);
+            store.cleanup();
+        }
     }
     
-    private synchronized static void storeStock(Context con, Calendar cal, String stock) {
-        StockStoreDatabase store = getStore(con);
+    private synchronized static void storeStock(Context con, int stockDay, String stock) {
+        StockStore store = getStore(con);
         
-        store.storeStock(cal, stock);
+        store.storeStock(stockDay, stock);
         store.cleanup();
     }
     
     /**
      * Cleans up the database with whatever cleanup needs to be done.
-     * Generally, this means pruning it.
+     * Generally, this means pruning it.  Unlike the cleanup that happens after
+     * storing something, this always prunes, right now.
      * 
      * @param con Context used to retrieve the database, if needed
+     * @return what got pruned, or null if something went wrong
      */
-    public synchronized static void cleanupDatabase(Context con) {
-        getStore(con).cleanup();
+    public synchronized static StockStoreDatabase.PruneResult cleanupDatabase(Context con) {
+        return getStore(con).prune();
     }
 
     /**
@@ -598,8 +927,80 @@ public class HashBuilder {
      * @return true on success, false on failure
      */
     public synchronized static boolean deleteCache(Context con) {
+        // The quick cache goes, too.  It'd be weird if it didn't.
+        mQuickCache.clear();
         return getStore(con).deleteCache();
     }
+
+    /**
+     * Imports a CSV history of stocks into the stock cache, so any date in it
+     * can be hashed without a mirror.  See {@link StockImporter} for what the
+     * file needs to look like and what it gets checked against.  Imported
+     * stocks are kept for good, whichever store's in use; the database never
+     * prunes them (only {@link #deleteCache(Context)} gets rid of them), and
+     * the mapped store doesn't prune its file at all.
+     *
+     * @param con Context used to retrieve the database, if needed
+     * @param in the CSV file (this doesn't close it)
+     * @param allowUnchecked true to import the file even if it doesn't cover
+     *                       any stock it can be checked against (only do this
+     *                       if the user said to)
+     * @return what came of the import
+     * @throws StockImporter.ImportException the file isn't a valid stock
+     *                                       history, or it couldn't be
+     *                                       checked and allowUnchecked was
+     *                                       false (either way, nothing was
+     *                                       stored)
+     * @throws IOException couldn't read the file
+     */
+    public synchronized static StockImporter.Result importStocks(Context con, Reader in, boolean allowUnchecked) throws IOException {
+        StockImporter.Result result = StockImporter.importStocks(in, getStore(con), allowUnchecked);
+        Log.i(DEBUG_TAG, "Imported stock history: " + result);
+        return result;
+    }
+
+    /**
+     * Gets the health stats for the stock mirrors, loading them from the
+     * database if they haven't been already.  This is what decides which
+     * mirror gets tried first, and it's also where to look to see which one's
+     * actually been serving up stocks.
+     *
+     * @param con Context used to retrieve the database, if needed
+     * @return the mirror health
+     */
+    public static MirrorHealth getMirrorHealth(Context con) {
+        MirrorHealth health = mMirrorHealth;
+        if(health == null) {
+            synchronized(HashBuilder.class) {
+                if(mMirrorHealth == null) {
+                    mMirrorHealth = new MirrorHealth(getStore(con).getMirrorStats());
+                }
+                health = mMirrorHealth;
+            }
+        }
+
+        return health;
+    }
+
+    private static void storeMirrorHealth(Context con) {
+        MirrorHealth health = mMirrorHealth;
+        if(health == null) return;
+
+        // Only bother the database if something's actually new.
+        List<MirrorHealth.Stats> changed = health.takeChangedStats();
+        if(changed != null)
+            getStore(con).storeMirrorStats(changed);
+    }
+
+    /**
+     * Gets the quick cache, mostly so its hit, miss, and eviction counts can be
+     * checked.
+     *
+     * @return the quick cache
+     */
+    public static QuickCache getQuickCache() {
+        return mQuickCache;
+    }
     
     /**
      * Build an Info object.  Since this assumes we already have a stock price
@@ -615,15 +1016,13 @@ public class HashBuilder {
         // This creates the Info object that'll go right back to whatever was
         // calling it.  In general, this is the Handler in StockRunner.
         
-        // So to that end, we first build up the hash.
-        String hash = makeHash(c, stockPrice);
+        // So to that end, we first build up the hash.  We don't need it as a
+        // String, just the two fractions it works out to.
+        double[] hash = new double[2];
+        HashCalculator.makeFractions(c, stockPrice, hash, 0);
         
         // Then, get the latitude and longitude from that.
-        double lat = getLatitude(g, hash);
-        double lon = getLongitude(g, hash);
-        
-        // And finally...
-        return new Info(lat, lon, g, c);
+        return makeInfo(c, g, hash);
     }
     
     /**
@@ -675,125 +1074,70 @@ public class HashBuilder {
     
     /**
      * Generate the hash string from the date and stock price.  The REAL date,
-     * that is.  Not a 30W Rule-adjusted date.
+     * that is.  Not a 30W Rule-adjusted date.  Nothing in here needs the hash
+     * as a String anymore (see {@link HashCalculator}), but it's handy to have
+     * around if you want to see it.
      * 
      * @param c date to use
      * @param stockPrice stock price to use
      * @return the hash you're looking for
      */
     protected static String makeHash(Calendar c, String stockPrice) {
-        // Just reset the hash. This can be handy alone if the graticule has
-        // changed.  Remember, c is the REAL date, not the STOCK date!
-        String monthStr;
-        String dayStr;
-
-        // Zero-pad the month and date...
-        if (c.get(Calendar.MONTH) + 1 < 10)
-            monthStr = "0" + (c.get(Calendar.MONTH) + 1);
-        else
-            monthStr = Integer.valueOf(c.get(Calendar.MONTH) + 1).toString();
-
-        if (c.get(Calendar.DAY_OF_MONTH) < 10)
-            dayStr = "0" + c.get(Calendar.DAY_OF_MONTH);
-        else
-            dayStr = Integer.valueOf(c.get(Calendar.DAY_OF_MONTH)).toString();
-
-        // And here it goes!
-        String fullLine = c.get(Calendar.YEAR) + "-" + monthStr + "-"
-                + dayStr + "-" + stockPrice;
-        return MD5Tools.MD5hash(fullLine);
-    }
-
-    private static Info getQuickCache(Calendar sCal, Graticule g) {
-        // We don't use Calendar.equals here, as that checks all properties,
-        // including potentially some we don't really care about.
-        boolean is30W = (g == null || g.uses30WRule());
-        
-        // At any rate, first off, the most recent date/30W combo.  Then, the
-        // second-most.  Failing THAT, return null.
-        Log.v(DEBUG_TAG, "Checking quickcache for data...");
-        if(mLastInfo != null) {
-            Calendar stored = mLastInfo.getCalendar();
-            
-            if(stored.get(Calendar.MONTH) ==  sCal.get(Calendar.MONTH)
-                    && stored.get(Calendar.DAY_OF_MONTH) ==  sCal.get(Calendar.DAY_OF_MONTH)
-                    && stored.get(Calendar.YEAR) ==  sCal.get(Calendar.YEAR)
-                    && ((mLastInfo.getGraticule() == null && g == null)
-                            || (mLastInfo.getGraticule() != null && g != null))
-                    && mLastInfo.uses30WRule() == is30W) {
-                Log.v(DEBUG_TAG, "Hash data is in quick cache (mLastInfo): " + mLastInfo.getLatitudeHash() + ", " + mLastInfo.getLongitudeHash());
-                return mLastInfo;
-            }
-        }
-        
-        if(mTwoInfosAgo != null) {
-            Calendar stored = mTwoInfosAgo.getCalendar();
-            
-            if(stored.get(Calendar.MONTH) ==  sCal.get(Calendar.MONTH)
-                    && stored.get(Calendar.DAY_OF_MONTH) ==  sCal.get(Calendar.DAY_OF_MONTH)
-                    && stored.get(Calendar.YEAR) ==  sCal.get(Calendar.YEAR)
-                    && ((mTwoInfosAgo.getGraticule() == null && g == null)
-                            || (mTwoInfosAgo.getGraticule() != null && g != null))
-                    && mTwoInfosAgo.uses30WRule() == is30W) {
-                Log.v(DEBUG_TAG, "Hash data is in quick cache (mTwoInfosAgo): " + mTwoInfosAgo.getLatitudeHash() + ", " + mTwoInfosAgo.getLongitudeHash());
-                return mTwoInfosAgo;
-            }
+        // Remember, c is the REAL date, not the STOCK date!
+        byte[] digest = new byte[MD5Tools.DIGEST_LENGTH];
+        HashCalculator.makeDigest(c.get(Calendar.YEAR), c.get(Calendar.MONTH) + 1,
+                c.get(Calendar.DAY_OF_MONTH), stockPrice, digest, 0);
+        return CharToByte.bytesToString(digest);
+    }
+
+    private static boolean getQuickCache(int day, Graticule g, double[] hash) {
+        // The key takes care of the date and which side of the 30W line we're
+        // on (or if it's a globalhash), so this is just one lookup.
+        if(mQuickCache.get(QuickCache.makeKey(day, g), hash)) {
+            Log.v(DEBUG_TAG, "Hash data is in quick cache: " + hash[HashCalculator.LATITUDE] + ", " + hash[HashCalculator.LONGITUDE]);
+            return true;
         }
         
         Log.v(DEBUG_TAG, "Data wasn't in quickcache.");
         
-        return null;
-    }
-    
-    /**
-     * Gets the latitude value of the location for the current date. This is
-     * attached to the current graticule integer value to produce the longitude.
-     * 
-     * @return the fractional latitude value
-     */
-    private static double getLatitudeHash(String hash) {
-        String chunk = hash.substring(0, 16);
-        return HexFraction.calculate(chunk);
+        return false;
     }
 
-    /**
-     * Gets the longitude value of the location for the current date. This is
-     * attached to the current graticule integer value to produce the latitude.
-     * 
-     * @return the fractional longitude value
-     */
-    private static double getLongitudeHash(String hash) {
-        String chunk = hash.substring(16, 32);
-        return HexFraction.calculate(chunk);
+    private static Info makeInfo(Calendar c, Graticule g, double[] hash) {
+        double lat = getLatitude(g, hash[HashCalculator.LATITUDE]);
+        double lon = getLongitude(g, hash[HashCalculator.LONGITUDE]);
+        
+        // And finally...
+        return new Info(lat, lon, g, c);
     }
-
-    private static double getLatitude(Graticule g, String hash) {
+    
+    private static double getLatitude(Graticule g, double latHash) {
         // If the Graticule's not null, this is a normal hash.  If it is, it's a
         // globalhash, and has to be treated differently.
         if(g != null) {
             int lat = g.getLatitude();
             if (g.isSouth()) {
-                return (lat + getLatitudeHash(hash)) * -1;
+                return (lat + latHash) * -1;
             } else {
-                return lat + getLatitudeHash(hash);
+                return lat + latHash;
             }
         } else {
-            return getLatitudeHash(hash);
+            return latHash;
         }
 
     }
 
-    private static double getLongitude(Graticule g, String hash) {
+    private static double getLongitude(Graticule g, double lonHash) {
         // Same deal as with getLatitude.
         if(g != null) {
             int lon = g.getLongitude();
             if (g.isWest()) {
-                return (lon + getLongitudeHash(hash)) * -1;
+                return (lon + lonHash) * -1;
             } else {
-                return lon + getLongitudeHash(hash);
+                return lon + lonHash;
             }
         } else {
-            return getLongitudeHash(hash);
+            return lonHash;
         }
     }
 
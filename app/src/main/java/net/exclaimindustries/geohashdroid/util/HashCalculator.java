@@ -0,0 +1,196 @@
+/**
+ * HashCalculator.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.util.Calendar;
+
+import net.exclaimindustries.tools.HexFraction;
+import net.exclaimindustries.tools.MD5Tools;
+
+/**
+ * <p>
+ * <code>HashCalculator</code> is the raw number-crunching end of the geohash
+ * algorithm.  It takes a date and a stock price, builds the
+ * <code>YYYY-MM-DD-price</code> line as ASCII bytes, runs it through MD5, and
+ * turns the two halves of the digest directly into the latitude and longitude
+ * fractions, all without making a single String along the way.
+ * </p>
+ *
+ * <p>
+ * Each thread gets its own scratch buffers, so once a thread has done one
+ * calculation, the rest of them don't allocate anything.  It also doesn't
+ * touch anything Android-specific, so it can be used (and measured) on a plain
+ * JVM.  <code>HashBuilder</code> is what most things should be talking to;
+ * this is for the cases where that's too many objects.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public final class HashCalculator {
+    /** Index of the latitude fraction in the arrays this fills in. */
+    public static final int LATITUDE = 0;
+    /** Index of the longitude fraction in the arrays this fills in. */
+    public static final int LONGITUDE = 1;
+
+    // "YYYY-MM-DD-" is eleven bytes, and the DJIA has yet to come anywhere
+    // near needing more than a dozen or so for itself.  This grows if it has
+    // to, though.
+    private static final int INITIAL_LINE_SIZE = 32;
+
+    private static class Scratch {
+        byte[] line = new byte[INITIAL_LINE_SIZE];
+        final byte[] digest = new byte[MD5Tools.DIGEST_LENGTH];
+
+        byte[] ensureLine(int size) {
+            if(line.length < size)
+                line = new byte[Math.max(size, line.length * 2)];
+            return line;
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    // You don't construct a HashCalculator, either.
+    private HashCalculator() { }
+
+    /**
+     * Calculates the latitude and longitude fractions (the hash parts) for the
+     * given date and stock price.  The date is the REAL date, not the 30W
+     * Rule-adjusted one.  The latitude fraction goes into
+     * <code>dest[offset + LATITUDE]</code>, the longitude fraction into
+     * <code>dest[offset + LONGITUDE]</code>.
+     *
+     * @param c date to use
+     * @param stockPrice stock price to use, exactly as it'd appear in the hash
+     * @param dest array to receive the two fractions
+     * @param offset where in dest to put them
+     */
+    public static void makeFractions(Calendar c, CharSequence stockPrice, double[] dest, int offset) {
+        makeFractions(c.get(Calendar.YEAR), c.get(Calendar.MONTH) + 1,
+                c.get(Calendar.DAY_OF_MONTH), stockPrice, dest, offset);
+    }
+
+    /**
+     * Calculates the latitude and longitude fractions for the given date and
+     * stock price.  The month here is one-based (January is 1), unlike
+     * Calendar.
+     *
+     * @param year the year
+     * @param month the month (1-12)
+     * @param day the day of the month
+     * @param stockPrice stock price to use, exactly as it'd appear in the hash
+     * @param dest array to receive the two fractions
+     * @param offset where in dest to put them
+     */
+    public static void makeFractions(int year, int month, int day, CharSequence stockPrice,
+                                     double[] dest, int offset) {
+        Scratch scratch = SCRATCH.get();
+        int lineLength = writeLine(scratch, year, month, day, stockPrice);
+
+        digestToFractions(scratch, lineLength, dest, offset);
+    }
+
+    /**
+     * Calculates the raw MD5 digest of the hash line for the given date and
+     * stock price.  This is what the hash string would be before it gets
+     * turned into hexits.  The month is one-based.
+     *
+     * @param year the year
+     * @param month the month (1-12)
+     * @param day the day of the month
+     * @param stockPrice stock price to use, exactly as it'd appear in the hash
+     * @param dest array to receive the digest (needs 16 bytes of room)
+     * @param offset where in dest to put it
+     */
+    public static void makeDigest(int year, int month, int day, CharSequence stockPrice,
+                                  byte[] dest, int offset) {
+        Scratch scratch = SCRATCH.get();
+        int lineLength = writeLine(scratch, year, month, day, stockPrice);
+
+        if(!MD5Tools.MD5hash(scratch.line, 0, lineLength, dest, offset))
+            throw new IllegalStateException("MD5 isn't available, so there's no way to make a hash!");
+    }
+
+    /**
+     * Converts eight bytes of a digest, big-endian, into a long.  Those are
+     * the same 64 bits the corresponding 16 hexits of the hash string would
+     * spell out.
+     *
+     * @param digest the digest
+     * @param offset where to start (0 for latitude, 8 for longitude)
+     * @return the packed bits
+     */
+    public static long digestHalf(byte[] digest, int offset) {
+        long bits = 0;
+        for(int i = offset; i < offset + 8; i++)
+            bits = (bits << 8) | (digest[i] & 0xFF);
+        return bits;
+    }
+
+    private static void digestToFractions(Scratch scratch, int lineLength, double[] dest, int offset) {
+        if(!MD5Tools.MD5hash(scratch.line, 0, lineLength, scratch.digest, 0))
+            throw new IllegalStateException("MD5 isn't available, so there's no way to make a hash!");
+
+        // The first half of the digest is the latitude, the second half is the
+        // longitude.  Same as the first and last 16 hexits of the hash string.
+        dest[offset + LATITUDE] = HexFraction.calculate(digestHalf(scratch.digest, 0));
+        dest[offset + LONGITUDE] = HexFraction.calculate(digestHalf(scratch.digest, 8));
+    }
+
+    private static int writeLine(Scratch scratch, int year, int month, int day, CharSequence stockPrice) {
+        int priceLen = stockPrice.length();
+        byte[] line = scratch.ensureLine(dateLength(year) + priceLen);
+
+        int pos = writeDate(line, year, month, day);
+
+        // This matches what CharToByte.charsToBytes would do with it.
+        for(int i = 0; i < priceLen; i++)
+            line[pos++] = (byte)(stockPrice.charAt(i) & 0xFF);
+
+        return pos;
+    }
+
+    private static int dateLength(int year) {
+        // The year digits, plus "-MM-DD-".
+        return digitCount(year) + 7;
+    }
+
+    private static int digitCount(int value) {
+        int count = 1;
+        while(value >= 10) {
+            value /= 10;
+            count++;
+        }
+        return count;
+    }
+
+    private static int writeDate(byte[] line, int year, int month, int day) {
+        // The year isn't zero-padded, it's just however many digits it has.
+        int pos = digitCount(year);
+        for(int i = pos - 1; i >= 0; i--) {
+            line[i] = (byte)('0' + year % 10);
+            year /= 10;
+        }
+
+        // The month and day are, though.
+        line[pos++] = '-';
+        line[pos++] = (byte)('0' + month / 10);
+        line[pos++] = (byte)('0' + month % 10);
+        line[pos++] = '-';
+        line[pos++] = (byte)('0' + day / 10);
+        line[pos++] = (byte)('0' + day % 10);
+        line[pos++] = '-';
+
+        return pos;
+    }
+}
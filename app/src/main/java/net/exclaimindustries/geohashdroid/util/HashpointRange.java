@@ -0,0 +1,331 @@
+/**
+ * HashpointRange.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>
+ * A <code>HashpointRange</code> walks every day in a range of dates and works
+ * out the hashpoints for a fixed set of Graticules on each of them.  This is
+ * for the big batch jobs (retrohash planning, statistics, that sort of thing),
+ * where building an Info for every graticule on every day would be absurd.
+ * </p>
+ *
+ * <p>
+ * Days are handed out one at a time, either through {@link #iterator()} or a
+ * {@link Callback}, so memory use doesn't depend on how long the range is.
+ * Stock values come from a {@link StockSource}, and since a weekend, or the
+ * 30W side of one day and the non-30W side of the day before, all come down
+ * to the same stock date, each stock is only looked up once per run of days.
+ * If a stock isn't available, the Graticules that need it get NaN coordinates
+ * for that day.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public class HashpointRange implements Iterable<HashpointRange.Day> {
+    /**
+     * Where a <code>HashpointRange</code> gets its stock values.  This should
+     * only ever look things up, not go to the internet.
+     */
+    public interface StockSource {
+        /**
+         * Gets the stock value for the given already-adjusted date.
+         *
+         * @param stockDay the stock date (already adjusted for 30W and
+         *                 weekends), as days since the epoch (see
+         *                 {@link StockDay})
+         * @return the stock value, or null if it isn't available
+         */
+        String getStock(int stockDay);
+    }
+
+    /**
+     * Receives each day's hashpoints as they're generated.  If this is used
+     * with {@link #generateParallel(Callback, ExecutorService, int)}, it'll be
+     * called from multiple threads at once and in no particular order, so
+     * make sure it can handle that.
+     */
+    public interface Callback {
+        /**
+         * Called for each day.  The Day object (and its arrays) may be reused
+         * for the next day on the same thread, so copy out anything you want
+         * to keep.
+         *
+         * @param day the day's results
+         */
+        void onDay(Day day);
+    }
+
+    /**
+     * One day's worth of hashpoints.
+     */
+    public static class Day {
+        private final Calendar mCal;
+        private final double[] mFractions = new double[4];
+        private final double[] mCoordinates;
+        private int mValid;
+
+        private Day(Calendar cal, int graticules) {
+            mCal = cal;
+            mCoordinates = new double[graticules * 2];
+        }
+
+        /**
+         * Gets the date.  This is the REAL date, not the stock date.
+         *
+         * @return the date
+         */
+        public Calendar getCalendar() {
+            return mCal;
+        }
+
+        /**
+         * Gets the hash fractions for both sides of the 30W line, laid out as
+         * per {@link BulkHashpoints}.
+         *
+         * @return the fractions
+         */
+        public double[] getFractions() {
+            return mFractions;
+        }
+
+        /**
+         * Gets the latitude/longitude pairs for each Graticule, in the same
+         * order they were given to the HashpointRange.
+         *
+         * @return the coordinates
+         */
+        public double[] getCoordinates() {
+            return mCoordinates;
+        }
+
+        /**
+         * Gets how many Graticules got real (not NaN) coordinates.
+         *
+         * @return the number of valid hashpoints
+         */
+        public int getValidCount() {
+            return mValid;
+        }
+    }
+
+    // How many days each parallel worker grabs at once.  Small enough to
+    // spread out a short range, big enough that the stock memo gets a good
+    // workout on a long one.
+    private static final int CHUNK_DAYS = 32;
+
+    private final Calendar mStart;
+    private final int mDayCount;
+    private final Graticule[] mGraticules;
+    private final StockSource mSource;
+
+    /**
+     * Makes a new HashpointRange.  The start and end dates are both inclusive,
+     * and only the date part of them matters.
+     *
+     * @param start first day
+     * @param end last day
+     * @param graticules Graticules to work out on each day
+     * @param source where to get stock values from
+     */
+    public HashpointRange(Calendar start, Calendar end, Graticule[] graticules, StockSource source) {
+        mStart = (Calendar)start.clone();
+        mStart.set(Calendar.HOUR_OF_DAY, 0);
+        mStart.set(Calendar.MINUTE, 0);
+        mStart.set(Calendar.SECOND, 0);
+        mStart.set(Calendar.MILLISECOND, 0);
+
+        Calendar last = (Calendar)end.clone();
+        last.set(Calendar.HOUR_OF_DAY, 0);
+        last.set(Calendar.MINUTE, 0);
+        last.set(Calendar.SECOND, 0);
+        last.set(Calendar.MILLISECOND, 0);
+
+        // Round it off so daylight saving time doesn't knock us off by a day.
+        long days = (last.getTimeInMillis() - mStart.getTimeInMillis() + 43200000L) / 86400000L + 1;
+        mDayCount = (int)Math.max(0, days);
+
+        mGraticules = graticules.clone();
+        mSource = source;
+    }
+
+    /**
+     * Gets how many days are in this range.
+     *
+     * @return the number of days
+     */
+    public int getDayCount() {
+        return mDayCount;
+    }
+
+    /**
+     * Runs through every day in order on the current thread.
+     *
+     * @param callback where the days go
+     */
+    public void generate(Callback callback) {
+        generateDays(0, mDayCount, new Worker(), callback);
+    }
+
+    /**
+     * Runs through every day, splitting the range up into chunks and running
+     * them on the given ExecutorService.  This blocks until every day's been
+     * handed to the Callback (in no particular order).  If the Callback throws,
+     * the remaining chunks are abandoned and the exception is rethrown here.
+     *
+     * @param callback where the days go (this needs to be thread-safe)
+     * @param executor ExecutorService to run on
+     * @param parallelism how many workers to run at once
+     * @throws InterruptedException interrupted while waiting for the workers
+     */
+    public void generateParallel(final Callback callback, ExecutorService executor, int parallelism)
+            throws InterruptedException {
+        final int chunks = (mDayCount + CHUNK_DAYS - 1) / CHUNK_DAYS;
+        final int workers = Math.max(1, Math.min(parallelism, chunks));
+        final AtomicInteger nextChunk = new AtomicInteger();
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(workers);
+
+        // Each worker keeps pulling the next chunk until there aren't any left,
+        // so a slow chunk doesn't hold up the rest.
+        for(int i = 0; i < workers; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Worker worker = new Worker();
+                    try {
+                        int chunk;
+                        while(failure.get() == null && (chunk = nextChunk.getAndIncrement()) < chunks) {
+                            int first = chunk * CHUNK_DAYS;
+                            generateDays(first, Math.min(first + CHUNK_DAYS, mDayCount), worker, callback);
+                        }
+                    } catch(RuntimeException re) {
+                        failure.compareAndSet(null, re);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        done.await();
+
+        if(failure.get() != null)
+            throw failure.get();
+    }
+
+    /**
+     * Gets an Iterator that works out each day as it's asked for.  Unlike the
+     * Callback methods, each Day this returns is a new object.
+     *
+     * @return an Iterator over the days
+     */
+    @Override
+    public Iterator<Day> iterator() {
+        return new Iterator<Day>() {
+            private final Worker mWorker = new Worker();
+            private int mNext = 0;
+
+            @Override
+            public boolean hasNext() {
+                return mNext < mDayCount;
+            }
+
+            @Override
+            public Day next() {
+                if(!hasNext()) throw new NoSuchElementException();
+
+                Calendar cal = (Calendar)mStart.clone();
+                cal.add(Calendar.DAY_OF_MONTH, mNext++);
+                Day day = new Day(cal, mGraticules.length);
+                mWorker.fill(day);
+                return day;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void generateDays(int first, int end, Worker worker, Callback callback) {
+        if(first >= end) return;
+
+        Calendar cal = (Calendar)mStart.clone();
+        cal.add(Calendar.DAY_OF_MONTH, first);
+        Day day = new Day(cal, mGraticules.length);
+
+        for(int i = first; i < end; i++) {
+            worker.fill(day);
+            callback.onDay(day);
+            cal.add(Calendar.DAY_OF_MONTH, 1);
+        }
+    }
+
+    /**
+     * Does the actual work for a single thread.  This keeps a tiny memo of the
+     * last few stock dates it looked up, which, since days go in order, is
+     * enough to catch every time two days (or sides) share a stock date.
+     */
+    private class Worker {
+        private static final int MEMO_SIZE = 4;
+
+        // Day 0 is a perfectly good day (January 1, 1970), so we need to
+        // keep track of which slots have anything in them.
+        private final int[] mMemoKeys = new int[MEMO_SIZE];
+        private final boolean[] mMemoFilled = new boolean[MEMO_SIZE];
+        private final String[] mMemoStocks = new String[MEMO_SIZE];
+        private int mMemoNext = 0;
+
+        void fill(Day day) {
+            Calendar cal = day.mCal;
+            int dayNumber = StockDay.fromCalendar(cal);
+
+            resolveSide(cal, dayNumber, GHDConstants.DUMMY_TODAY, day.mFractions, BulkHashpoints.SIDE_NON_30W);
+            resolveSide(cal, dayNumber, GHDConstants.DUMMY_YESTERDAY, day.mFractions, BulkHashpoints.SIDE_30W);
+
+            day.mValid = BulkHashpoints.calculate(day.mFractions, mGraticules, day.mCoordinates, 0);
+        }
+
+        private void resolveSide(Calendar cal, int dayNumber, Graticule side, double[] dest, int offset) {
+            String stock = lookup(StockDay.adjust(dayNumber, side));
+
+            if(stock == null) {
+                dest[offset + HashCalculator.LATITUDE] = Double.NaN;
+                dest[offset + HashCalculator.LONGITUDE] = Double.NaN;
+            } else {
+                HashCalculator.makeFractions(cal, stock, dest, offset);
+            }
+        }
+
+        private String lookup(int stockDay) {
+            for(int i = 0; i < MEMO_SIZE; i++) {
+                if(mMemoFilled[i] && mMemoKeys[i] == stockDay)
+                    return mMemoStocks[i];
+            }
+
+            // Missing stocks get memoized too, so we don't keep asking for a
+            // whole weekend's worth of a stock that isn't there.
+            String stock = mSource.getStock(stockDay);
+            mMemoKeys[mMemoNext] = stockDay;
+            mMemoFilled[mMemoNext] = true;
+            mMemoStocks[mMemoNext] = stock;
+            mMemoNext = (mMemoNext + 1) % MEMO_SIZE;
+            return stock;
+        }
+    }
+}
@@ -7,9 +7,9 @@
  */
 package net.exclaimindustries.geohashdroid.util;
 
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.Calendar;
-import java.util.GregorianCalendar;
 
 import android.location.Location;
 import android.os.Parcel;
@@ -36,12 +36,29 @@ import net.exclaimindustries.tools.DateTools;
  * however, be built from anything else as need be.
  * </p>
  * 
+ * <p>
+ * Both the Parcel and the compact encoding ({@link #writeTo(ByteBuffer)},
+ * {@link #encodeArray(Info[])}) use the same fixed layout: the date as a
+ * {@link StockDay} day number, a few flags, the two coordinates, and the
+ * Graticule {@link Graticule#pack() packed} down to one number.  Note that
+ * the date's time of day doesn't survive the trip; it comes back as midnight.
+ * </p>
+ * 
  * @author Nicholas Killewald
  * 
  */
 public class Info implements Parcelable {
-    /** The earliest date at which the 30W Rule is used. */
-    private static final Calendar LIMIT_30W = new GregorianCalendar(2008, Calendar.MAY, 26);
+    /**
+     * How many bytes one Info takes up in the compact encoding.  That's the
+     * day (four), the flags (one), the coordinates (eight each), and the
+     * packed Graticule (two).
+     */
+    public static final int ENCODED_SIZE = 23;
+
+    // Flags for the encoded form.
+    private static final int ENCODED_RETRO = 0x1;
+    private static final int ENCODED_VALID = 0x2;
+    private static final int ENCODED_GLOBAL = 0x4;
 
     private double mLatitude;
     private double mLongitude;
@@ -102,6 +119,13 @@ public class Info implements Parcelable {
         readFromParcel(in);
     }
 
+    /**
+     * Builds an Info from the compact encoding.
+     */
+    private Info(int day, int flags, double latitude, double longitude, int packedGraticule) {
+        setFromEncoded(day, flags, latitude, longitude, packedGraticule);
+    }
+
 
     /**
      * Gets the latitude of the final destination.
@@ -246,7 +270,8 @@ public class Info implements Parcelable {
     /**
      * Returns a calendar representing the date from which the stock price was
      * pulled from a given date/graticule pair.  That is, back a day for the 30W
-     * Rule or globalhashes and rewinding to Friday if it falls on a weekend.
+     * Rule or globalhashes and rewinding to the last trading day if it falls on
+     * a weekend or exchange holiday.
      * 
      * @param c date to adjust
      * @param g Graticule to use to determine if the 30W Rule is in effect (if
@@ -255,28 +280,22 @@ public class Info implements Parcelable {
      */
     public static Calendar makeAdjustedCalendar(Calendar c, Graticule g) {
         // This adjusts the calendar for both the 30W Rule and to clamp all
-        // weekend stocks to the preceding Friday.  This saves a few database
-        // entries, as the weekend will always be Friday's value.  Note that
-        // this doesn't account for holidays when the US stocks aren't trading.
+        // weekend and holiday stocks to the last trading day.  This saves a few
+        // database entries (and trips to the mirrors), as the weekend will
+        // always be Friday's value.
         
-        // First, clone the calendar.  We don't want to muck about with the
-        // original for various reasons.
-        Calendar cal = (Calendar)(c.clone());
-        
-        // Second, 30W Rule hackery.  If g is null, assume we're in a globalhash
-        // (that is, adjustment is needed).  If the date is May 26, 2008 or
-        // earlier (and this isn't a globalhash), ignore it anyway (the 30W Rule
-        // only applies to non-globalhashes AFTER it was created).
-        if(g == null || (cal.after(LIMIT_30W) && g.uses30WRule()))
-            cal.add(Calendar.DAY_OF_MONTH, -1);
+        // The actual work is all done on plain day numbers by StockDay (see
+        // there for the 30W Rule, and TradingCalendar for the weekend and
+        // holiday hackery).  Here, we just need to turn that back into a
+        // Calendar.
+        int day = StockDay.fromCalendar(c);
+        int adjusted = StockDay.adjust(day, g);
         
-        // Third, if this new date is a weekend, clamp it back to Friday.
-        if(cal.get(Calendar.DAY_OF_WEEK) == Calendar.SATURDAY)
-            // Saturday: Back one day
-            cal.add(Calendar.DAY_OF_MONTH, -1);
-        else if(cal.get(Calendar.DAY_OF_WEEK) == Calendar.SUNDAY)
-            // SUNDAY SUNDAY SUNDAY!!!!!!: Back two days
-            cal.add(Calendar.DAY_OF_MONTH, -2);
+        // Clone the calendar.  We don't want to muck about with the original
+        // for various reasons.
+        Calendar cal = (Calendar)(c.clone());
+        if(adjusted != day)
+            cal.add(Calendar.DAY_OF_MONTH, adjusted - day);
         
         // There!  Done!
         return cal;
@@ -298,11 +317,22 @@ public class Info implements Parcelable {
      * @return true if 30W or global, false if not
      */
     public boolean uses30WRule() {
-        // If mGraticule is null, this is always 30W.
-        if(mGraticule == null) return true;
-        
-        // Otherwise, just forward it to the graticule itself.
-        return mDate.after(LIMIT_30W) && mGraticule.uses30WRule();
+        return uses30WRule(mDate, mGraticule);
+    }
+
+    /**
+     * Determines if a given date/graticule pair follows the 30W Rule.  That
+     * is, the graticule is east of 30W and the date is after the 30W Rule came
+     * into being.  Globalhashes (null graticules) always follow the 30W Rule.
+     *
+     * @param c the date in question
+     * @param g the graticule in question (null for a globalhash)
+     * @return true if 30W or global, false if not
+     */
+    public static boolean uses30WRule(Calendar c, Graticule g) {
+        // StockDay knows when the rule kicked in (and that globalhashes are
+        // always 30W).
+        return StockDay.uses30WRule(StockDay.fromCalendar(c), g);
     }
     
     /**
@@ -358,14 +388,13 @@ public class Info implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        // Let's make us a parcel.  Order is important, remember!
+        // Let's make us a parcel.  Order is important, remember!  This is the
+        // same layout as writeTo(ByteBuffer), only the flags and Graticule
+        // share an int, since Parcel doesn't do anything smaller than that.
+        dest.writeInt(StockDay.fromCalendar(mDate));
+        dest.writeInt((getEncodedFlags() << 16) | getPackedGraticule());
         dest.writeDouble(mLatitude);
         dest.writeDouble(mLongitude);
-        dest.writeParcelable(mGraticule, 0);
-        dest.writeInt(mDate.get(Calendar.YEAR));
-        dest.writeInt(mDate.get(Calendar.MONTH));
-        dest.writeInt(mDate.get(Calendar.DAY_OF_MONTH));
-        dest.writeInt(mRetroHash ? 1 : 0);
     }
     
     /**
@@ -376,16 +405,113 @@ public class Info implements Parcelable {
      */
     public void readFromParcel(Parcel in) {
         // Same order!  Go!
-        mLatitude = in.readDouble();
-        mLongitude = in.readDouble();
-        mGraticule = in.readParcelable(Graticule.class.getClassLoader());
+        int day = in.readInt();
+        int flagsAndGraticule = in.readInt();
+        double latitude = in.readDouble();
+        double longitude = in.readDouble();
 
-        mDate = Calendar.getInstance();
+        setFromEncoded(day, flagsAndGraticule >>> 16, latitude, longitude, flagsAndGraticule & 0xFFFF);
+    }
 
-        // In order, this better be year, month, day-of-month.
-        mDate.set(in.readInt(), in.readInt(), in.readInt());
+    /**
+     * Writes this Info to a ByteBuffer in the compact encoding.  That's
+     * exactly {@link #ENCODED_SIZE} bytes, starting at the buffer's current
+     * position.
+     * 
+     * @param dest where it goes
+     * @throws java.nio.BufferOverflowException there isn't enough room left
+     */
+    public void writeTo(ByteBuffer dest) {
+        dest.putInt(StockDay.fromCalendar(mDate));
+        dest.put((byte)getEncodedFlags());
+        dest.putDouble(mLatitude);
+        dest.putDouble(mLongitude);
+        dest.putChar((char)getPackedGraticule());
+    }
 
-        mRetroHash = (in.readInt() == 1);
+    /**
+     * Reads an Info back from a ByteBuffer written by
+     * {@link #writeTo(ByteBuffer)}, starting at the buffer's current position.
+     * 
+     * @param src where it comes from
+     * @return a new Info
+     * @throws java.nio.BufferUnderflowException there isn't a whole Info left
+     * @throws IllegalArgumentException what's there isn't an Info
+     */
+    public static Info readFrom(ByteBuffer src) {
+        int day = src.getInt();
+        int flags = src.get() & 0xFF;
+        double latitude = src.getDouble();
+        double longitude = src.getDouble();
+        int packedGraticule = src.getChar();
+
+        return new Info(day, flags, latitude, longitude, packedGraticule);
+    }
+
+    /**
+     * Encodes a whole array of Infos (nearby points, say) as one byte array,
+     * {@link #ENCODED_SIZE} bytes apiece, one after another.  None of them
+     * can be null.
+     * 
+     * @param infos the Infos
+     * @return the encoded Infos
+     */
+    public static byte[] encodeArray(Info[] infos) {
+        byte[] data = new byte[infos.length * ENCODED_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        for(Info i : infos)
+            i.writeTo(buffer);
+
+        return data;
+    }
+
+    /**
+     * Decodes an array of Infos from {@link #encodeArray(Info[])}.
+     * 
+     * @param data the encoded Infos
+     * @return the Infos, in the same order they went in
+     * @throws IllegalArgumentException the data isn't a whole number of Infos,
+     *                                  or something in it isn't an Info
+     */
+    public static Info[] decodeArray(byte[] data) {
+        if(data.length % ENCODED_SIZE != 0)
+            throw new IllegalArgumentException("Encoded Infos should be a multiple of " + ENCODED_SIZE
+                    + " bytes, not " + data.length);
+
+        Info[] infos = new Info[data.length / ENCODED_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        for(int i = 0; i < infos.length; i++)
+            infos[i] = readFrom(buffer);
+
+        return infos;
+    }
+
+    private int getEncodedFlags() {
+        int flags = 0;
+        if(mRetroHash) flags |= ENCODED_RETRO;
+        if(mValid) flags |= ENCODED_VALID;
+        if(mGraticule == null) flags |= ENCODED_GLOBAL;
+        return flags;
+    }
+
+    private int getPackedGraticule() {
+        // Globalhashes just get zero; the flag says to ignore it.
+        return mGraticule == null ? 0 : mGraticule.pack();
+    }
+
+    private void setFromEncoded(int day, int flags, double latitude, double longitude, int packedGraticule) {
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mGraticule = (flags & ENCODED_GLOBAL) != 0 ? null : Graticule.unpack(packedGraticule);
+        mDate = StockDay.toCalendar(day);
+
+        // The retrohash flag comes along as it was.  Today's hash might not be
+        // today any more by the time it gets unparcelled, but it's still the
+        // same Info.
+        mRetroHash = (flags & ENCODED_RETRO) != 0;
+        mValid = (flags & ENCODED_VALID) != 0;
     }
     
     private void setDate(@NonNull Calendar cal) {
@@ -0,0 +1,318 @@
+/**
+ * MappedStockStore.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * <p>
+ * A <code>MappedStockStore</code> keeps stocks in a flat file, mapped into
+ * memory.  The file has one fixed-size record for every trading day in
+ * {@link TradingCalendar}'s table (1971 through 2099), in order, so finding a
+ * stock is just working out the day's ordinal and reading the record there.
+ * No cursors, no queries, no locks.  The whole thing's about half a megabyte,
+ * so it can hold every stock there ever was (or will be for a while), and it
+ * never needs pruning.
+ * </p>
+ *
+ * <p>
+ * Each record is a length byte followed by up to fifteen bytes of ASCII stock.
+ * A length of zero means there's nothing there yet.  Records only ever get
+ * written once; a stock doesn't change once it's posted.  The header holds a
+ * magic number, the format version, the calendar table's signature, and the
+ * record count.  If any of that doesn't match (the calendar got a new holiday
+ * in an update, say, which would move the ordinals around), the file gets
+ * thrown out and started fresh.
+ * </p>
+ *
+ * <p>
+ * Everything else (hashes, mirror stats, and any stock that doesn't fit in a
+ * record) goes to another StockStore, normally a {@link StockStoreDatabase}.
+ * Stocks that are in there but not in the file yet get copied over the first
+ * time they're read.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public class MappedStockStore implements StockStore {
+    private static final String DEBUG_TAG = "MappedStockStore";
+
+    /** The file name the store normally uses (in the app's files directory). */
+    public static final String FILE_NAME = "stocks.dat";
+
+    // "GHDS", for "GeohashDroid Stocks".
+    private static final int MAGIC = 0x47484453;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 16;
+    private static final int MAX_LENGTH = RECORD_SIZE - 1;
+
+    private final File mFile;
+    private final StockStore mFallback;
+
+    // This gets set once in init() and never changes after that.  Reads are
+    // absolute, so they never touch the buffer's position, and any number of
+    // threads can read at once.
+    private MappedByteBuffer mBuffer;
+
+    // How many records are filled in.  Writes bump this AFTER the record's
+    // all written, and reads check it BEFORE reading a record, so this being
+    // volatile is what makes a finished record visible to everyone else.  A
+    // record that's caught halfway won't be a valid stock, so it just counts
+    // as not being there yet.
+    private volatile int mCount;
+
+    // Whether anything's been written since the last time the file was synced.
+    private boolean mDirty = false;
+
+    /**
+     * Constructs a MappedStockStore.  Call {@link #init()} before using it.
+     *
+     * @param file the file to keep the stocks in
+     * @param fallback where everything that isn't a stock in the file goes
+     */
+    public MappedStockStore(File file, StockStore fallback) {
+        mFile = file;
+        mFallback = fallback;
+    }
+
+    /**
+     * Opens the file and maps it in, creating it (or recreating it, if it's
+     * from some other version of the calendar) if need be.
+     *
+     * @return this (self reference, allowing this to be chained in an
+     *         initialization call)
+     * @throws IOException if the file couldn't be opened, created, or mapped
+     */
+    public MappedStockStore init() throws IOException {
+        int records = TradingCalendar.getOrdinalCount();
+        long size = HEADER_SIZE + (long)records * RECORD_SIZE;
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+
+        try {
+            boolean fresh = file.length() != size || !isHeaderValid(file, records);
+
+            if(fresh) {
+                // Truncating it first means the new one's all zeroes, which
+                // means all empty records.
+                Log.i(DEBUG_TAG, "Starting a new stock file at " + mFile);
+                file.setLength(0);
+                file.setLength(size);
+            }
+
+            // The mapping sticks around even after the file's closed.
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            if(fresh) {
+                // The header goes in last, so if this gets interrupted, the
+                // next init() will just start over.
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, FORMAT_VERSION);
+                buffer.putInt(8, TradingCalendar.getSignature());
+                buffer.putInt(12, records);
+                buffer.force();
+            }
+
+            int count = 0;
+            for(int i = 0; i < records; i++) {
+                if(buffer.get(HEADER_SIZE + i * RECORD_SIZE) != 0) count++;
+            }
+
+            mBuffer = buffer;
+            mCount = count;
+        } finally {
+            file.close();
+        }
+
+        Log.d(DEBUG_TAG, "Stock file has " + mCount + " of " + records + " stocks");
+        return this;
+    }
+
+    /**
+     * Gets how many stocks are in the file (not counting anything that went
+     * to the fallback).
+     *
+     * @return the number of filled records
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String getStock(int stockDay) {
+        int ordinal = TradingCalendar.getOrdinal(stockDay);
+        if(ordinal < 0) return mFallback.getStock(stockDay);
+
+        String stock = readRecord(ordinal);
+        if(stock != null) return stock;
+
+        // Not in the file.  If it's in the fallback (say, it was cached before
+        // the switch to the file), copy it over so it's here next time.
+        stock = mFallback.getStock(stockDay);
+        if(stock != null && fits(stock)) writeRecord(ordinal, stock);
+
+        return stock;
+    }
+
+    @Override
+    public long storeStock(int stockDay, String stock) {
+        int ordinal = TradingCalendar.getOrdinal(stockDay);
+        if(ordinal < 0 || !fits(stock)) return mFallback.storeStock(stockDay, stock);
+
+        return writeRecord(ordinal, stock) ? ordinal : -1;
+    }
+
+    @Override
+    public int storeStocks(int[] stockDays, String[] stocks, int count) {
+        int stored = 0;
+
+        // Anything that can't go in the file gets saved up and sent to the
+        // fallback all at once.
+        int[] otherDays = null;
+        String[] otherStocks = null;
+        int otherCount = 0;
+
+        for(int i = 0; i < count; i++) {
+            int ordinal = TradingCalendar.getOrdinal(stockDays[i]);
+
+            if(ordinal >= 0 && fits(stocks[i])) {
+                if(writeRecord(ordinal, stocks[i])) stored++;
+            } else {
+                if(otherDays == null) {
+                    otherDays = new int[count];
+                    otherStocks = new String[count];
+                }
+                otherDays[otherCount] = stockDays[i];
+                otherStocks[otherCount] = stocks[i];
+                otherCount++;
+            }
+        }
+
+        // A batch is worth syncing right away.
+        sync();
+
+        if(otherCount > 0) {
+            int otherStored = mFallback.storeStocks(otherDays, otherStocks, otherCount);
+            if(otherStored < 0) return -1;
+            stored += otherStored;
+        }
+
+        return stored;
+    }
+
+    @Override
+    public boolean getHashes(int day, boolean uses30W, double[] dest) {
+        return mFallback.getHashes(day, uses30W, dest);
+    }
+
+    @Override
+    public long storeInfo(Info i) {
+        return mFallback.storeInfo(i);
+    }
+
+    @Override
+    public List<MirrorHealth.Stats> getMirrorStats() {
+        return mFallback.getMirrorStats();
+    }
+
+    @Override
+    public boolean storeMirrorStats(List<MirrorHealth.Stats> stats) {
+        return mFallback.storeMirrorStats(stats);
+    }
+
+    @Override
+    public void cleanup() {
+        sync();
+        mFallback.cleanup();
+    }
+
+    @Override
+    public StockStoreDatabase.PruneResult prune() {
+        // The file's a fixed size, so there's nothing to prune in it.
+        return mFallback.prune();
+    }
+
+    @Override
+    public boolean deleteCache() {
+        synchronized(this) {
+            int end = mBuffer.capacity();
+            for(int i = HEADER_SIZE; i < end; i++)
+                mBuffer.put(i, (byte)0);
+
+            mBuffer.force();
+            mDirty = false;
+            mCount = 0;
+        }
+
+        return mFallback.deleteCache();
+    }
+
+    private String readRecord(int ordinal) {
+        // Reading mCount first is what makes this see every finished write.
+        if(mCount == 0) return null;
+
+        int offset = HEADER_SIZE + ordinal * RECORD_SIZE;
+        int length = mBuffer.get(offset) & 0xFF;
+        if(length == 0 || length > MAX_LENGTH) return null;
+
+        byte[] bytes = new byte[length];
+        for(int i = 0; i < length; i++)
+            bytes[i] = mBuffer.get(offset + 1 + i);
+
+        // If this isn't a stock, it's either halfway written or the file got
+        // mangled somehow.  Either way, it isn't there.
+        String stock = StockReader.toString(bytes, length);
+        return StockReader.isValid(stock) ? stock : null;
+    }
+
+    private synchronized boolean writeRecord(int ordinal, String stock) {
+        int offset = HEADER_SIZE + ordinal * RECORD_SIZE;
+
+        // Stocks don't change once they're posted, so once a record's there,
+        // it stays there.
+        if(mBuffer.get(offset) != 0) return false;
+
+        // Stock first, then the length, then the count.  See mCount.
+        int length = stock.length();
+        for(int i = 0; i < length; i++)
+            mBuffer.put(offset + 1 + i, (byte)stock.charAt(i));
+        mBuffer.put(offset, (byte)length);
+
+        mDirty = true;
+        mCount++;
+        return true;
+    }
+
+    private synchronized void sync() {
+        if(mDirty) {
+            mBuffer.force();
+            mDirty = false;
+        }
+    }
+
+    private static boolean fits(String stock) {
+        return stock.length() <= MAX_LENGTH && StockReader.isValid(stock);
+    }
+
+    private static boolean isHeaderValid(RandomAccessFile file, int records) throws IOException {
+        file.seek(0);
+        return file.readInt() == MAGIC
+                && file.readInt() == FORMAT_VERSION
+                && file.readInt() == TradingCalendar.getSignature()
+                && file.readInt() == records;
+    }
+}
@@ -0,0 +1,312 @@
+/**
+ * MirrorFetch.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.exclaimindustries.tools.HttpConnectionPool;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * <p>
+ * A <code>MirrorFetch</code> goes out to the stock mirrors to get one stock
+ * value.  It starts with the first mirror, and if that hasn't answered within
+ * the hedge delay, it starts on the second one as well (and so on down the
+ * list), without giving up on the first.  Whichever comes back with a valid
+ * stock first wins, and the rest get cancelled.  If a mirror fails outright,
+ * the next one starts right away instead of waiting out the delay.
+ * </p>
+ *
+ * <p>
+ * If nobody comes through, a mirror explicitly saying the stock isn't posted
+ * (a 404) beats any other sort of error, same as it always has.  A negative
+ * hedge delay turns the hedging off entirely, meaning each mirror is only
+ * tried once the one before it has failed.
+ * </p>
+ *
+ * <p>
+ * If it's given a {@link MirrorHealth}, that decides the order the mirrors get
+ * tried in (and which ones get skipped entirely), and every answer (or lack
+ * thereof) gets recorded back to it.  Otherwise, it's the order given.
+ * </p>
+ *
+ * <p>
+ * Each MirrorFetch is good for one {@link #run()}.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+final class MirrorFetch {
+    private static final String DEBUG_TAG = "MirrorFetch";
+
+    private static final int OUTCOME_OK = 0;
+    private static final int OUTCOME_NOT_POSTED = 1;
+    private static final int OUTCOME_ERROR = 2;
+    private static final int OUTCOME_ABORTED = 3;
+
+    // The mirror requests themselves run here.  There's no point in more
+    // threads than the connection pool has connections, since the rest would
+    // just be waiting on one.  Threads hang around for a bit after they're
+    // done in case another fetch comes along soon.
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            HttpConnectionPool.MAX_TOTAL, HttpConnectionPool.MAX_TOTAL,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private static class Attempt {
+        final int outcome;
+        final String value;
+
+        Attempt(int outcome, String value) {
+            this.outcome = outcome;
+            this.value = value;
+        }
+    }
+
+    private final String[] mMirrors;
+    private final String[] mLocations;
+    private final long mHedgeDelay;
+    private final MirrorHealth mHealth;
+    private int[] mOrder;
+
+    private final BlockingQueue<Attempt> mResults = new LinkedBlockingQueue<>();
+    private final List<HttpGet> mRequests = new ArrayList<>();
+    private volatile boolean mAborted = false;
+    // Set once someone's come back with a stock, so the requests that get
+    // cancelled because of that know they were outrun, not aborted.
+    private volatile boolean mWon = false;
+
+    /**
+     * Makes a new MirrorFetch.
+     *
+     * @param mirrors the mirrors (that is, their URL templates), by which the
+     *                MirrorHealth knows them
+     * @param locations URLs to try, one per mirror, in order of preference
+     * @param hedgeDelay how long, in milliseconds, to wait on a mirror before
+     *                   also trying the next one (negative to never hedge)
+     * @param health the MirrorHealth to consult and report to (null to just
+     *               go in order)
+     */
+    MirrorFetch(String[] mirrors, String[] locations, long hedgeDelay, MirrorHealth health) {
+        if(mirrors.length != locations.length)
+            throw new IllegalArgumentException("There needs to be one location per mirror!");
+
+        mMirrors = mirrors.clone();
+        mLocations = locations.clone();
+        mHedgeDelay = hedgeDelay;
+        mHealth = health;
+    }
+
+    /**
+     * Fetches the stock, blocking until something comes through, everything
+     * fails, or {@link #abort()} is called.
+     *
+     * @return the stock value, or a blank String if aborted
+     * @throws FileNotFoundException no mirror had it, and at least one said it
+     *                               wasn't posted yet
+     * @throws IOException no mirror had it for any other reason
+     */
+    String run() throws IOException {
+        // Skipped mirrors just don't show up in the order at all.
+        if(mHealth != null) {
+            mOrder = mHealth.plan(mMirrors, System.currentTimeMillis());
+        } else {
+            mOrder = new int[mMirrors.length];
+            for(int i = 0; i < mOrder.length; i++)
+                mOrder[i] = i;
+        }
+
+        int launched = 0;
+        int finished = 0;
+        boolean notPosted = false;
+
+        try {
+            while(!mAborted) {
+                // If nothing's in flight, start the next one right away.  If
+                // there IS no next one, we're out of mirrors.
+                if(finished == launched) {
+                    if(launched == mOrder.length) break;
+                    launch(launched++);
+                    continue;
+                }
+
+                // Otherwise, wait on whatever's in flight.  If there's still a
+                // mirror left to try, only wait as long as the hedge delay.
+                Attempt a;
+                if(launched < mOrder.length && mHedgeDelay >= 0)
+                    a = mResults.poll(mHedgeDelay, TimeUnit.MILLISECONDS);
+                else
+                    a = mResults.take();
+
+                if(a == null) {
+                    Log.v(DEBUG_TAG, "No answer yet, hedging with the next mirror...");
+                    launch(launched++);
+                    continue;
+                }
+
+                if(a.outcome == OUTCOME_ABORTED)
+                    break;
+
+                finished++;
+
+                if(a.outcome == OUTCOME_OK) {
+                    // Got it!  Nobody else needs to keep going.
+                    mWon = true;
+                    cancelAll();
+                    return a.value;
+                } else if(a.outcome == OUTCOME_NOT_POSTED) {
+                    notPosted = true;
+                }
+            }
+        } catch(InterruptedException ie) {
+            // Treat an interruption like a server error, but stop everything
+            // all the same.
+            cancelAll();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        if(mAborted)
+            return "";
+
+        // Not posted beats a server error.
+        if(notPosted)
+            throw new FileNotFoundException();
+        else
+            throw new IOException();
+    }
+
+    /**
+     * Aborts the fetch, cancelling any requests in flight.  {@link #run()}
+     * will return a blank String.
+     */
+    void abort() {
+        mAborted = true;
+        cancelAll();
+
+        // Wake up run() if it's waiting on something.
+        mResults.offer(new Attempt(OUTCOME_ABORTED, null));
+    }
+
+    private void launch(int index) {
+        final String mirror = mMirrors[mOrder[index]];
+        final String location = mLocations[mOrder[index]];
+        final HttpGet request = new HttpGet(location);
+
+        synchronized(mRequests) {
+            // If we were aborted just now, don't bother.
+            if(mAborted) return;
+            mRequests.add(request);
+        }
+
+        Log.v(DEBUG_TAG, "Trying " + location + "...");
+
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                Attempt a = new Attempt(OUTCOME_ERROR, null);
+                try {
+                    a = fetch(request);
+                } finally {
+                    // Whatever happens, run() has to hear about it, or it'll
+                    // be waiting on this one forever.  Anything fetch didn't
+                    // see coming counts as an error.
+                    if(mHealth != null)
+                        record(mirror, a, SystemClock.elapsedRealtime() - start);
+                    mResults.offer(a);
+                }
+            }
+        });
+    }
+
+    private void record(String mirror, Attempt a, long elapsed) {
+        if(a.outcome == OUTCOME_ERROR && (mWon || mAborted)) {
+            // An error after everything got cancelled is most likely BECAUSE
+            // everything got cancelled.  If that's because someone else won,
+            // that still says something about how fast this one is.  If it's
+            // because we aborted, it doesn't say anything at all.
+            if(!mAborted)
+                mHealth.recordOutrun(mirror, elapsed);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if(a.outcome == OUTCOME_OK)
+            mHealth.recordSuccess(mirror, elapsed, now);
+        else if(a.outcome == OUTCOME_NOT_POSTED)
+            mHealth.recordNotPosted(mirror, elapsed);
+        else
+            mHealth.recordFailure(mirror, now);
+    }
+
+    private void cancelAll() {
+        synchronized(mRequests) {
+            for(HttpGet request : mRequests)
+                request.abort();
+            mRequests.clear();
+        }
+    }
+
+    private static Attempt fetch(HttpGet request) {
+        HttpClient client = HttpConnectionPool.newClient();
+
+        try {
+            HttpResponse response = client.execute(request);
+            int code = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+
+            if(code != HttpURLConnection.HTTP_OK) {
+                // Whatever the error page says, we don't care, but it needs to
+                // be read out so the connection can go back in the pool.
+                if(entity != null) entity.consumeContent();
+
+                // A 404 means it's not posted.  A non-okay response that isn't
+                // a 404 is just plain bad.
+                if(code == HttpURLConnection.HTTP_NOT_FOUND)
+                    return new Attempt(OUTCOME_NOT_POSTED, null);
+                else
+                    return new Attempt(OUTCOME_ERROR, null);
+            }
+
+            // Well, we got this far!  Let's read!  Reading it to the end also
+            // puts the connection back in the pool.  If it turns out to be
+            // bogus data (or way too much data), StockReader bails out as soon
+            // as it notices, and we land in the IOException handler below.
+            byte[] stock = new byte[StockReader.MAX_STOCK_LENGTH];
+            int length = StockReader.read(entity.getContent(), stock);
+
+            return new Attempt(OUTCOME_OK, StockReader.toString(stock, length));
+        } catch(IOException ioe) {
+            // This is also what happens if we got cancelled, in which case
+            // nobody's listening anyway.  Either way, aborting makes sure the
+            // connection gets thrown out rather than put back half-read.
+            request.abort();
+            return new Attempt(OUTCOME_ERROR, null);
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/**
+ * MirrorHealth.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * <code>MirrorHealth</code> keeps track of how well each stock mirror has been
+ * doing: how long it usually takes to answer (as an exponentially-weighted
+ * moving average), how often it fails (likewise), and when it last actually
+ * gave us a stock.  {@link MirrorFetch} uses that to decide which mirrors to
+ * try first, so whichever one's been quickest and most reliable lately gets
+ * the first shot.
+ * </p>
+ *
+ * <p>
+ * It's also a circuit breaker.  A mirror that fails enough times in a row gets
+ * skipped entirely for a while, and that while gets longer each time it fails
+ * again once it's allowed back in.  If EVERY mirror is in that state, the one
+ * due back soonest gets tried anyway, since trying something beats giving up
+ * without asking.
+ * </p>
+ *
+ * <p>
+ * A 404 from a mirror counts as a perfectly healthy answer; the mirror's up,
+ * it just doesn't have the stock yet.  Mirrors are identified by their URL
+ * templates (the ones with %Y and such in them), so the stats carry across
+ * dates.  All times are wall-clock times, as they get stored in the database
+ * and need to survive a reboot.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public final class MirrorHealth {
+    /** How many failures in a row it takes to trip the breaker. */
+    public static final int BREAKER_THRESHOLD = 3;
+    /** How long the breaker stays open the first time, in milliseconds. */
+    public static final long BREAKER_BASE_COOLDOWN = 60 * 1000L;
+    /** The longest the breaker will stay open, in milliseconds. */
+    public static final long BREAKER_MAX_COOLDOWN = 60 * 60 * 1000L;
+
+    // How much each new sample counts toward the averages.
+    private static final double LATENCY_WEIGHT = 0.25;
+    private static final double ERROR_WEIGHT = 0.2;
+
+    // What we assume about a mirror we haven't heard from yet.  Everything
+    // starts out the same, so before we know anything, the configured order is
+    // what gets used.
+    private static final double DEFAULT_LATENCY = 1000;
+
+    // Don't let the error rate make the expected latency go completely
+    // infinite.  A mirror that's failed every time is still 20x worse, not
+    // infinitely worse.
+    private static final double MIN_SUCCESS_RATE = 0.05;
+
+    /**
+     * The stats for one mirror.  These are snapshots; changing anything in
+     * the MirrorHealth afterward won't change these.
+     */
+    public static final class Stats {
+        private final String mMirror;
+        private double mLatency = DEFAULT_LATENCY;
+        private double mErrorRate = 0;
+        private long mLastSuccess = 0;
+        private int mConsecutiveFailures = 0;
+        private long mOpenUntil = 0;
+        private long mAttempts = 0;
+        private long mSuccesses = 0;
+        private long mNotPosted = 0;
+        private long mFailures = 0;
+
+        private Stats(String mirror) {
+            mMirror = mirror;
+        }
+
+        private Stats(Stats other) {
+            mMirror = other.mMirror;
+            mLatency = other.mLatency;
+            mErrorRate = other.mErrorRate;
+            mLastSuccess = other.mLastSuccess;
+            mConsecutiveFailures = other.mConsecutiveFailures;
+            mOpenUntil = other.mOpenUntil;
+            mAttempts = other.mAttempts;
+            mSuccesses = other.mSuccesses;
+            mNotPosted = other.mNotPosted;
+            mFailures = other.mFailures;
+        }
+
+        /**
+         * Restores stats from storage.  This is for {@link StockStoreDatabase}.
+         */
+        static Stats restore(String mirror, double latency, double errorRate,
+                             long lastSuccess, int consecutiveFailures,
+                             long openUntil, long attempts, long successes,
+                             long notPosted, long failures) {
+            Stats s = new Stats(mirror);
+            s.mLatency = latency;
+            s.mErrorRate = errorRate;
+            s.mLastSuccess = lastSuccess;
+            s.mConsecutiveFailures = consecutiveFailures;
+            s.mOpenUntil = openUntil;
+            s.mAttempts = attempts;
+            s.mSuccesses = successes;
+            s.mNotPosted = notPosted;
+            s.mFailures = failures;
+            return s;
+        }
+
+        /** @return the mirror's URL template */
+        public String getMirror() { return mMirror; }
+        /** @return the average time to answer, in milliseconds */
+        public double getLatency() { return mLatency; }
+        /** @return the average failure rate, from 0 to 1 */
+        public double getErrorRate() { return mErrorRate; }
+        /** @return when this mirror last gave us a stock (0 for never) */
+        public long getLastSuccess() { return mLastSuccess; }
+        /** @return how many times in a row this mirror has failed */
+        public int getConsecutiveFailures() { return mConsecutiveFailures; }
+        /** @return when the breaker closes again (0 or past if it's closed) */
+        public long getOpenUntil() { return mOpenUntil; }
+        /** @return how many requests went to this mirror */
+        public long getAttempts() { return mAttempts; }
+        /** @return how many of those came back with a stock */
+        public long getSuccesses() { return mSuccesses; }
+        /** @return how many of those came back with a 404 */
+        public long getNotPosted() { return mNotPosted; }
+        /** @return how many of those failed */
+        public long getFailures() { return mFailures; }
+
+        /**
+         * Gets how long we'd expect to wait on this mirror for an answer,
+         * counting the times it fails as wasted time.
+         *
+         * @return expected latency, in milliseconds
+         */
+        public double getExpectedLatency() {
+            return mLatency / Math.max(MIN_SUCCESS_RATE, 1 - mErrorRate);
+        }
+
+        /**
+         * Determines if this mirror's breaker is open (that is, if it's being
+         * skipped) at the given time.
+         *
+         * @param now the current wall-clock time
+         * @return true if open, false if closed
+         */
+        public boolean isOpen(long now) {
+            return now < mOpenUntil;
+        }
+
+        @Override
+        public String toString() {
+            return mMirror + ": " + Math.round(mLatency) + "ms, "
+                    + Math.round(mErrorRate * 100) + "% errors, "
+                    + mSuccesses + "/" + mNotPosted + "/" + mFailures
+                    + " ok/404/failed of " + mAttempts;
+        }
+    }
+
+    private final Map<String, Stats> mStats = new HashMap<>();
+    private boolean mDirty = false;
+
+    /**
+     * Makes a new MirrorHealth that doesn't know anything yet.
+     */
+    public MirrorHealth() {
+    }
+
+    /**
+     * Makes a new MirrorHealth, starting from previously-stored stats.
+     *
+     * @param stored stats to start from
+     */
+    public MirrorHealth(List<Stats> stored) {
+        for(Stats s : stored)
+            mStats.put(s.mMirror, new Stats(s));
+    }
+
+    private Stats getOrMake(String mirror) {
+        Stats s = mStats.get(mirror);
+        if(s == null) {
+            s = new Stats(mirror);
+            mStats.put(mirror, s);
+        }
+        return s;
+    }
+
+    /**
+     * Works out which mirrors to try, and in what order.  That's fastest
+     * expected latency first, skipping anything with an open breaker (unless
+     * they ALL are, in which case it's whichever one's due back first).  Ties
+     * go to whichever comes first in the list given.
+     *
+     * @param mirrors the mirrors, in their configured order
+     * @param now the current wall-clock time
+     * @return indices into mirrors, in the order to try them
+     */
+    public synchronized int[] plan(String[] mirrors, long now) {
+        final Stats[] stats = new Stats[mirrors.length];
+        List<Integer> closed = new ArrayList<>();
+        int soonest = -1;
+
+        for(int i = 0; i < mirrors.length; i++) {
+            stats[i] = getOrMake(mirrors[i]);
+
+            if(!stats[i].isOpen(now))
+                closed.add(i);
+            else if(soonest < 0 || stats[i].mOpenUntil < stats[soonest].mOpenUntil)
+                soonest = i;
+        }
+
+        if(closed.isEmpty() && soonest >= 0)
+            closed.add(soonest);
+
+        // Sorting objects is stable, so ties keep the configured order.
+        Integer[] order = closed.toArray(new Integer[closed.size()]);
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Double.compare(stats[lhs].getExpectedLatency(), stats[rhs].getExpectedLatency());
+            }
+        });
+
+        int[] toReturn = new int[order.length];
+        for(int i = 0; i < order.length; i++)
+            toReturn[i] = order[i];
+        return toReturn;
+    }
+
+    /**
+     * Records that a mirror came back with a stock.
+     *
+     * @param mirror the mirror
+     * @param latency how long it took, in milliseconds
+     * @param now the current wall-clock time
+     */
+    public synchronized void recordSuccess(String mirror, long latency, long now) {
+        Stats s = recordAnswer(mirror, latency);
+        s.mSuccesses++;
+        s.mLastSuccess = now;
+    }
+
+    /**
+     * Records that a mirror came back with a 404.  As far as the mirror's
+     * health goes, that's just as good as a success.
+     *
+     * @param mirror the mirror
+     * @param latency how long it took, in milliseconds
+     */
+    public synchronized void recordNotPosted(String mirror, long latency) {
+        Stats s = recordAnswer(mirror, latency);
+        s.mNotPosted++;
+    }
+
+    private Stats recordAnswer(String mirror, long latency) {
+        Stats s = getOrMake(mirror);
+        s.mAttempts++;
+        s.mLatency += LATENCY_WEIGHT * (latency - s.mLatency);
+        s.mErrorRate -= ERROR_WEIGHT * s.mErrorRate;
+        s.mConsecutiveFailures = 0;
+        s.mOpenUntil = 0;
+        mDirty = true;
+        return s;
+    }
+
+    /**
+     * Records that a mirror failed (server error, bad data, timeout, that
+     * sort of thing).  Enough of these in a row trips the breaker.
+     *
+     * @param mirror the mirror
+     * @param now the current wall-clock time
+     */
+    public synchronized void recordFailure(String mirror, long now) {
+        Stats s = getOrMake(mirror);
+        s.mAttempts++;
+        s.mFailures++;
+        s.mErrorRate += ERROR_WEIGHT * (1 - s.mErrorRate);
+        s.mConsecutiveFailures++;
+
+        if(s.mConsecutiveFailures >= BREAKER_THRESHOLD) {
+            // Double the cooldown for every failure past the threshold, up to
+            // the limit.  The shift's capped so it can't overflow.
+            int doublings = Math.min(s.mConsecutiveFailures - BREAKER_THRESHOLD, 16);
+            long cooldown = Math.min(BREAKER_BASE_COOLDOWN << doublings, BREAKER_MAX_COOLDOWN);
+            s.mOpenUntil = now + cooldown;
+        }
+
+        mDirty = true;
+    }
+
+    /**
+     * Records that a mirror got cancelled because another one answered first.
+     * We don't know how long it WOULD'VE taken, but we know it was at least
+     * this long, so if that's slower than its average, the average goes up.
+     * It doesn't count as an attempt either way.
+     *
+     * @param mirror the mirror
+     * @param elapsed how long it had been going, in milliseconds
+     */
+    public synchronized void recordOutrun(String mirror, long elapsed) {
+        Stats s = getOrMake(mirror);
+        if(elapsed > s.mLatency) {
+            s.mLatency += LATENCY_WEIGHT * (elapsed - s.mLatency);
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Gets the stats for one mirror.
+     *
+     * @param mirror the mirror
+     * @return a snapshot of its stats
+     */
+    public synchronized Stats getStats(String mirror) {
+        return new Stats(getOrMake(mirror));
+    }
+
+    /**
+     * Gets the stats for every mirror we know about.
+     *
+     * @return snapshots of all the stats
+     */
+    public synchronized List<Stats> getAllStats() {
+        List<Stats> toReturn = new ArrayList<>(mStats.size());
+        for(Stats s : mStats.values())
+            toReturn.add(new Stats(s));
+        return toReturn;
+    }
+
+    /**
+     * Gets the stats if anything's changed since the last time this was
+     * called, so they can be written out.  If nothing's changed, returns null.
+     *
+     * @return snapshots of all the stats, or null if nothing's new
+     */
+    public synchronized List<Stats> takeChangedStats() {
+        if(!mDirty) return null;
+        mDirty = false;
+        return getAllStats();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("MirrorHealth:");
+        for(Stats s : mStats.values())
+            sb.append("\n  ").append(s);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * QuickCache.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * The <code>QuickCache</code> is the small in-memory cache that sits in front
+ * of the stock cache database.  It holds the raw hash fractions for the most
+ * recently used date/30W combinations, so flipping back and forth between a
+ * handful of graticules or dates doesn't have to hit SQLite every time.
+ * </p>
+ *
+ * <p>
+ * Entries are keyed by a single long packing the date (as days since the
+ * epoch) and which kind of hash it is (non-30W, 30W, or globalhash).  Lookups
+ * don't lock anything or allocate anything, so any number of threads can read
+ * at once; only storing takes a lock.  Once it's full, storing something new
+ * evicts whatever was used least recently.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public final class QuickCache {
+    /** Kind of hash for a graticule not under the 30W Rule. */
+    public static final int KIND_NON_30W = 0;
+    /** Kind of hash for a graticule under the 30W Rule. */
+    public static final int KIND_30W = 1;
+    /** Kind of hash for a globalhash. */
+    public static final int KIND_GLOBAL = 2;
+
+    private static final class Entry {
+        final long key;
+        final double latHash;
+        final double lonHash;
+        // This gets updated on every hit without any locking.  If two threads
+        // race on it, one of their timestamps wins, which is close enough for
+        // picking what to evict.
+        volatile long lastUsed;
+
+        Entry(long key, double latHash, double lonHash, long lastUsed) {
+            this.key = key;
+            this.latHash = latHash;
+            this.lonHash = lonHash;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> mEntries;
+    private final AtomicLong mClock = new AtomicLong();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    /**
+     * Makes a new, empty QuickCache.
+     *
+     * @param capacity the most entries it'll hold at once
+     */
+    public QuickCache(int capacity) {
+        if(capacity < 1)
+            throw new IllegalArgumentException("A QuickCache needs room for at least one entry!");
+        mEntries = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Makes the key for the given date and graticule.
+     *
+     * @param c the REAL date, not the stock date
+     * @param g the graticule (null for a globalhash)
+     * @return a key for that date/30W combination
+     */
+    public static long makeKey(Calendar c, Graticule g) {
+        return makeKey(StockDay.fromCalendar(c), g);
+    }
+
+    /**
+     * Makes the key for the given day and graticule.
+     *
+     * @param day the REAL date, as days since the epoch (see {@link StockDay})
+     * @param g the graticule (null for a globalhash)
+     * @return a key for that date/30W combination
+     */
+    public static long makeKey(int day, Graticule g) {
+        int kind;
+
+        if(g == null)
+            kind = KIND_GLOBAL;
+        else if(StockDay.uses30WRule(day, g))
+            kind = KIND_30W;
+        else
+            kind = KIND_NON_30W;
+
+        return makeKey(day, kind);
+    }
+
+    /**
+     * Makes the key for the given day and kind of hash.
+     *
+     * @param epochDay days since January 1, 1970
+     * @param kind one of the KIND_ constants
+     * @return a key for that combination
+     */
+    public static long makeKey(int epochDay, int kind) {
+        return ((long)epochDay << 2) | kind;
+    }
+
+    /**
+     * Looks up an entry.  If found, the latitude and longitude fractions go
+     * into dest[0] and dest[1], respectively.
+     *
+     * @param key key to look up
+     * @param dest two-element array to receive the fractions
+     * @return true on a hit, false on a miss (dest is untouched)
+     */
+    public boolean get(long key, double[] dest) {
+        // The cache is small enough that a straight scan is faster than
+        // hashing anything.
+        for(int i = 0; i < mEntries.length(); i++) {
+            Entry e = mEntries.get(i);
+            if(e != null && e.key == key) {
+                e.lastUsed = mClock.incrementAndGet();
+                dest[HashCalculator.LATITUDE] = e.latHash;
+                dest[HashCalculator.LONGITUDE] = e.lonHash;
+                mHits.incrementAndGet();
+                return true;
+            }
+        }
+
+        mMisses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Stores an entry, evicting the least recently used one if need be.
+     *
+     * @param key key to store under
+     * @param latHash latitude fraction
+     * @param lonHash longitude fraction
+     */
+    public synchronized void put(long key, double latHash, double lonHash) {
+        Entry toStore = new Entry(key, latHash, lonHash, mClock.incrementAndGet());
+
+        int empty = -1;
+        int victim = -1;
+        long oldest = Long.MAX_VALUE;
+
+        for(int i = 0; i < mEntries.length(); i++) {
+            Entry e = mEntries.get(i);
+
+            if(e == null) {
+                if(empty < 0) empty = i;
+            } else if(e.key == key) {
+                // Already here, so just freshen it up.
+                mEntries.set(i, toStore);
+                return;
+            } else if(e.lastUsed < oldest) {
+                victim = i;
+                oldest = e.lastUsed;
+            }
+        }
+
+        // An empty slot beats evicting anything.
+        if(empty >= 0) {
+            mEntries.set(empty, toStore);
+        } else {
+            mEntries.set(victim, toStore);
+            mEvictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Empties the cache.  The counters are left alone.
+     */
+    public synchronized void clear() {
+        for(int i = 0; i < mEntries.length(); i++)
+            mEntries.set(i, null);
+    }
+
+    /**
+     * Gets the number of lookups that found something.
+     *
+     * @return the hit count
+     */
+    public long getHits() {
+        return mHits.get();
+    }
+
+    /**
+     * Gets the number of lookups that didn't find anything.
+     *
+     * @return the miss count
+     */
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * Gets the number of entries that got pushed out to make room.
+     *
+     * @return the eviction count
+     */
+    public long getEvictions() {
+        return mEvictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "QuickCache: " + getHits() + " hits, " + getMisses() + " misses, "
+                + getEvictions() + " evictions";
+    }
+}
@@ -285,8 +285,9 @@ public class SelectAGraticuleMode
 
         removeDestinationPoint();
 
-        // Fetch the stock, too.
-        requestStock(g, mCalendar, StockService.FLAG_USER_INITIATED | StockService.FLAG_SELECT_A_GRATICULE);
+        // Fetch the stock, too.  The user might be flicking through a bunch of
+        // graticules in a row, so this supersedes whatever came before.
+        requestStock(g, mCalendar, StockService.FLAG_USER_INITIATED | StockService.FLAG_SELECT_A_GRATICULE, true);
     }
 
     @Override
@@ -335,7 +336,7 @@ public class SelectAGraticuleMode
         banner.animateBanner(true);
 
         mLastLocation = loc;
-        requestStock(new Graticule(loc), mCalendar, StockService.FLAG_USER_INITIATED | StockService.FLAG_FIND_CLOSEST);
+        requestStock(new Graticule(loc), mCalendar, StockService.FLAG_USER_INITIATED | StockService.FLAG_FIND_CLOSEST, true);
     }
 
     private void outlineGraticule(Graticule g) {
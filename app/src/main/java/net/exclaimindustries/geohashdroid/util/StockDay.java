@@ -0,0 +1,180 @@
+/**
+ * StockDay.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * <p>
+ * <code>StockDay</code> handles dates as plain ints: the number of days since
+ * January 1, 1970.  Everything that just needs to know what DAY something is
+ * (cache keys, 30W Rule adjustments, weekend clamping, database lookups) can
+ * work with these instead of cloning Calendars, poking at time zones, or
+ * running things through a SimpleDateFormat.  Calendars only come into it at
+ * the edges, when something comes in from or goes out to the rest of the app.
+ * </p>
+ *
+ * <p>
+ * Only the year, month, and day fields of a Calendar are used, so the time of
+ * day and the time zone don't matter.  The database stores dates as
+ * <code>yyyymmdd</code> integers, so there's conversions for that, too.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public final class StockDay {
+    /**
+     * The last day the 30W Rule WASN'T in effect (May 26, 2008).  Anything
+     * after this follows it.
+     */
+    public static final int LIMIT_30W = fromDate(2008, 5, 26);
+
+    // Days in a 400-year cycle of the Gregorian calendar.
+    private static final int DAYS_PER_ERA = 146097;
+    // Days from March 1, 0000 (the start of the shifted calendar the
+    // conversions use) to January 1, 1970.
+    private static final int EPOCH_SHIFT = 719468;
+
+    // Nope, all static here, too.
+    private StockDay() { }
+
+    /**
+     * Gets the day for the given Calendar.
+     *
+     * @param c Calendar in question
+     * @return days since the epoch
+     */
+    public static int fromCalendar(Calendar c) {
+        return fromDate(c.get(Calendar.YEAR), c.get(Calendar.MONTH) + 1, c.get(Calendar.DAY_OF_MONTH));
+    }
+
+    /**
+     * Gets the day for the given date.  Note that the month is one-based
+     * (January is 1), unlike Calendar.
+     *
+     * @param year the year
+     * @param month the month (1-12)
+     * @param day the day of the month
+     * @return days since the epoch
+     */
+    public static int fromDate(int year, int month, int day) {
+        // This is the usual days-from-civil conversion, shifting the year to
+        // start in March so leap days land at the end.
+        if(month <= 2) year--;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * DAYS_PER_ERA + dayOfEra - EPOCH_SHIFT;
+    }
+
+    /**
+     * Gets the day for a <code>yyyymmdd</code> integer, as stored in the
+     * database.
+     *
+     * @param dateKey date as a <code>yyyymmdd</code> integer
+     * @return days since the epoch
+     */
+    public static int fromDateKey(int dateKey) {
+        return fromDate(dateKey / 10000, (dateKey / 100) % 100, dateKey % 100);
+    }
+
+    /**
+     * Gets the <code>yyyymmdd</code> integer for the given day.  That's the
+     * same number DateTools.getDateString would spell out, and what the
+     * database uses for its date columns.
+     *
+     * @param day days since the epoch
+     * @return the date as a <code>yyyymmdd</code> integer
+     */
+    public static int toDateKey(int day) {
+        // And this is the reverse of fromDate.
+        int shifted = day + EPOCH_SHIFT;
+        int era = (shifted >= 0 ? shifted : shifted - DAYS_PER_ERA + 1) / DAYS_PER_ERA;
+        int dayOfEra = shifted - era * DAYS_PER_ERA;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int dayOfMonth = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        return year * 10000 + month * 100 + dayOfMonth;
+    }
+
+    /**
+     * Makes a new Calendar for the given day, at midnight in the default time
+     * zone.  This is for when a day needs to go back out to something that
+     * wants a Calendar.
+     *
+     * @param day days since the epoch
+     * @return a new Calendar
+     */
+    public static Calendar toCalendar(int day) {
+        int dateKey = toDateKey(day);
+        return new GregorianCalendar(dateKey / 10000, (dateKey / 100) % 100 - 1, dateKey % 100);
+    }
+
+    /**
+     * Gets the day of the week for the given day, using the same constants as
+     * Calendar (Calendar.SUNDAY through Calendar.SATURDAY).
+     *
+     * @param day days since the epoch
+     * @return the day of the week
+     */
+    public static int dayOfWeek(int day) {
+        // January 1, 1970 was a Thursday, which Calendar calls 5.
+        int fromSunday = (day + 4) % 7;
+        if(fromSunday < 0) fromSunday += 7;
+        return fromSunday + Calendar.SUNDAY;
+    }
+
+    /**
+     * Determines if the given day and Graticule follow the 30W Rule.  A null
+     * Graticule means a globalhash, which always does.
+     *
+     * @param day days since the epoch (the REAL date, not the stock date)
+     * @param g Graticule in question, or null for a globalhash
+     * @return true if the 30W Rule applies, false if not
+     */
+    public static boolean uses30WRule(int day, Graticule g) {
+        return g == null || (day > LIMIT_30W && g.uses30WRule());
+    }
+
+    /**
+     * Works out the stock day for the given day and Graticule.  That is, back a
+     * day for the 30W Rule or globalhashes and rewinding to the last trading
+     * day if it falls on a weekend or holiday.  This is the same thing as
+     * {@link Info#makeAdjustedCalendar(Calendar, Graticule)}.
+     *
+     * @param day days since the epoch (the REAL date)
+     * @param g Graticule in question, or null for a globalhash
+     * @return the day whose stock value gets used
+     */
+    public static int adjust(int day, Graticule g) {
+        return adjust(day, uses30WRule(day, g));
+    }
+
+    /**
+     * Works out the stock day for the given day, given whether or not it
+     * follows the 30W Rule.
+     *
+     * @param day days since the epoch (the REAL date)
+     * @param uses30W true if the 30W Rule applies
+     * @return the day whose stock value gets used
+     */
+    public static int adjust(int day, boolean uses30W) {
+        if(uses30W) day--;
+
+        // Clamp weekends and holidays back to the last day the exchange was
+        // open.  That's the stock the hash uses, and since every day it was
+        // closed shares it, they all share the one cache entry, too.
+        return TradingCalendar.previousTradingDay(day);
+    }
+}
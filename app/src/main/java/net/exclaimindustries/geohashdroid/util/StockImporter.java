@@ -0,0 +1,379 @@
+/**
+ * StockImporter.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * <code>StockImporter</code> loads a whole history of stocks into a
+ * {@link StockStore} from a CSV file, so hashpoints for any of those dates can
+ * be worked out without ever going to a mirror.
+ * </p>
+ *
+ * <p>
+ * The file is one stock per line, as <code>YYYY-MM-DD,open</code>, oldest
+ * first.  Anything after a second comma is ignored, so the usual
+ * Date,Open,High,Low,Close exports work as-is.  A header line, blank lines, and
+ * lines starting with # are skipped.  The opening value has to be written
+ * exactly the way the mirrors write it, with two decimal places, since that
+ * string is what goes into the hash.
+ * </p>
+ *
+ * <p>
+ * The file is read a line at a time and checked in full before anything gets
+ * stored: every line has to parse, the dates have to go up, and the stocks
+ * have to match every anchor that falls within the file's dates.  Anchors are
+ * the few stocks known for sure (see below), plus the most recent of the
+ * file's dates that the store already has a stock for, since that's what
+ * every hashpoint so far was worked out from.  If all that works out, everything goes to the store in one
+ * batch (which, for {@link StockStoreDatabase}, is one transaction).  If not,
+ * nothing gets stored at all.
+ * </p>
+ *
+ * <p>
+ * A file that doesn't cover ANY anchor can't be checked against anything, so
+ * by default, that's an error, too.  The caller has to say it's okay with
+ * that (see {@link #importStocks(Reader, StockStore, boolean)}) for it to go
+ * through.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public final class StockImporter {
+    // Stocks we know for sure, as date keys and values, in date order.  The
+    // first one's the example from the wiki's algorithm description (and the
+    // original comic).  Anything added here needs to come straight from a
+    // mirror, not from memory or some other source's idea of the opening
+    // value; a wrong anchor means every correct file covering that date gets
+    // rejected.
+    private static final int[] ANCHOR_KEYS = { 20050526 };
+    private static final String[] ANCHOR_STOCKS = { "10458.68" };
+
+    // How many of the file's most recent dates to look up in the store.  Each
+    // one's a lookup, and the store's most likely to have recent ones anyway.
+    private static final int MAX_STORE_CHECKS = 64;
+
+    // A bit more than twenty years' worth of trading days.  It grows from
+    // there if need be.
+    private static final int INITIAL_CAPACITY = 5120;
+
+    /**
+     * Thrown when the file isn't a valid stock history.  Nothing gets stored
+     * if this comes up.
+     */
+    public static class ImportException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int mLine;
+
+        ImportException(int line, String message) {
+            super(line > 0 ? "Line " + line + ": " + message : message);
+            mLine = line;
+        }
+
+        /**
+         * Gets the line the problem's on.
+         *
+         * @return the line number (starting from 1), or 0 if it's not any one
+         *         line's fault
+         */
+        public int getLine() {
+            return mLine;
+        }
+    }
+
+    /**
+     * What came of an import.
+     */
+    public static class Result {
+        private final int mRead;
+        private final int mStored;
+        private final int mSkipped;
+        private final int mAnchors;
+        private final int mFirstDay;
+        private final int mLastDay;
+
+        private Result(int read, int stored, int skipped, int anchors, int firstDay, int lastDay) {
+            mRead = read;
+            mStored = stored;
+            mSkipped = skipped;
+            mAnchors = anchors;
+            mFirstDay = firstDay;
+            mLastDay = lastDay;
+        }
+
+        /**
+         * Gets how many stocks were in the file.
+         *
+         * @return the number of stocks read
+         */
+        public int getStocksRead() {
+            return mRead;
+        }
+
+        /**
+         * Gets how many stocks were new to the store.  The rest were already
+         * there.
+         *
+         * @return the number of stocks stored
+         */
+        public int getStocksStored() {
+            return mStored;
+        }
+
+        /**
+         * Gets how many lines were left out because the calendar says the
+         * exchange was closed that day.  Nothing ever looks up a stock for a
+         * day like that, so there's no point storing it.
+         *
+         * @return the number of stocks skipped
+         */
+        public int getStocksSkipped() {
+            return mSkipped;
+        }
+
+        /**
+         * Gets how many anchor stocks the file was checked against, counting
+         * both the built-in ones and the ones the store already had.  If this
+         * is zero, the file wasn't checked against anything, which only
+         * happens if the caller said that was okay.
+         *
+         * @return the number of anchors that fell within the file's dates
+         */
+        public int getAnchorsChecked() {
+            return mAnchors;
+        }
+
+        /**
+         * Gets the first date in the file.
+         *
+         * @return days since the epoch (meaningless if nothing was read)
+         */
+        public int getFirstDay() {
+            return mFirstDay;
+        }
+
+        /**
+         * Gets the last date in the file.
+         *
+         * @return days since the epoch (meaningless if nothing was read)
+         */
+        public int getLastDay() {
+            return mLastDay;
+        }
+
+        @Override
+        public String toString() {
+            return mRead + " stocks read, " + mStored + " stored, " + mSkipped
+                    + " skipped, " + mAnchors + " anchors checked";
+        }
+    }
+
+    // Nope, all static here.
+    private StockImporter() { }
+
+    /**
+     * Imports a stock history into the store.  This reads all the way through
+     * the file first, so nothing's stored unless the whole thing checks out,
+     * including having at least one anchor to check against.  The Reader isn't
+     * closed when this is done.
+     *
+     * @param in the CSV file
+     * @param store where the stocks go
+     * @return what came of it
+     * @throws ImportException the file isn't a valid stock history, it
+     *                         doesn't cover any anchors, or the store couldn't
+     *                         store it
+     * @throws IOException couldn't read the file
+     */
+    public static Result importStocks(Reader in, StockStore store) throws IOException {
+        return importStocks(in, store, false);
+    }
+
+    /**
+     * Imports a stock history into the store, optionally letting through a
+     * file that doesn't cover any anchors.  Such a file is only checked for
+     * being well-formed, so its stocks are exactly as good as wherever it came
+     * from; only pass true if the user knowingly said to go ahead anyway.
+     * Check {@link Result#getAnchorsChecked()} to see if it happened.
+     *
+     * @param in the CSV file
+     * @param store where the stocks go
+     * @param allowUnchecked true to store the file even if there was nothing
+     *                       to check it against
+     * @return what came of it
+     * @throws ImportException the file isn't a valid stock history, it
+     *                         doesn't cover any anchors (and allowUnchecked is
+     *                         false), or the store couldn't store it
+     * @throws IOException couldn't read the file
+     */
+    public static Result importStocks(Reader in, StockStore store, boolean allowUnchecked) throws IOException {
+        BufferedReader reader = in instanceof BufferedReader ? (BufferedReader)in : new BufferedReader(in);
+
+        int[] days = new int[INITIAL_CAPACITY];
+        String[] stocks = new String[INITIAL_CAPACITY];
+        int count = 0;
+        int skipped = 0;
+        int firstDay = 0;
+        int lastDay = 0;
+
+        int lineNumber = 0;
+        boolean headerAllowed = true;
+        String line;
+
+        while((line = reader.readLine()) != null) {
+            lineNumber++;
+
+            if(line.isEmpty() || line.charAt(0) == '#') continue;
+
+            // Anything that doesn't start with a digit before the first stock
+            // is a header.  Once stocks start, it's an error.
+            char first = line.charAt(0);
+            if(first < '0' || first > '9') {
+                if(headerAllowed) {
+                    headerAllowed = false;
+                    continue;
+                }
+                throw new ImportException(lineNumber, "not a stock");
+            }
+            headerAllowed = false;
+
+            int day = parseDate(line, lineNumber);
+            String stock = parseStock(line, lineNumber);
+
+            if(count + skipped == 0)
+                firstDay = day;
+            else if(day <= lastDay)
+                throw new ImportException(lineNumber, "dates are out of order");
+            lastDay = day;
+
+            if(!TradingCalendar.isTradingDay(day)) {
+                skipped++;
+                continue;
+            }
+
+            if(count == days.length) {
+                int[] newDays = new int[count * 2];
+                String[] newStocks = new String[count * 2];
+                System.arraycopy(days, 0, newDays, 0, count);
+                System.arraycopy(stocks, 0, newStocks, 0, count);
+                days = newDays;
+                stocks = newStocks;
+            }
+
+            days[count] = day;
+            stocks[count] = stock;
+            count++;
+        }
+
+        int anchors = checkAnchors(days, stocks, count, firstDay, lastDay)
+                + checkStore(days, stocks, count, store);
+
+        if(count > 0 && anchors == 0 && !allowUnchecked)
+            throw new ImportException(0, "there's nothing to check the file against (none of the known "
+                    + "stocks fall within its dates, and none of its recent dates are cached)");
+
+        int stored = 0;
+        if(count > 0) {
+            stored = store.storeStocks(days, stocks, count);
+            if(stored < 0) throw new ImportException(0, "the stock store couldn't store the stocks");
+        }
+
+        return new Result(count + skipped, stored, skipped, anchors, firstDay, lastDay);
+    }
+
+    private static int checkAnchors(int[] days, String[] stocks, int count, int firstDay, int lastDay) throws ImportException {
+        int checked = 0;
+
+        for(int i = 0; i < ANCHOR_KEYS.length; i++) {
+            int day = StockDay.fromDateKey(ANCHOR_KEYS[i]);
+            if(count == 0 || day < firstDay || day > lastDay) continue;
+
+            // The days are in order, so this can be a binary search.
+            int index = Arrays.binarySearch(days, 0, count, day);
+            if(index < 0)
+                throw new ImportException(0, "the stock for " + ANCHOR_KEYS[i] + " is missing");
+            if(!stocks[index].equals(ANCHOR_STOCKS[i]))
+                throw new ImportException(0, "the stock for " + ANCHOR_KEYS[i] + " should be "
+                        + ANCHOR_STOCKS[i] + ", not " + stocks[index]);
+
+            checked++;
+        }
+
+        return checked;
+    }
+
+    private static int checkStore(int[] days, String[] stocks, int count, StockStore store) throws ImportException {
+        int checked = 0;
+
+        // Whatever the store already has is what every hashpoint so far was
+        // worked out from, so the file had better agree with it.
+        for(int i = count - 1; i >= 0 && i >= count - MAX_STORE_CHECKS; i--) {
+            String known = store.getStock(days[i]);
+            if(known == null) continue;
+
+            if(!stocks[i].equals(known))
+                throw new ImportException(0, "the stock for " + StockDay.toDateKey(days[i])
+                        + " is already cached as " + known + ", not " + stocks[i]);
+
+            checked++;
+        }
+
+        return checked;
+    }
+
+    private static int parseDate(String line, int lineNumber) throws ImportException {
+        // YYYY-MM-DD, then a comma.
+        if(line.length() < 11 || line.charAt(4) != '-' || line.charAt(7) != '-' || line.charAt(10) != ',')
+            throw new ImportException(lineNumber, "the date isn't YYYY-MM-DD");
+
+        int year = parseDigits(line, 0, 4, lineNumber);
+        int month = parseDigits(line, 5, 7, lineNumber);
+        int date = parseDigits(line, 8, 10, lineNumber);
+
+        // StockDay will happily roll February 30th over into March, so make
+        // sure it comes back out the same way it went in.
+        int dateKey = year * 10000 + month * 100 + date;
+        int day = StockDay.fromDate(year, month, date);
+        if(month < 1 || month > 12 || date < 1 || StockDay.toDateKey(day) != dateKey)
+            throw new ImportException(lineNumber, "there's no such date");
+
+        return day;
+    }
+
+    private static int parseDigits(String line, int start, int end, int lineNumber) throws ImportException {
+        int value = 0;
+
+        for(int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if(c < '0' || c > '9')
+                throw new ImportException(lineNumber, "the date isn't YYYY-MM-DD");
+            value = value * 10 + (c - '0');
+        }
+
+        return value;
+    }
+
+    private static String parseStock(String line, int lineNumber) throws ImportException {
+        int end = line.indexOf(',', 11);
+        if(end < 0) end = line.length();
+
+        String stock = line.substring(11, end).trim();
+
+        // Exactly two decimal places, same as the mirrors.  Anything else
+        // would make for a different hash.
+        if(!StockReader.isValid(stock) || stock.length() < 4 || stock.charAt(stock.length() - 3) != '.')
+            throw new ImportException(lineNumber, "the stock isn't written like 12345.67");
+
+        return stock;
+    }
+}
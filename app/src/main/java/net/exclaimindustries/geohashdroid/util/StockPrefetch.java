@@ -0,0 +1,570 @@
+/**
+ * StockPrefetch.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.exclaimindustries.tools.HttpConnectionPool;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * <p>
+ * A <code>StockPrefetch</code> warms up the stock cache for a whole range of
+ * dates at once, so a week of retrohashes or a long trip can be worked out
+ * later without going back to the internet for each day.  It figures out
+ * every stock date the range needs (both sides of the 30W line), skips the
+ * ones already cached, and goes after the rest.
+ * </p>
+ *
+ * <p>
+ * If any range mirrors are configured (mirrors that can answer for a span of
+ * dates in one request), those get asked first.  Whatever's left gets fetched
+ * one day at a time from the usual mirrors, a few days at once.  Everything
+ * that came in gets stored in one go at the end.
+ * </p>
+ *
+ * <p>
+ * A range mirror's URL template has %S and %E in it, which become the first
+ * and last stock dates as <code>yyyy-mm-dd</code>.  It should answer with one
+ * line per date it has, the date (again <code>yyyy-mm-dd</code>) followed by a
+ * space or comma and the stock value.  Blank lines and lines starting with #
+ * are skipped, as is anything outside the dates asked for.
+ * </p>
+ *
+ * <p>
+ * Each StockPrefetch is good for one {@link #run(ProgressListener)}.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public class StockPrefetch {
+    private static final String DEBUG_TAG = "StockPrefetch";
+
+    /**
+     * The longest range of dates that can be prefetched at once.  Anything
+     * past a year is better off as a proper import than hammering the mirrors.
+     */
+    public static final int MAX_DAYS = 366;
+
+    /** How many single-day fetches can go at once, by default. */
+    public static final int DEFAULT_CONCURRENCY = 3;
+
+    // The longest line we'll take from a range mirror, and how many lines
+    // past the number of dates asked for we'll read before deciding it's
+    // feeding us garbage.
+    private static final int MAX_LINE_LENGTH = 64;
+    private static final int EXTRA_LINES = 16;
+
+    // The single-day fetches run here.  Every one of them starts on the same
+    // mirror, so there's no sense in running more at once than there are
+    // connections to any one server; a second prefetch's days just wait their
+    // turn.  Like MirrorFetch's threads, these hang around a bit in case
+    // another prefetch comes along.
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            HttpConnectionPool.MAX_PER_ROUTE, HttpConnectionPool.MAX_PER_ROUTE,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Where a <code>StockPrefetch</code> checks for and stores stock values.
+     */
+    public interface StockCache {
+        /**
+         * Gets the stock value for the given already-adjusted date, if it's
+         * stored.
+         *
+         * @param stockDay the stock date, as days since the epoch
+         * @return the stock value, or null if it isn't stored
+         */
+        String getStock(int stockDay);
+
+        /**
+         * Stores a batch of stock values, all at once.  These should be kept
+         * around no matter how old they are; that's the whole point of
+         * prefetching them.  That includes any that were already stored.
+         *
+         * @param stockDays the stock dates, as days since the epoch
+         * @param stocks the stock values, matched up with stockDays
+         * @param count how many of each array to store
+         * @return how many were actually new
+         */
+        int storeStocks(int[] stockDays, String[] stocks, int count);
+    }
+
+    /**
+     * Gets told how far along the prefetch is.  This gets called from
+     * whatever thread finished the day in question, so make sure it can deal
+     * with that.
+     */
+    public interface ProgressListener {
+        /**
+         * Called whenever another stock date is dealt with, one way or
+         * another.
+         *
+         * @param done how many stock dates are dealt with so far
+         * @param total how many stock dates there are in all
+         */
+        void onProgress(int done, int total);
+    }
+
+    /**
+     * What a prefetch got done.  The counts are all in stock dates, not real
+     * dates, so a week of hashes might be only five or six stocks.
+     */
+    public static class Result {
+        private final int mTotal;
+        private final int mCached;
+        private final int mFetched;
+        private final int mNotPosted;
+        private final int mFailed;
+        private final boolean mAborted;
+
+        private Result(int total, int cached, int fetched, int notPosted, int failed, boolean aborted) {
+            mTotal = total;
+            mCached = cached;
+            mFetched = fetched;
+            mNotPosted = notPosted;
+            mFailed = failed;
+            mAborted = aborted;
+        }
+
+        /** @return how many stock dates the range needed */
+        public int getTotal() { return mTotal; }
+        /** @return how many of those were already in the cache */
+        public int getCached() { return mCached; }
+        /** @return how many of those were fetched (and stored) */
+        public int getFetched() { return mFetched; }
+        /** @return how many of those the mirrors said weren't posted */
+        public int getNotPosted() { return mNotPosted; }
+        /** @return how many of those couldn't be fetched for other reasons */
+        public int getFailed() { return mFailed; }
+        /** @return true if the prefetch was aborted partway through */
+        public boolean wasAborted() { return mAborted; }
+
+        @Override
+        public String toString() {
+            return mTotal + " stocks: " + mCached + " cached, " + mFetched + " fetched, "
+                    + mNotPosted + " not posted, " + mFailed + " failed"
+                    + (mAborted ? " (aborted)" : "");
+        }
+    }
+
+    private final int mFirstDay;
+    private final int mLastDay;
+    private final StockCache mCache;
+    private final String[] mMirrors;
+    private final String[] mRangeMirrors;
+    private final MirrorHealth mHealth;
+
+    private int mConcurrency = DEFAULT_CONCURRENCY;
+    private long mHedgeDelay = HashBuilder.StockRunner.DEFAULT_HEDGE_DELAY;
+
+    private final List<MirrorFetch> mActive = new ArrayList<>();
+    private volatile HttpGet mRangeRequest;
+    private volatile boolean mAborted = false;
+
+    // Fetched stocks pile up here until they're all stored at the end.
+    private final Map<Integer, String> mFetched = new HashMap<>();
+    private final AtomicInteger mDone = new AtomicInteger();
+    private final AtomicInteger mNotPosted = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+
+    /**
+     * Makes a new StockPrefetch.  The dates are REAL dates (that is, the dates
+     * of the hashes you'll want), both inclusive.  See
+     * {@link HashBuilder#requestStockPrefetch(android.content.Context, Calendar, Calendar)}
+     * for one that uses the stock cache and the usual mirrors.
+     *
+     * @param firstDay first day, as days since the epoch
+     * @param lastDay last day, as days since the epoch
+     * @param cache where to check for and store stocks
+     * @param mirrors single-day mirror URL templates
+     * @param rangeMirrors range mirror URL templates (can be empty)
+     * @param health the MirrorHealth to consult and report to (can be null)
+     * @throws IllegalArgumentException the range is backwards or longer than
+     *                                  {@link #MAX_DAYS}
+     */
+    public StockPrefetch(int firstDay, int lastDay, StockCache cache, String[] mirrors,
+                         String[] rangeMirrors, MirrorHealth health) {
+        if(lastDay < firstDay)
+            throw new IllegalArgumentException("The range ends before it starts!");
+        if(lastDay - firstDay + 1 > MAX_DAYS)
+            throw new IllegalArgumentException("Can't prefetch more than " + MAX_DAYS + " days at once!");
+
+        mFirstDay = firstDay;
+        mLastDay = lastDay;
+        mCache = cache;
+        mMirrors = mirrors.clone();
+        mRangeMirrors = rangeMirrors.clone();
+        mHealth = health;
+    }
+
+    /**
+     * Sets how many single-day fetches can go at once.  This needs to be set
+     * before the prefetch starts.
+     *
+     * @param concurrency the number of fetches (at least 1)
+     */
+    public void setConcurrency(int concurrency) {
+        mConcurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Sets the hedge delay for the single-day fetches.  See
+     * {@link HashBuilder.StockRunner#setHedgeDelay(long)}.  This needs to be
+     * set before the prefetch starts.
+     *
+     * @param millis the hedge delay, in milliseconds
+     */
+    public void setHedgeDelay(long millis) {
+        mHedgeDelay = millis;
+    }
+
+    /**
+     * Aborts the prefetch.  Anything fetched so far still gets stored.
+     */
+    public void abort() {
+        mAborted = true;
+
+        HttpGet range = mRangeRequest;
+        if(range != null) range.abort();
+
+        synchronized(mActive) {
+            for(MirrorFetch fetch : mActive)
+                fetch.abort();
+        }
+    }
+
+    /**
+     * Runs the prefetch, blocking until it's done (or aborted).
+     *
+     * @param listener gets told about progress (can be null)
+     * @return what got done
+     */
+    public Result run(ProgressListener listener) {
+        // First, what stock dates does this range need?  Both sides of the
+        // 30W line, for every day, though most of those overlap.  Anything
+        // past today can't possibly be posted yet.
+        int today = StockDay.fromCalendar(Calendar.getInstance());
+        TreeSet<Integer> needed = new TreeSet<>();
+        for(int day = mFirstDay; day <= mLastDay; day++) {
+            int stockDay = StockDay.adjust(day, false);
+            if(stockDay <= today) needed.add(stockDay);
+            stockDay = StockDay.adjust(day, true);
+            if(stockDay <= today) needed.add(stockDay);
+        }
+
+        // Then, which of those do we already have?  Those still get stored
+        // again at the end, so the cache knows to keep them, too.
+        List<Integer> pending = new ArrayList<>();
+        Map<Integer, String> alreadyCached = new HashMap<>();
+        for(int stockDay : needed) {
+            String stock = mCache.getStock(stockDay);
+            if(stock != null)
+                alreadyCached.put(stockDay, stock);
+            else
+                pending.add(stockDay);
+        }
+        int cached = alreadyCached.size();
+
+        int total = needed.size();
+        mDone.set(cached);
+        if(listener != null) listener.onProgress(cached, total);
+
+        Log.d(DEBUG_TAG, "Prefetching " + pending.size() + " of " + total + " stocks...");
+
+        // Range mirrors get the first crack at it, if there are any.
+        if(!pending.isEmpty() && mRangeMirrors.length > 0) {
+            fetchRange(pending);
+            pending.removeAll(mFetched.keySet());
+            mDone.set(cached + mFetched.size());
+            if(listener != null) listener.onProgress(mDone.get(), total);
+        }
+
+        // Whatever's left goes one day at a time.
+        if(!pending.isEmpty() && !mAborted)
+            fetchDays(pending, listener, total);
+
+        // And finally, into the cache, all at once.
+        int fetched = storeFetched(alreadyCached);
+
+        Result result = new Result(total, cached, fetched, mNotPosted.get(), mFailed.get(), mAborted);
+        Log.d(DEBUG_TAG, "Prefetch done: " + result);
+        return result;
+    }
+
+    private int storeFetched(Map<Integer, String> alreadyCached) {
+        if(mFetched.isEmpty() && alreadyCached.isEmpty()) return 0;
+
+        int count = mFetched.size() + alreadyCached.size();
+        int[] days = new int[count];
+        String[] stocks = new String[count];
+        int i = 0;
+        for(Map.Entry<Integer, String> entry : mFetched.entrySet()) {
+            days[i] = entry.getKey();
+            stocks[i] = entry.getValue();
+            i++;
+        }
+        for(Map.Entry<Integer, String> entry : alreadyCached.entrySet()) {
+            days[i] = entry.getKey();
+            stocks[i] = entry.getValue();
+            i++;
+        }
+
+        mCache.storeStocks(days, stocks, i);
+        return mFetched.size();
+    }
+
+    private void fetchRange(List<Integer> pending) {
+        int first = pending.get(0);
+        int last = pending.get(pending.size() - 1);
+
+        int[] order;
+        if(mHealth != null) {
+            order = mHealth.plan(mRangeMirrors, System.currentTimeMillis());
+        } else {
+            order = new int[mRangeMirrors.length];
+            for(int i = 0; i < order.length; i++)
+                order[i] = i;
+        }
+
+        // Just one range mirror has to come through.  Anything it didn't have
+        // gets picked up one day at a time afterward.
+        for(int index : order) {
+            if(mAborted) return;
+
+            String mirror = mRangeMirrors[index];
+            long start = SystemClock.elapsedRealtime();
+
+            try {
+                Map<Integer, String> results = fetchRange(makeRangeLocation(mirror, first, last),
+                        first, last, pending.size() + EXTRA_LINES);
+
+                // Only keep what we actually asked for.
+                for(int stockDay : pending) {
+                    String stock = results.get(stockDay);
+                    if(stock != null) mFetched.put(stockDay, stock);
+                }
+
+                if(mHealth != null)
+                    mHealth.recordSuccess(mirror, SystemClock.elapsedRealtime() - start, System.currentTimeMillis());
+                Log.d(DEBUG_TAG, "Range mirror " + mirror + " had " + mFetched.size() + " of " + pending.size() + " stocks");
+                return;
+            } catch(FileNotFoundException fnfe) {
+                // The mirror's there, it just doesn't have this range.
+                if(mHealth != null)
+                    mHealth.recordNotPosted(mirror, SystemClock.elapsedRealtime() - start);
+            } catch(IOException ioe) {
+                if(mHealth != null && !mAborted)
+                    mHealth.recordFailure(mirror, System.currentTimeMillis());
+                Log.w(DEBUG_TAG, "Range mirror " + mirror + " failed: " + ioe.toString());
+            }
+        }
+    }
+
+    private Map<Integer, String> fetchRange(String location, int first, int last, int maxLines)
+            throws IOException {
+        HttpClient client = HttpConnectionPool.newClient();
+        HttpGet request = new HttpGet(location);
+        mRangeRequest = request;
+
+        // If we got aborted while setting that up, don't even start.
+        if(mAborted) throw new IOException("Aborted");
+
+        try {
+            HttpResponse response = client.execute(request);
+            int code = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+
+            if(code != HttpURLConnection.HTTP_OK) {
+                if(entity != null) entity.consumeContent();
+
+                if(code == HttpURLConnection.HTTP_NOT_FOUND)
+                    throw new FileNotFoundException(location);
+                else
+                    throw new IOException("Range mirror returned " + code);
+            }
+
+            Map<Integer, String> toReturn = new HashMap<>();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(entity.getContent(), StockReader.ASCII));
+            try {
+                String line;
+                int lines = 0;
+                while((line = reader.readLine()) != null) {
+                    if(++lines > maxLines || line.length() > MAX_LINE_LENGTH)
+                        throw new IOException("Range mirror sent too much");
+
+                    line = line.trim();
+                    if(line.length() == 0 || line.charAt(0) == '#') continue;
+
+                    parseRangeLine(line, first, last, toReturn);
+                }
+            } finally {
+                reader.close();
+            }
+
+            return toReturn;
+        } catch(IOException ioe) {
+            // Same as MirrorFetch, make sure a half-read connection gets
+            // thrown out instead of going back in the pool.
+            request.abort();
+            throw ioe;
+        } finally {
+            mRangeRequest = null;
+        }
+    }
+
+    /**
+     * Parses one line from a range mirror, putting the result in dest if it's
+     * in the range.
+     *
+     * @param line the line, already trimmed
+     * @param first first stock date wanted
+     * @param last last stock date wanted
+     * @param dest where the result goes
+     * @throws IOException the line doesn't make any sense
+     */
+    static void parseRangeLine(String line, int first, int last, Map<Integer, String> dest)
+            throws IOException {
+        // yyyy-mm-dd, then a space, tab, or comma (or more than one), then
+        // the stock.
+        if(line.length() < 12 || line.charAt(4) != '-' || line.charAt(7) != '-')
+            throw new IOException("Bad line from range mirror: " + line);
+
+        int stockDay;
+        try {
+            stockDay = StockDay.fromDate(Integer.parseInt(line.substring(0, 4)),
+                    Integer.parseInt(line.substring(5, 7)),
+                    Integer.parseInt(line.substring(8, 10)));
+        } catch(NumberFormatException nfe) {
+            throw new IOException("Bad date from range mirror: " + line);
+        }
+
+        int pos = 10;
+        while(pos < line.length() && (line.charAt(pos) == ' ' || line.charAt(pos) == '\t' || line.charAt(pos) == ','))
+            pos++;
+        if(pos == 10 || pos == line.length())
+            throw new IOException("Bad line from range mirror: " + line);
+
+        String stock = line.substring(pos);
+
+        // Same check MirrorFetch does.
+        if(!StockReader.isValid(stock))
+            throw new IOException("Bad stock from range mirror: " + line);
+
+        if(stockDay >= first && stockDay <= last)
+            dest.put(stockDay, stock);
+    }
+
+    private void fetchDays(final List<Integer> pending, final ProgressListener listener, final int total) {
+        final int workers = Math.min(mConcurrency, pending.size());
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(workers);
+
+        // Same idea as HashpointRange: each worker keeps pulling the next day
+        // until there aren't any left.
+        for(int i = 0; i < workers; i++) {
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int index;
+                        while(!mAborted && (index = next.getAndIncrement()) < pending.size()) {
+                            fetchDay(pending.get(index));
+                            if(listener != null)
+                                listener.onProgress(mDone.incrementAndGet(), total);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        try {
+            done.await();
+        } catch(InterruptedException ie) {
+            // Treat that as an abort, and wait for the workers to notice.
+            abort();
+            Thread.currentThread().interrupt();
+            while(done.getCount() > 0) {
+                try {
+                    done.await();
+                } catch(InterruptedException ie2) {
+                    // Yes, yes, we know.
+                }
+            }
+        }
+    }
+
+    private void fetchDay(int stockDay) {
+        MirrorFetch fetch = new MirrorFetch(mMirrors, HashBuilder.makeLocations(mMirrors, stockDay),
+                mHedgeDelay, mHealth);
+
+        synchronized(mActive) {
+            if(mAborted) return;
+            mActive.add(fetch);
+        }
+
+        try {
+            String stock = fetch.run();
+
+            // A blank means we got aborted.
+            if(stock.trim().length() != 0) {
+                synchronized(mFetched) {
+                    mFetched.put(stockDay, stock);
+                }
+            }
+        } catch(FileNotFoundException fnfe) {
+            mNotPosted.incrementAndGet();
+        } catch(IOException ioe) {
+            mFailed.incrementAndGet();
+        } finally {
+            synchronized(mActive) {
+                mActive.remove(fetch);
+            }
+        }
+    }
+
+    private static String makeRangeLocation(String template, int first, int last) {
+        return template.replace("%S", makeHyphenatedDate(first)).replace("%E", makeHyphenatedDate(last));
+    }
+
+    private static String makeHyphenatedDate(int day) {
+        int dateKey = StockDay.toDateKey(day);
+        int month = (dateKey / 100) % 100;
+        int dom = dateKey % 100;
+
+        return (dateKey / 10000) + (month < 10 ? "-0" : "-") + month + (dom < 10 ? "-0" : "-") + dom;
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * StockReader.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * <p>
+ * <code>StockReader</code> reads a stock value off a mirror's response.  A
+ * stock is nothing but a handful of ASCII digits with maybe a decimal point in
+ * there, so rather than decoding the whole response into a String and hoping
+ * it parses, this checks each byte as it comes in and gives up the moment
+ * something doesn't belong (say, the first '&lt;' of an error page) or the
+ * response goes on longer than any stock ever could.
+ * </p>
+ *
+ * <p>
+ * Whitespace before and after the stock (a trailing newline, for instance) is
+ * dropped.  What's left is the stock exactly as the mirror wrote it, which is
+ * exactly what goes into the hash.  Unlike Float.parseFloat, this won't take
+ * signs, exponents, "NaN", or anything else that isn't plain digits.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+final class StockReader {
+    /** The longest stock value it'll take, in bytes. */
+    static final int MAX_STOCK_LENGTH = 16;
+    /** The longest response it'll take, whitespace and all, in bytes. */
+    static final int MAX_RESPONSE_LENGTH = 64;
+
+    /** Stocks are ASCII, no matter what the platform thinks. */
+    static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final int STATE_LEADING = 0;
+    private static final int STATE_INTEGER = 1;
+    private static final int STATE_POINT = 2;
+    private static final int STATE_FRACTION = 3;
+    private static final int STATE_TRAILING = 4;
+    private static final int STATE_BAD = 5;
+
+    /**
+     * Thrown when the response isn't a stock value.  That's an IOException,
+     * since as far as anyone fetching a stock is concerned, that's the same
+     * as a bad connection.
+     */
+    static class StockFormatException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StockFormatException(String message) {
+            super(message);
+        }
+    }
+
+    private final byte[] mDest;
+    private int mLength = 0;
+    private int mState = STATE_LEADING;
+
+    private StockReader(byte[] dest) {
+        mDest = dest;
+    }
+
+    /**
+     * Reads a stock value from a stream.  This reads until the end of the
+     * stream (so a pooled connection can go back in the pool), unless the
+     * response turns out to be bad first, in which case it stops right there.
+     *
+     * @param in the stream to read
+     * @param dest where the stock's ASCII bytes go (needs at least
+     *             {@link #MAX_STOCK_LENGTH} bytes of room)
+     * @return how many bytes long the stock is
+     * @throws StockFormatException the response wasn't a stock
+     * @throws IOException couldn't read the stream
+     */
+    static int read(InputStream in, byte[] dest) throws IOException {
+        StockReader reader = new StockReader(dest);
+        byte[] buffer = new byte[MAX_RESPONSE_LENGTH];
+        int total = 0;
+        int read;
+
+        // Ask for one more byte than we'd ever accept, so we can tell the
+        // difference between a response that's exactly at the limit and one
+        // that keeps going.
+        while((read = in.read(buffer, 0, Math.min(buffer.length, MAX_RESPONSE_LENGTH + 1 - total))) != -1) {
+            total += read;
+            if(total > MAX_RESPONSE_LENGTH)
+                throw new StockFormatException("Response is too long to be a stock");
+
+            for(int i = 0; i < read; i++) {
+                if(!reader.feed(buffer[i]))
+                    throw new StockFormatException("Response isn't a stock");
+            }
+        }
+
+        if(!reader.isComplete())
+            throw new StockFormatException("Response isn't a stock");
+
+        return reader.mLength;
+    }
+
+    /**
+     * Determines if the given text is a valid stock value, with no whitespace
+     * around it.
+     *
+     * @param text the text to check
+     * @return true if it's a stock, false if not
+     */
+    static boolean isValid(CharSequence text) {
+        if(text.length() == 0 || text.length() > MAX_STOCK_LENGTH) return false;
+
+        StockReader reader = new StockReader(new byte[MAX_STOCK_LENGTH]);
+        for(int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if(c > 0x7F || isWhitespace((byte)c) || !reader.feed((byte)c))
+                return false;
+        }
+
+        return reader.isComplete();
+    }
+
+    /**
+     * Makes a String out of a stock's bytes, for the stock cache.
+     *
+     * @param stock the stock's ASCII bytes
+     * @param length how many bytes long it is
+     * @return the stock as a String
+     */
+    static String toString(byte[] stock, int length) {
+        return new String(stock, 0, length, ASCII);
+    }
+
+    private boolean feed(byte b) {
+        boolean digit = b >= '0' && b <= '9';
+        boolean space = isWhitespace(b);
+
+        switch(mState) {
+            case STATE_LEADING:
+                if(space) return true;
+                mState = digit ? STATE_INTEGER : STATE_BAD;
+                break;
+            case STATE_INTEGER:
+                if(space) {
+                    mState = STATE_TRAILING;
+                    return true;
+                }
+                if(b == '.')
+                    mState = STATE_POINT;
+                else if(!digit)
+                    mState = STATE_BAD;
+                break;
+            case STATE_POINT:
+                // There has to be at least one digit after the point.
+                mState = digit ? STATE_FRACTION : STATE_BAD;
+                break;
+            case STATE_FRACTION:
+                if(space) {
+                    mState = STATE_TRAILING;
+                    return true;
+                }
+                if(!digit) mState = STATE_BAD;
+                break;
+            case STATE_TRAILING:
+                // Once the whitespace after the stock starts, that's all there
+                // can be.
+                if(!space) mState = STATE_BAD;
+                return mState != STATE_BAD;
+            default:
+                return false;
+        }
+
+        if(mState == STATE_BAD || mLength >= mDest.length || mLength >= MAX_STOCK_LENGTH) {
+            mState = STATE_BAD;
+            return false;
+        }
+
+        mDest[mLength++] = b;
+        return true;
+    }
+
+    private boolean isComplete() {
+        return mState == STATE_INTEGER || mState == STATE_FRACTION || mState == STATE_TRAILING;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+}
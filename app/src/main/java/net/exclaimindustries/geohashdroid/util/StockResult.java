@@ -0,0 +1,280 @@
+/**
+ * StockResult.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>
+ * A <code>StockResult</code> is one answer from StockService, the same stuff
+ * that goes in its result broadcasts, only as a plain object.  Anything in the
+ * same process that wants results can register a {@link Listener} here and get
+ * them handed over directly, with no Bundle, no Intent, and no parcelling and
+ * unparcelling everything on the way through.
+ * </p>
+ *
+ * <p>
+ * Every listener gets the same object, Calendar, Info, and all, so don't
+ * change any of it.  Copy it first if you need to.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public class StockResult {
+    /**
+     * Gets told about every StockResult delivered while it's registered.
+     */
+    public interface Listener {
+        /**
+         * Called with a result, on whatever the listener was registered with
+         * (the main thread, unless said otherwise).
+         *
+         * @param result the result
+         */
+        void onStockResult(StockResult result);
+    }
+
+    // A listener, and where it wants to be called.
+    private static class Registration {
+        final Listener mListener;
+        final Executor mExecutor;
+
+        Registration(Listener listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+    }
+
+    // Results get delivered from StockService's threads while listeners come
+    // and go on the main thread.  There's hardly ever more than one or two of
+    // these, and they don't change often, so copy-on-write it is.
+    private static final List<Registration> mListeners = new CopyOnWriteArrayList<>();
+
+    private final int mResponseCode;
+    private final long mRequestId;
+    private final int mRequestFlags;
+    private final int mResponseFlags;
+    private final Calendar mCalendar;
+    private final Graticule mGraticule;
+    private final Info mInfo;
+    private final Info[] mNearby;
+    private final int mPrefetchDone;
+    private final int mPrefetchTotal;
+
+    /**
+     * Constructs a result for a stock request.
+     *
+     * @param responseCode the response code
+     * @param requestId the request ID
+     * @param requestFlags the request flags
+     * @param responseFlags the response flags
+     * @param cal the date that was requested
+     * @param g the Graticule that was requested (null for a globalhash)
+     * @param info the Info, or null if there was an error
+     * @param nearby the nearby points, or null if there aren't any
+     */
+    public StockResult(int responseCode, long requestId, int requestFlags, int responseFlags,
+                       Calendar cal, Graticule g, Info info, Info[] nearby) {
+        this(responseCode, requestId, requestFlags, responseFlags, cal, g, info, nearby, 0, 0);
+    }
+
+    /**
+     * Constructs a result for a prefetch.
+     *
+     * @param responseCode the response code
+     * @param requestId the request ID
+     * @param requestFlags the request flags
+     * @param responseFlags the response flags
+     * @param cal the first date of the prefetch
+     * @param done how many stock dates have been dealt with so far
+     * @param total how many stock dates there are in all
+     */
+    public StockResult(int responseCode, long requestId, int requestFlags, int responseFlags,
+                       Calendar cal, int done, int total) {
+        this(responseCode, requestId, requestFlags, responseFlags, cal, null, null, null, done, total);
+    }
+
+    private StockResult(int responseCode, long requestId, int requestFlags, int responseFlags,
+                        Calendar cal, Graticule g, Info info, Info[] nearby, int done, int total) {
+        mResponseCode = responseCode;
+        mRequestId = requestId;
+        mRequestFlags = requestFlags;
+        mResponseFlags = responseFlags;
+        mCalendar = cal;
+        mGraticule = g;
+        mInfo = info;
+        mNearby = nearby;
+        mPrefetchDone = done;
+        mPrefetchTotal = total;
+    }
+
+    /**
+     * Registers a listener to be called on the main thread.  Registering the
+     * same listener twice means it gets everything twice, so don't.
+     *
+     * @param listener the listener
+     */
+    public static void addListener(Listener listener) {
+        final Handler handler = new Handler(Looper.getMainLooper());
+
+        addListener(listener, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        });
+    }
+
+    /**
+     * Registers a listener to be called through the given Executor.  Note
+     * that results can come in from more than one thread at once, so if the
+     * Executor just runs things right away, the listener had better be ready
+     * for that.
+     *
+     * @param listener the listener
+     * @param executor what the listener gets called through
+     */
+    public static void addListener(Listener listener, Executor executor) {
+        mListeners.add(new Registration(listener, executor));
+    }
+
+    /**
+     * Unregisters a listener.  Once this returns, the listener won't be called
+     * again, even with results that were already on their way, so long as
+     * this is called on the same thread the listener gets called on.
+     *
+     * @param listener the listener
+     */
+    public static void removeListener(Listener listener) {
+        for(Registration reg : mListeners) {
+            if(reg.mListener == listener) mListeners.remove(reg);
+        }
+    }
+
+    /**
+     * Hands a result off to every registered listener.
+     *
+     * @param result the result
+     * @return true if there was anyone to hand it to, false if not
+     */
+    public static boolean deliver(final StockResult result) {
+        boolean delivered = false;
+
+        for(final Registration reg : mListeners) {
+            reg.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // It might've been unregistered while this was waiting
+                    // its turn.  Same as an unregistered BroadcastReceiver, it
+                    // doesn't get anything after that.
+                    if(mListeners.contains(reg)) reg.mListener.onStockResult(result);
+                }
+            });
+            delivered = true;
+        }
+
+        return delivered;
+    }
+
+    /**
+     * Gets the response code.  This is one of StockService's RESPONSE_ codes.
+     *
+     * @return the response code
+     */
+    public int getResponseCode() {
+        return mResponseCode;
+    }
+
+    /**
+     * Gets the request ID, as it was sent with the request.
+     *
+     * @return the request ID, or -1 if there wasn't one
+     */
+    public long getRequestId() {
+        return mRequestId;
+    }
+
+    /**
+     * Gets the request flags, as they were sent with the request (plus
+     * StockService's FLAG_PREFETCH for prefetches).
+     *
+     * @return the request flags
+     */
+    public int getRequestFlags() {
+        return mRequestFlags;
+    }
+
+    /**
+     * Gets the response flags.
+     *
+     * @return the response flags
+     */
+    public int getResponseFlags() {
+        return mResponseFlags;
+    }
+
+    /**
+     * Gets the date that was requested (the first date, for a prefetch).
+     *
+     * @return the date
+     */
+    public Calendar getCalendar() {
+        return mCalendar;
+    }
+
+    /**
+     * Gets the Graticule that was requested.
+     *
+     * @return the Graticule, or null if it was a globalhash or a prefetch
+     */
+    public Graticule getGraticule() {
+        return mGraticule;
+    }
+
+    /**
+     * Gets the Info.
+     *
+     * @return the Info, or null if there was an error or it was a prefetch
+     */
+    public Info getInfo() {
+        return mInfo;
+    }
+
+    /**
+     * Gets the nearby points, if they were asked for.
+     *
+     * @return the nearby points, or null if there aren't any
+     */
+    public Info[] getNearbyPoints() {
+        return mNearby;
+    }
+
+    /**
+     * Gets how many stock dates a prefetch has dealt with so far.
+     *
+     * @return the number done, or 0 if this isn't a prefetch
+     */
+    public int getPrefetchDone() {
+        return mPrefetchDone;
+    }
+
+    /**
+     * Gets how many stock dates a prefetch needs in all.
+     *
+     * @return the total, or 0 if this isn't a prefetch
+     */
+    public int getPrefetchTotal() {
+        return mPrefetchTotal;
+    }
+}
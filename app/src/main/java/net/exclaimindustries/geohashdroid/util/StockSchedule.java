@@ -0,0 +1,160 @@
+/**
+ * StockSchedule.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.util.Random;
+
+/**
+ * <p>
+ * <code>StockSchedule</code> works out what the stock alarm should do right
+ * now: which stocks (if any) still need fetching, and when it next needs to
+ * wake up.  The idea is to only ever go to the network when there could
+ * actually be something new out there.
+ * </p>
+ *
+ * <p>
+ * The "current" date is the date in New York, or the day before that if the
+ * exchange hasn't opened yet today.  The stocks needed are the ones for that
+ * date, both with and without the 30W Rule.  {@link StockDay#adjust(int, boolean)}
+ * already takes weekends and holidays back to the last trading day, so on
+ * those days, they're stocks that were fetched back then, and there's nothing
+ * to do.  Once everything's in the cache, the next time anything new can
+ * exist is the next trading day's opening.
+ * </p>
+ *
+ * <p>
+ * If a fetch fails (or the stock isn't posted yet), {@link #getRetryTime(long, int, Random)}
+ * backs off exponentially with some random jitter, so a mirror that's slow to
+ * post doesn't get hammered and a bunch of phones don't all come knocking at
+ * exactly the same second.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public final class StockSchedule {
+    /**
+     * How long after the opening bell to check for the new stock, in
+     * milliseconds.  The mirrors need a few minutes to post it.
+     */
+    public static final long FIRST_CHECK_DELAY = 5 * 60 * 1000L;
+    /** The first retry's delay, in milliseconds (before jitter). */
+    public static final long RETRY_BASE_DELAY = 5 * 60 * 1000L;
+    /** The longest retry delay, in milliseconds (before jitter). */
+    public static final long RETRY_MAX_DELAY = 2 * 60 * 60 * 1000L;
+
+    private final int mDay;
+    private final int[] mMissing;
+    private final long mNextCheck;
+
+    private StockSchedule(int day, int[] missing, long nextCheck) {
+        mDay = day;
+        mMissing = missing;
+        mNextCheck = nextCheck;
+    }
+
+    /**
+     * Works out the schedule as of the given time.
+     *
+     * @param now the current wall-clock time
+     * @param cache where the stocks are
+     * @return a new StockSchedule
+     */
+    public static StockSchedule make(long now, StockPrefetch.StockCache cache) {
+        int day = TradingCalendar.getNewYorkDay(now);
+        if(now < TradingCalendar.getOpeningTime(day)) day--;
+
+        // The stock days the current date needs.  On weekends and holidays,
+        // these are the same day.
+        int[] needed = { StockDay.adjust(day, true), StockDay.adjust(day, false) };
+        if(needed[0] == needed[1]) needed = new int[] { needed[0] };
+
+        int[] missing = new int[needed.length];
+        int missingCount = 0;
+
+        for(int stockDay : needed) {
+            if(cache.getStock(stockDay) == null)
+                missing[missingCount++] = stockDay;
+        }
+
+        int[] toReturn = new int[missingCount];
+        System.arraycopy(missing, 0, toReturn, 0, missingCount);
+
+        long nextCheck = TradingCalendar.getOpeningTime(TradingCalendar.nextTradingDay(day + 1))
+                + FIRST_CHECK_DELAY;
+
+        return new StockSchedule(day, toReturn, nextCheck);
+    }
+
+    /**
+     * Gets how long to wait before the given retry, with jitter.  That's the
+     * base delay doubled for every retry before it, up to the maximum, and
+     * then somewhere between half and all of that, at random.
+     *
+     * @param attempt which retry this is, starting from zero
+     * @param random where to get the jitter from
+     * @return the delay, in milliseconds
+     */
+    public static long getRetryDelay(int attempt, Random random) {
+        // Capping the shift keeps it from overflowing, and it'd hit the max
+        // long before then anyway.
+        long delay = Math.min(RETRY_BASE_DELAY << Math.min(Math.max(attempt, 0), 16), RETRY_MAX_DELAY);
+        long half = delay / 2;
+        return half + (long)(random.nextDouble() * half);
+    }
+
+    /**
+     * Gets the date (in New York) whose stocks this schedule covers.
+     *
+     * @return days since the epoch
+     */
+    public int getDay() {
+        return mDay;
+    }
+
+    /**
+     * Gets the stock days that still need to be fetched.  If this is empty,
+     * there's nothing to do until {@link #getNextCheck()}.
+     *
+     * @return stock days, as days since the epoch
+     */
+    public int[] getMissing() {
+        return mMissing;
+    }
+
+    /**
+     * Determines if everything's already in the cache.
+     *
+     * @return true if there's nothing to fetch
+     */
+    public boolean isUpToDate() {
+        return mMissing.length == 0;
+    }
+
+    /**
+     * Gets the next time a new stock could possibly show up.  That's a few
+     * minutes after the next trading day's opening bell.
+     *
+     * @return wall-clock time, in milliseconds
+     */
+    public long getNextCheck() {
+        return mNextCheck;
+    }
+
+    /**
+     * Gets when to try again after a failed fetch.  That's never later than
+     * the next check, since by then there's a new stock to go after anyway.
+     *
+     * @param now the current wall-clock time
+     * @param attempt which retry this is, starting from zero
+     * @param random where to get the jitter from
+     * @return wall-clock time, in milliseconds
+     */
+    public long getRetryTime(long now, int attempt, Random random) {
+        return Math.min(now + getRetryDelay(attempt, random), mNextCheck);
+    }
+}
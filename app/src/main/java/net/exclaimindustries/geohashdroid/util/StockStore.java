@@ -0,0 +1,118 @@
+/**
+ * StockStore.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.util.List;
+
+/**
+ * <p>
+ * A <code>StockStore</code> is wherever the stock cache lives.  That's the
+ * stocks themselves, the hashes worked out from them, and the mirror health
+ * stats.  {@link HashBuilder} talks to one of these and doesn't care which;
+ * {@link StockStoreDatabase} keeps it all in SQLite, and
+ * {@link MappedStockStore} keeps the stocks in a memory-mapped file instead.
+ * </p>
+ *
+ * <p>
+ * All dates are {@link StockDay} day numbers.  Stock dates are already
+ * adjusted for the 30W Rule, weekends, and holidays; hash dates are the REAL
+ * dates.  Everything here needs to be safe to call from any thread.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public interface StockStore {
+    /**
+     * Gets a stock from the cache.
+     *
+     * @param stockDay the date of the stock, as days since the epoch
+     * @return the stock, or null if it's not in the cache
+     */
+    String getStock(int stockDay);
+
+    /**
+     * Stores a stock in the cache.  If there's already one for that date, it
+     * stays as it was.
+     *
+     * @param stockDay the date of the stock, as days since the epoch
+     * @param stock the stock itself
+     * @return something zero or higher if it got stored, -1 if it was already
+     *         there or it went wrong
+     */
+    long storeStock(int stockDay, String stock);
+
+    /**
+     * Stores a whole batch of stocks at once.  This is for prefetching and
+     * importing, so these are kept no matter how old they get (until the
+     * cache is deleted, anyway), and they don't count toward the next prune.
+     * Same as {@link #storeStock(int, String)}, dates already in there keep
+     * the stock they had, but they get kept for good, too.
+     *
+     * @param stockDays the dates of the stocks, as days since the epoch
+     * @param stocks the stocks themselves, matched up with stockDays
+     * @param count how many of each array to store
+     * @return how many new stocks were stored, or -1 if it went wrong
+     */
+    int storeStocks(int[] stockDays, String[] stocks, int count);
+
+    /**
+     * Gets the stored hash fractions for a date and side of the 30W Rule.  The
+     * latitude fraction goes in dest[0], the longitude fraction in dest[1].
+     *
+     * @param day the REAL date, as days since the epoch
+     * @param uses30W true to get the 30W hash, false for the other one
+     * @param dest where the fractions go (needs at least two slots)
+     * @return true if they were found, false if not (dest is untouched)
+     */
+    boolean getHashes(int day, boolean uses30W, double[] dest);
+
+    /**
+     * Stores the hash fractions from an Info.
+     *
+     * @param i the Info
+     * @return something zero or higher if it got stored, -1 if it was already
+     *         there or it went wrong
+     */
+    long storeInfo(Info i);
+
+    /**
+     * Reads back whatever mirror health stats were stored.
+     *
+     * @return the stored stats (empty if there aren't any)
+     */
+    List<MirrorHealth.Stats> getMirrorStats();
+
+    /**
+     * Stores mirror health stats, replacing whatever was there for those
+     * mirrors.
+     *
+     * @param stats the stats to store
+     * @return true if it worked, false if not
+     */
+    boolean storeMirrorStats(List<MirrorHealth.Stats> stats);
+
+    /**
+     * Prunes the cache if it's been long enough since the last time.  This
+     * gets called after every store, so it should be cheap most of the time.
+     */
+    void cleanup();
+
+    /**
+     * Prunes the cache right now.
+     *
+     * @return what got pruned, or null if something went wrong
+     */
+    StockStoreDatabase.PruneResult prune();
+
+    /**
+     * Erases everything from the cache (other than the mirror stats).
+     *
+     * @return true if it worked, false if not
+     */
+    boolean deleteCache();
+}
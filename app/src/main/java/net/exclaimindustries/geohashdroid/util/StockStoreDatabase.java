@@ -7,18 +7,21 @@
  */
 package net.exclaimindustries.geohashdroid.util;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.preference.PreferenceManager;
 import android.util.Log;
-import net.exclaimindustries.tools.DateTools;
 
 /**
  * <p>
@@ -30,11 +33,25 @@ import net.exclaimindustries.tools.DateTools;
  * 
  * @author Nicholas Killewald
  */
-public class StockStoreDatabase {
+public class StockStoreDatabase implements StockStore {
     private final Context mContext;
     private DatabaseHelper mHelper;
     private SQLiteDatabase mDatabase;
     
+    // These get compiled once in init() and reused from then on.  Note that
+    // SQLiteStatements aren't thread-safe, so only touch them while
+    // synchronized on mDatabase.
+    private SQLiteStatement mInsertStock;
+    private SQLiteStatement mKeepStock;
+    private SQLiteStatement mInsertHashes;
+    private SQLiteStatement mSelectStock;
+    
+    // For keeping track of when it's time to prune again.  mLastPrune is
+    // wall-clock time, and it's kept in the prefs, so a new process picks up
+    // where the last one left off instead of pruning the moment it starts.
+    private int mStoresSincePrune = 0;
+    private long mLastPrune = 0;
+    
     private static final String DEBUG_TAG = "StockStoreDatabase";
     
     /** The name of the column for the row's ID. */
@@ -43,6 +60,8 @@ public class StockStoreDatabase {
     public static final String KEY_STOCKS_DATE = "date";
     /** The name of the stock value column. */
     public static final String KEY_STOCKS_STOCK = "stock";
+    /** The name of the column for the day the stock was stored. */
+    public static final String KEY_STOCKS_STORED = "stored";
     
     /** The name of the column for the row's IDs for hashes. */
     public static final String KEY_HASHES_ROWID = "_id";
@@ -54,19 +73,57 @@ public class StockStoreDatabase {
     public static final String KEY_HASHES_LATHASH = "lathash";
     /** The name of the longitude hashpart column. */
     public static final String KEY_HASHES_LONHASH = "lonhash";
+    /** The name of the column for the day the hash was stored. */
+    public static final String KEY_HASHES_STORED = "stored";
+    
+    /** The name of the mirror column (its URL template) for mirror health. */
+    public static final String KEY_MIRRORS_MIRROR = "mirror";
+    /** The name of the average latency column. */
+    public static final String KEY_MIRRORS_LATENCY = "latency";
+    /** The name of the average error rate column. */
+    public static final String KEY_MIRRORS_ERRORRATE = "errorrate";
+    /** The name of the last success time column. */
+    public static final String KEY_MIRRORS_LASTSUCCESS = "lastsuccess";
+    /** The name of the consecutive failures column. */
+    public static final String KEY_MIRRORS_STREAK = "streak";
+    /** The name of the column for when the circuit breaker closes. */
+    public static final String KEY_MIRRORS_OPENUNTIL = "openuntil";
+    /** The name of the attempt count column. */
+    public static final String KEY_MIRRORS_ATTEMPTS = "attempts";
+    /** The name of the success count column. */
+    public static final String KEY_MIRRORS_SUCCESSES = "successes";
+    /** The name of the not-posted count column. */
+    public static final String KEY_MIRRORS_NOTPOSTED = "notposted";
+    /** The name of the failure count column. */
+    public static final String KEY_MIRRORS_FAILURES = "failures";
     
     private static final String DATABASE_NAME = "stockstore";
     
     private static final String TABLE_STOCKS = "stocks";
     private static final String TABLE_HASHES = "hashes";
+    private static final String TABLE_MIRRORS = "mirrors";
+    
+    private static final String INDEX_STOCKS_DATE = "stocks_date";
+    private static final String INDEX_HASHES_DATE_30W = "hashes_date_30w";
+    
+    private static final int DATABASE_VERSION = 6;
     
-    private static final int DATABASE_VERSION = 3;
+    // What goes in the stored column for rows that should never be pruned
+    // (that is, anything that came in through storeStocks).  It's later than
+    // any real day, so it's never older than the cutoff.
+    private static final int STORED_KEEP = Integer.MAX_VALUE;
+    
+    // Prune after this many new rows...
+    private static final int PRUNE_AFTER_STORES = 16;
+    // ...or this long, whichever comes first.
+    private static final long PRUNE_INTERVAL = 6 * 60 * 60 * 1000L;
     
     private static final String CREATE_STOCKS_TABLE = 
         "CREATE TABLE " + TABLE_STOCKS
             + " (" + KEY_STOCKS_ROWID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
             + KEY_STOCKS_DATE + " INTEGER NOT NULL, "
-            + KEY_STOCKS_STOCK + " TEXT NOT NULL);";
+            + KEY_STOCKS_STOCK + " TEXT NOT NULL, "
+            + KEY_STOCKS_STORED + " INTEGER NOT NULL DEFAULT 0);";
     
     private static final String CREATE_HASHES_TABLE = 
         "CREATE TABLE " + TABLE_HASHES
@@ -74,7 +131,78 @@ public class StockStoreDatabase {
             + KEY_HASHES_DATE + " INTEGER NOT NULL, "
             + KEY_HASHES_30W + " INTEGER NOT NULL, "
             + KEY_HASHES_LATHASH + " REAL NOT NULL, "
-            + KEY_HASHES_LONHASH + " REAL NOT NULL);";
+            + KEY_HASHES_LONHASH + " REAL NOT NULL, "
+            + KEY_HASHES_STORED + " INTEGER NOT NULL DEFAULT 0);";
+    
+    // Mirror health isn't part of the cache proper, so it doesn't get pruned
+    // or wiped along with it.  There's only a couple rows in here, ever.
+    private static final String CREATE_MIRRORS_TABLE =
+        "CREATE TABLE IF NOT EXISTS " + TABLE_MIRRORS
+            + " (" + KEY_MIRRORS_MIRROR + " TEXT PRIMARY KEY, "
+            + KEY_MIRRORS_LATENCY + " REAL NOT NULL, "
+            + KEY_MIRRORS_ERRORRATE + " REAL NOT NULL, "
+            + KEY_MIRRORS_LASTSUCCESS + " INTEGER NOT NULL, "
+            + KEY_MIRRORS_STREAK + " INTEGER NOT NULL, "
+            + KEY_MIRRORS_OPENUNTIL + " INTEGER NOT NULL, "
+            + KEY_MIRRORS_ATTEMPTS + " INTEGER NOT NULL, "
+            + KEY_MIRRORS_SUCCESSES + " INTEGER NOT NULL, "
+            + KEY_MIRRORS_NOTPOSTED + " INTEGER NOT NULL, "
+            + KEY_MIRRORS_FAILURES + " INTEGER NOT NULL);";
+    
+    // There's only ever one stock per date and one hash per date/30W combo, so
+    // we can let the indexes enforce that.  INSERT OR IGNORE then does the
+    // "is it already there?" check for us, in the same step as the insert.
+    private static final String CREATE_STOCKS_INDEX =
+        "CREATE UNIQUE INDEX IF NOT EXISTS " + INDEX_STOCKS_DATE
+            + " ON " + TABLE_STOCKS + " (" + KEY_STOCKS_DATE + ");";
+    
+    private static final String CREATE_HASHES_INDEX =
+        "CREATE UNIQUE INDEX IF NOT EXISTS " + INDEX_HASHES_DATE_30W
+            + " ON " + TABLE_HASHES + " (" + KEY_HASHES_DATE + ", " + KEY_HASHES_30W + ");";
+    
+    private static final String INSERT_STOCK =
+        "INSERT OR IGNORE INTO " + TABLE_STOCKS
+            + " (" + KEY_STOCKS_DATE + ", " + KEY_STOCKS_STOCK + ", " + KEY_STOCKS_STORED
+            + ") VALUES (?, ?, ?);";
+    
+    private static final String KEEP_STOCK =
+        "UPDATE " + TABLE_STOCKS + " SET " + KEY_STOCKS_STORED + " = " + STORED_KEEP
+            + " WHERE " + KEY_STOCKS_DATE + " = ?;";
+    
+    private static final String INSERT_HASHES =
+        "INSERT OR IGNORE INTO " + TABLE_HASHES
+            + " (" + KEY_HASHES_DATE + ", " + KEY_HASHES_30W + ", "
+            + KEY_HASHES_LATHASH + ", " + KEY_HASHES_LONHASH + ", " + KEY_HASHES_STORED
+            + ") VALUES (?, ?, ?, ?, ?);";
+    
+    private static final String SELECT_STOCK =
+        "SELECT " + KEY_STOCKS_STOCK + " FROM " + TABLE_STOCKS
+            + " WHERE " + KEY_STOCKS_DATE + " = ?;";
+    
+    // A SQLiteStatement can only hand back one column, so this one goes
+    // through rawQuery.  SQLite keeps its own cache of compiled statements
+    // keyed on the SQL, so as long as this string never changes, neither does
+    // the compiled statement.
+    private static final String SELECT_HASHES =
+        "SELECT " + KEY_HASHES_LATHASH + ", " + KEY_HASHES_LONHASH + " FROM " + TABLE_HASHES
+            + " WHERE " + KEY_HASHES_DATE + " = ? AND " + KEY_HASHES_30W + " = ?;";
+    
+    private static final String SELECT_MIRRORS =
+        "SELECT " + KEY_MIRRORS_MIRROR + ", " + KEY_MIRRORS_LATENCY + ", "
+            + KEY_MIRRORS_ERRORRATE + ", " + KEY_MIRRORS_LASTSUCCESS + ", "
+            + KEY_MIRRORS_STREAK + ", " + KEY_MIRRORS_OPENUNTIL + ", "
+            + KEY_MIRRORS_ATTEMPTS + ", " + KEY_MIRRORS_SUCCESSES + ", "
+            + KEY_MIRRORS_NOTPOSTED + ", " + KEY_MIRRORS_FAILURES
+            + " FROM " + TABLE_MIRRORS + ";";
+    
+    private static final String REPLACE_MIRROR =
+        "INSERT OR REPLACE INTO " + TABLE_MIRRORS
+            + " (" + KEY_MIRRORS_MIRROR + ", " + KEY_MIRRORS_LATENCY + ", "
+            + KEY_MIRRORS_ERRORRATE + ", " + KEY_MIRRORS_LASTSUCCESS + ", "
+            + KEY_MIRRORS_STREAK + ", " + KEY_MIRRORS_OPENUNTIL + ", "
+            + KEY_MIRRORS_ATTEMPTS + ", " + KEY_MIRRORS_SUCCESSES + ", "
+            + KEY_MIRRORS_NOTPOSTED + ", " + KEY_MIRRORS_FAILURES
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?);";
     
     /**
      * Implements SQLiteOpenHelper.  Much like Hamburger Helper, this can take
@@ -92,6 +220,9 @@ public class StockStoreDatabase {
         public void onCreate(SQLiteDatabase db) {
             db.execSQL(CREATE_STOCKS_TABLE);
             db.execSQL(CREATE_HASHES_TABLE);
+            db.execSQL(CREATE_STOCKS_INDEX);
+            db.execSQL(CREATE_HASHES_INDEX);
+            db.execSQL(CREATE_MIRRORS_TABLE);
         }
 
         @Override
@@ -101,7 +232,85 @@ public class StockStoreDatabase {
                 db.execSQL("DROP TABLE IF EXISTS stocks");
                 db.execSQL(CREATE_STOCKS_TABLE);
                 db.execSQL(CREATE_HASHES_TABLE);
+            } else if(oldVersion == 3) {
+                // Version 3 didn't have the indexes, and since it checked for
+                // duplicates with a separate query, a couple might've slipped
+                // in.  Keep the oldest of each, then index.
+                db.execSQL("DELETE FROM " + TABLE_STOCKS + " WHERE " + KEY_STOCKS_ROWID
+                        + " NOT IN (SELECT MIN(" + KEY_STOCKS_ROWID + ") FROM " + TABLE_STOCKS
+                        + " GROUP BY " + KEY_STOCKS_DATE + ")");
+                db.execSQL("DELETE FROM " + TABLE_HASHES + " WHERE " + KEY_HASHES_ROWID
+                        + " NOT IN (SELECT MIN(" + KEY_HASHES_ROWID + ") FROM " + TABLE_HASHES
+                        + " GROUP BY " + KEY_HASHES_DATE + ", " + KEY_HASHES_30W + ")");
+            }
+            
+            // Versions 3 and 4 didn't keep track of when anything was
+            // stored.  Whatever's in there gets to count as stored today, so
+            // it gets the full time in the cache from here on.  (Versions 1
+            // and 2 got brand new tables up there, so they're all set.)
+            if(oldVersion >= 3 && oldVersion < 5) {
+                int today = StockDay.fromCalendar(Calendar.getInstance());
+                db.execSQL("ALTER TABLE " + TABLE_STOCKS + " ADD COLUMN " + KEY_STOCKS_STORED
+                        + " INTEGER NOT NULL DEFAULT " + today);
+                db.execSQL("ALTER TABLE " + TABLE_HASHES + " ADD COLUMN " + KEY_HASHES_STORED
+                        + " INTEGER NOT NULL DEFAULT " + today);
             }
+            
+            // Anything before version 6 didn't keep track of mirrors.  All
+            // these are IF NOT EXISTS, so they can just be run regardless.
+            db.execSQL(CREATE_STOCKS_INDEX);
+            db.execSQL(CREATE_HASHES_INDEX);
+            db.execSQL(CREATE_MIRRORS_TABLE);
+        }
+    }
+    
+    /**
+     * What a call to {@link #prune()} got rid of.
+     */
+    public static class PruneResult {
+        private final int mStockRows;
+        private final int mHashRows;
+        private final long mBytes;
+        
+        private PruneResult(int stockRows, int hashRows, long bytes) {
+            mStockRows = stockRows;
+            mHashRows = hashRows;
+            mBytes = bytes;
+        }
+        
+        /**
+         * Gets how many rows were deleted from the stocks table.
+         * 
+         * @return stock rows deleted
+         */
+        public int getStockRows() {
+            return mStockRows;
+        }
+        
+        /**
+         * Gets how many rows were deleted from the hashes table.
+         * 
+         * @return hash rows deleted
+         */
+        public int getHashRows() {
+            return mHashRows;
+        }
+        
+        /**
+         * Gets how many bytes went back on the database's free list.  This
+         * can be less than what the rows took up if the pages they were on
+         * still have other rows in them.
+         * 
+         * @return bytes reclaimed
+         */
+        public long getBytesReclaimed() {
+            return mBytes;
+        }
+        
+        @Override
+        public String toString() {
+            return mStockRows + " stock rows, " + mHashRows + " hash rows, "
+                    + mBytes + " bytes reclaimed";
         }
     }
     
@@ -136,6 +345,14 @@ public class StockStoreDatabase {
     public StockStoreDatabase init() throws SQLException {
         mHelper = new DatabaseHelper(mContext);
         mDatabase = mHelper.getWritableDatabase();
+        
+        mInsertStock = mDatabase.compileStatement(INSERT_STOCK);
+        mKeepStock = mDatabase.compileStatement(KEEP_STOCK);
+        mInsertHashes = mDatabase.compileStatement(INSERT_HASHES);
+        mSelectStock = mDatabase.compileStatement(SELECT_STOCK);
+        
+        mLastPrune = PreferenceManager.getDefaultSharedPreferences(mContext)
+                .getLong(GHDConstants.PREF_STOCK_CACHE_LAST_PRUNE, 0);
         return this;
     }
     
@@ -143,6 +360,12 @@ public class StockStoreDatabase {
      * Finishes up.  In this case, closes the database.
      */
     public void finish() {
+        synchronized(mDatabase) {
+            mInsertStock.close();
+            mKeepStock.close();
+            mInsertHashes.close();
+            mSelectStock.close();
+        }
         mHelper.close();
     }
     
@@ -155,32 +378,33 @@ public class StockStoreDatabase {
      * @param i the aforementioned bundle of Info to be stored into the database
      * @return the new row ID created, or -1 if it went wrong or already exists
      */
+    @Override
     public synchronized long storeInfo(Info i) {
         synchronized(mDatabase) {
-            // Fortunately, there's a handy ContentValues object for this sort
-            // of thing.  I mean, we COULD do manual SQLite calls, but why
-            // bother?
+            int dateKey = StockDay.toDateKey(StockDay.fromCalendar(i.getCalendar()));
+            boolean uses30W = i.uses30WRule();
             
-            // But first!  First we need to know if this already exists.  If it
-            // does, return a -1.
-            // TODO: No, wrong.  I need a better mechanism for that.
-            if(getInfo(i.getCalendar(), i.getGraticule()) != null) {
-                Log.v(DEBUG_TAG, "Info already exists for that data, ignoring...");
-                return -1;
-            }
+            // The unique index takes care of whether or not this already
+            // exists.  If it does, the insert just doesn't happen, and we get
+            // a -1 back.
+            mInsertHashes.bindLong(1, dateKey);
+            mInsertHashes.bindLong(2, uses30W ? 1 : 0);
+            mInsertHashes.bindDouble(3, i.getLatitudeHash());
+            mInsertHashes.bindDouble(4, i.getLongitudeHash());
+            mInsertHashes.bindLong(5, today());
             
-            ContentValues toGo = new ContentValues();
-            Calendar cal = i.getCalendar();
-            toGo.put(KEY_HASHES_DATE, DateTools.getDateString(cal));
-            toGo.put(KEY_HASHES_30W, i.uses30WRule());
-            toGo.put(KEY_HASHES_LATHASH, i.getLatitudeHash());
-            toGo.put(KEY_HASHES_LONHASH, i.getLongitudeHash());
+            long row = mInsertHashes.executeInsert();
             
-            Log.v(DEBUG_TAG, "NOW STORING TO HASHES " + DateTools.getDateString(cal)
-                    + (i.uses30WRule() ? " (30W)" : "") + " : "
-                    + i.getLatitudeHash() + "," + i.getLongitudeHash());
+            if(row == -1) {
+                Log.v(DEBUG_TAG, "Info already exists for that data, ignoring...");
+            } else {
+                mStoresSincePrune++;
+                Log.v(DEBUG_TAG, "NOW STORING TO HASHES " + dateKey
+                        + (uses30W ? " (30W)" : "") + " : "
+                        + i.getLatitudeHash() + "," + i.getLongitudeHash());
+            }
             
-            return mDatabase.insert(TABLE_HASHES, null, toGo);
+            return row;
         }
     }
     
@@ -193,24 +417,90 @@ public class StockStoreDatabase {
      * @param stock the stock itself, as a string
      * @return the new row ID created, or -1 if it went wrong or already exists
      */
-    public synchronized long storeStock(Calendar cal, String stock) {
+    public long storeStock(Calendar cal, String stock) {
+        return storeStock(StockDay.fromCalendar(cal), stock);
+    }
+    
+    /**
+     * Stores a stock value in the stock table, for a date given as a
+     * {@link StockDay} day number.  This is already adjusted for weekends and
+     * 30W, same as {@link #storeStock(Calendar, String)}.
+     * 
+     * @param stockDay the date of the stock, as days since the epoch
+     * @param stock the stock itself, as a string
+     * @return the new row ID created, or -1 if it went wrong or already exists
+     */
+    @Override
+    public synchronized long storeStock(int stockDay, String stock) {
         synchronized(mDatabase) {
-            // First, check over the database to make sure it doesn't already
-            // exist.
-            if(getStock(cal) != null) {
-                Log.v(DEBUG_TAG, "Stock price already exists in database for " + DateTools.getDateString(cal) + ", ignoring...");
-                return -1;
+            int dateKey = StockDay.toDateKey(stockDay);
+            
+            // Same as with hashes, the index makes sure we don't store the
+            // same date twice.
+            mInsertStock.bindLong(1, dateKey);
+            mInsertStock.bindString(2, stock);
+            mInsertStock.bindLong(3, today());
+            
+            long row = mInsertStock.executeInsert();
+            
+            if(row == -1) {
+                Log.v(DEBUG_TAG, "Stock price already exists in database for " + dateKey + ", ignoring...");
+            } else {
+                mStoresSincePrune++;
+                Log.v(DEBUG_TAG, "NOW STORING TO STOCKS " + dateKey
+                        + " : " + stock);
             }
             
-            // Otherwise, store away!
-            ContentValues toGo = new ContentValues();
-            toGo.put(KEY_STOCKS_DATE, DateTools.getDateString(cal));
-            toGo.put(KEY_STOCKS_STOCK, stock);
+            return row;
+        }
+    }
+    
+    /**
+     * Stores a whole batch of stock values in the stock table, all in one
+     * transaction.  This is for prefetching and importing, which is to say
+     * the user went out of their way to get these, so they're kept until the
+     * cache gets deleted outright; {@link #prune()} won't touch them, and they
+     * don't count toward the next prune.  Same as
+     * {@link #storeStock(int, String)}, dates already in there keep the stock
+     * they had, but they get kept for good from now on, too.
+     * 
+     * @param stockDays the dates of the stocks, as days since the epoch
+     * @param stocks the stocks themselves, matched up with stockDays
+     * @param count how many of each array to store
+     * @return how many new rows were stored, or -1 if it went wrong
+     */
+    @Override
+    public synchronized int storeStocks(int[] stockDays, String[] stocks, int count) {
+        synchronized(mDatabase) {
+            int stored = 0;
             
-            Log.v(DEBUG_TAG, "NOW STORING TO STOCKS " + DateTools.getDateString(cal)
-                    + " : " + stock);
+            mDatabase.beginTransaction();
+            try {
+                for(int i = 0; i < count; i++) {
+                    int dateKey = StockDay.toDateKey(stockDays[i]);
+                    mInsertStock.bindLong(1, dateKey);
+                    mInsertStock.bindString(2, stocks[i]);
+                    mInsertStock.bindLong(3, STORED_KEEP);
+                    
+                    if(mInsertStock.executeInsert() != -1) {
+                        stored++;
+                    } else {
+                        mKeepStock.bindLong(1, dateKey);
+                        mKeepStock.executeUpdateDelete();
+                    }
+                }
+                
+                mDatabase.setTransactionSuccessful();
+            } catch (Exception e) {
+                // If something went wrong, let it go.  None of it got stored.
+                Log.w(DEBUG_TAG, "HEY!  Couldn't store a batch of stocks: " + e.toString());
+                return -1;
+            } finally {
+                mDatabase.endTransaction();
+            }
             
-            return mDatabase.insert(TABLE_STOCKS, null, toGo);
+            Log.v(DEBUG_TAG, "NOW STORING TO STOCKS " + stored + " of " + count + " prefetched stocks");
+            return stored;
         }
     }
     
@@ -226,46 +516,69 @@ public class StockStoreDatabase {
      *         have the data you want
      */
     public Info getInfo(Calendar c, Graticule g) {
+        int day = StockDay.fromCalendar(c);
+        double[] hash = new double[2];
+        
+        if(!getHashes(day, StockDay.uses30WRule(day, g), hash))
+            return null;
+        
+        double latHash = hash[HashCalculator.LATITUDE];
+        double lonHash = hash[HashCalculator.LONGITUDE];
+        
+        // Get the destination set...
+        if(g != null) {
+            double lat = (g.getLatitude() + latHash) * (g.isSouth() ? -1 : 1);
+            double lon = (g.getLongitude() + lonHash) * (g.isWest() ? -1 : 1);
+            
+            return new Info(lat, lon, g, c);
+        } else {
+            return new Info(latHash, lonHash, null, c);
+        }
+    }
+    
+    /**
+     * Retrieves the hash fractions for the given day and side of the 30W line,
+     * if they're in the database.  The latitude fraction goes in dest[0], the
+     * longitude fraction in dest[1].
+     * 
+     * @param day the REAL date (not adjusted for the 30W Rule), as days since
+     *            the epoch
+     * @param uses30W true to get the 30W hash (which globalhashes use, too),
+     *                false to get the non-30W hash
+     * @param dest two-element array to receive the fractions
+     * @return true if found, false if not (dest is untouched)
+     */
+    @Override
+    public boolean getHashes(int day, boolean uses30W, double[] dest) {
         synchronized(mDatabase) {
             Log.v(DEBUG_TAG, "Querying the hashes database...");
-            // First, adjust the calendar if we need to.
-            Info toReturn = null;
+            boolean found = false;
             
             // Now, to the database!
-            Cursor cursor = mDatabase.query(TABLE_HASHES, new String[] {KEY_HASHES_LATHASH, KEY_HASHES_LONHASH},
-                    KEY_HASHES_DATE + " = " + DateTools.getDateString(c) + " AND " + KEY_HASHES_30W + " = "
-                    + ((g == null || g.uses30WRule()) ? "1" : "0"),
-                    null, null, null, null);
+            Cursor cursor = mDatabase.rawQuery(SELECT_HASHES,
+                    new String[] {Integer.toString(StockDay.toDateKey(day)), uses30W ? "1" : "0"});
             
             if(cursor == null) {
                 // If a problem happens, assume there's no stock to get.
                 Log.w(DEBUG_TAG, "HEY!  The cursor returned from the query was null!");
-                return null;
+                return false;
             } else if(cursor.getCount() == 0) {
                 // If nothing resulted from this, the stock doesn't exist in the
                 // cache.
                 Log.v(DEBUG_TAG, "Info doesn't exist in database");
             } else {
                 // Otherwise, grab the first one we come across.
-                if(!cursor.moveToFirst()) return null;
+                if(!cursor.moveToFirst()) return false;
                 
-                double latHash = cursor.getDouble(0);
-                double lonHash = cursor.getDouble(1);
-                Log.v(DEBUG_TAG, "Info found -- Today's lucky numbers are " + latHash + "," + lonHash);
-                
-                // Get the destination set...
-                if(g != null) {
-                    double lat = (g.getLatitude() + latHash) * (g.isSouth() ? -1 : 1);
-                    double lon = (g.getLongitude() + lonHash) * (g.isWest() ? -1 : 1);
-                    
-                    toReturn = new Info(lat, lon, g, c);
-                } else {
-                    toReturn = new Info(latHash, lonHash, null, c);
-                }
+                dest[HashCalculator.LATITUDE] = cursor.getDouble(0);
+                dest[HashCalculator.LONGITUDE] = cursor.getDouble(1);
+                found = true;
+                Log.v(DEBUG_TAG, "Info found -- Today's lucky numbers are "
+                        + dest[HashCalculator.LATITUDE] + "," + dest[HashCalculator.LONGITUDE]);
             }
             
             cursor.close();
-            return toReturn;
+            return found;
         }
     }
     
@@ -277,96 +590,232 @@ public class StockStoreDatabase {
      * @return the String representation of the stock, or null if none is stored 
      */
     public String getStock(Calendar cal) {
+        return getStock(StockDay.fromCalendar(cal));
+    }
+    
+    /**
+     * Retrieves a stock value from the database for the given day.  This
+     * should already be adjusted for weekends and such (see
+     * {@link StockDay#adjust(int, Graticule)}).
+     * 
+     * @param stockDay already-adjusted date, as days since the epoch
+     * @return the String representation of the stock, or null if none is stored 
+     */
+    @Override
+    public String getStock(int stockDay) {
         synchronized(mDatabase) {
             Log.v(DEBUG_TAG, "Querying the stock database...");
             
-            String toReturn = null;
+            mSelectStock.bindLong(1, StockDay.toDateKey(stockDay));
             
             // Go!
-            Cursor cursor = mDatabase.query(TABLE_STOCKS, new String[] {KEY_STOCKS_STOCK},
-                    KEY_STOCKS_DATE + " = " + DateTools.getDateString(cal),
-                    null, null, null, null);
-            
-            // And now the check...
-            if(cursor == null) {
-                // If a problem happens, assume there's no stock to get.
-                Log.w(DEBUG_TAG, "HEY!  The cursor returned from the query was null!");
-                return null;
-            } else if(cursor.getCount() == 0) {
+            try {
+                String toReturn = mSelectStock.simpleQueryForString();
+                Log.v(DEBUG_TAG, "Stock found -- Today's lucky number is " + toReturn);
+                return toReturn;
+            } catch(SQLiteDoneException sde) {
                 // If nothing resulted from this, the stock doesn't exist in the
                 // cache.
                 Log.v(DEBUG_TAG, "Stock doesn't exist in database");
-            } else {
-                // Otherwise, grab the first one we come across.
-                if(!cursor.moveToFirst()) return null;
-                
-                toReturn = cursor.getString(0);
-                Log.v(DEBUG_TAG, "Stock found -- Today's lucky number is " + toReturn);
+                return null;
+            }
+        }
+    }
+    
+    /**
+     * Reads back whatever mirror health stats were stored.
+     * 
+     * @return the stored stats (empty if there aren't any or something went
+     *         wrong)
+     */
+    @Override
+    public List<MirrorHealth.Stats> getMirrorStats() {
+        synchronized(mDatabase) {
+            List<MirrorHealth.Stats> toReturn = new ArrayList<>();
+            
+            Cursor cursor = mDatabase.rawQuery(SELECT_MIRRORS, null);
+            if(cursor == null) {
+                Log.w(DEBUG_TAG, "HEY!  The cursor returned from the mirror query was null!");
+                return toReturn;
+            }
+            
+            try {
+                while(cursor.moveToNext()) {
+                    toReturn.add(MirrorHealth.Stats.restore(cursor.getString(0),
+                            cursor.getDouble(1), cursor.getDouble(2),
+                            cursor.getLong(3), cursor.getInt(4), cursor.getLong(5),
+                            cursor.getLong(6), cursor.getLong(7), cursor.getLong(8),
+                            cursor.getLong(9)));
+                }
+            } finally {
+                cursor.close();
             }
             
-            cursor.close();
             return toReturn;
         }
     }
     
     /**
-     * Performs cache cleanup.  This involves pruning the cache down to however
-     * many entries should be the max.
+     * Stores mirror health stats, replacing whatever was there for the same
+     * mirrors.  This all goes in one transaction.
+     * 
+     * @param stats the stats to store
+     * @return true on success, false on failure
      */
+    @Override
+    public synchronized boolean storeMirrorStats(List<MirrorHealth.Stats> stats) {
+        synchronized(mDatabase) {
+            SQLiteStatement replace = null;
+            
+            mDatabase.beginTransaction();
+            try {
+                replace = mDatabase.compileStatement(REPLACE_MIRROR);
+                
+                for(MirrorHealth.Stats s : stats) {
+                    replace.bindString(1, s.getMirror());
+                    replace.bindDouble(2, s.getLatency());
+                    replace.bindDouble(3, s.getErrorRate());
+                    replace.bindLong(4, s.getLastSuccess());
+                    replace.bindLong(5, s.getConsecutiveFailures());
+                    replace.bindLong(6, s.getOpenUntil());
+                    replace.bindLong(7, s.getAttempts());
+                    replace.bindLong(8, s.getSuccesses());
+                    replace.bindLong(9, s.getNotPosted());
+                    replace.bindLong(10, s.getFailures());
+                    replace.executeInsert();
+                }
+                
+                mDatabase.setTransactionSuccessful();
+                return true;
+            } catch (Exception e) {
+                // If something went wrong, let it go.  It's only stats.
+                Log.w(DEBUG_TAG, "HEY!  Couldn't store mirror health: " + e.toString());
+                return false;
+            } finally {
+                if(replace != null) replace.close();
+                mDatabase.endTransaction();
+            }
+        }
+    }
+    
+    /**
+     * Performs cache cleanup, if it's been long enough since the last time.
+     * This is cheap enough to call after every store; most of the time, it
+     * won't actually do anything.  See {@link #prune()} for what happens when
+     * it does.
+     */
+    @Override
     public synchronized void cleanup() {
+        synchronized(mDatabase) {
+            // Pruning is a couple of deletes and a transaction, so there's no
+            // sense doing it after every single write.  Wait until enough rows
+            // have piled up or enough time has passed, whichever's first.  If
+            // the clock went backwards, call it not enough time.
+            long sinceLast = System.currentTimeMillis() - mLastPrune;
+            if(mStoresSincePrune < PRUNE_AFTER_STORES && sinceLast < PRUNE_INTERVAL) {
+                return;
+            }
+            
+            prune();
+        }
+    }
+    
+    /**
+     * <p>
+     * Prunes the cache right now.  Everything that was stored longer ago than
+     * however many days the user wants kept goes away, with the exception of
+     * whatever today's hashes need (that is, today's stock and the one the 30W
+     * Rule uses, along with the hashes for yesterday, today, and anything
+     * after), which are always kept, and anything that came in through
+     * {@link #storeStocks(int[], String[], int)}, which is kept until the
+     * cache is deleted.  It's when a row was STORED that counts,
+     * not the date it's for, so a retrohash looked up today sticks around as
+     * long as today's does.  If the cache is set to zero days, what today
+     * needs is ALL that's kept.
+     * </p>
+     * 
+     * <p>
+     * Both tables are pruned in one transaction.  Note that SQLite doesn't
+     * shrink the file when rows are deleted; the space goes on its free list
+     * and gets reused for the next rows that come in.  That's what the byte
+     * count in the result means.
+     * </p>
+     * 
+     * @return what got pruned, or null if something went wrong
+     */
+    @Override
+    public synchronized PruneResult prune() {
         synchronized(mDatabase) {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
             
             Log.v(DEBUG_TAG, "Pruning database...");
+            
+            mStoresSincePrune = 0;
+            mLastPrune = System.currentTimeMillis();
+            prefs.edit().putLong(GHDConstants.PREF_STOCK_CACHE_LAST_PRUNE, mLastPrune).apply();
+            
             try {
                 // Presumably, initPrefs was already run from the GeohashDroid
                 // class.  Thus, if the pref doesn't exist at this point or
                 // isn't parseable into an int, we can quite justifiably spaz
                 // out.
-                int max = Integer.parseInt(prefs.getString(GHDConstants.PREF_STOCK_CACHE_SIZE, "15"));
-                
-                // Step one: Get the highest row ID.  I could probably ram this
-                // all into one big monolithic SQL statement, but that would get
-                // more than a bit unreadable.  Also note very carefully, this
-                // entire method depends on there being no holes in the rowids.
-                // "SELECT _rowid FROM stocks ORDER BY _rowid DESC LIMIT 1;"
-                Cursor cursor = mDatabase.query(TABLE_STOCKS, new String[] {KEY_STOCKS_ROWID},
-                        null, null, null, null, KEY_STOCKS_ROWID + " DESC", "1");
-                
-                cursor.moveToFirst();
-                int highest = cursor.getInt(0);
-                cursor.close();
+                int days = Integer.parseInt(prefs.getString(GHDConstants.PREF_STOCK_CACHE_SIZE, "15"));
                 
-                // Step two: Delete anything in the database older than the
-                // highest minus the max.
-                // "DELETE FROM stocks WHERE _rowid < (highest - max);"
-                int deleted = mDatabase.delete(TABLE_STOCKS, KEY_STOCKS_ROWID + " <= " + (highest - max), null);
-
-                Log.v(DEBUG_TAG, "Stock rows deleted: " + deleted);
-                
-                // Now, do all that again, but for hashes.
+                // The oldest thing today needs is the 30W Rule's stock, which
+                // is yesterday's, or the last trading day's before that if
+                // yesterday was a weekend or holiday.
+                // Both the stock and hash dates can be compared against that;
+                // hashes are stored by their REAL date, which is never any
+                // earlier than the stock date they came from.
+                int today = today();
+                int needed = StockDay.adjust(today, true);
                 
-                cursor = mDatabase.query(TABLE_HASHES, new String[] {KEY_HASHES_ROWID},
-                        null, null, null, null, KEY_HASHES_ROWID + " DESC", "1");
+                // Anything stored before this day has been in the cache long
+                // enough.  At zero days, that's everything not stored today.
+                int storedCutoff = days > 0 ? today - days + 1 : today + 1;
                 
-                cursor.moveToFirst();
-                highest = cursor.getInt(0);
-                cursor.close();
+                String[] args = new String[] {Integer.toString(StockDay.toDateKey(needed)),
+                        Integer.toString(storedCutoff)};
+                long freeBefore = getFreeBytes();
+                int stocks;
+                int hashes;
                 
-                deleted = mDatabase.delete(TABLE_HASHES, KEY_HASHES_ROWID + " <= " + (highest - max), null);
+                mDatabase.beginTransaction();
+                try {
+                    stocks = mDatabase.delete(TABLE_STOCKS,
+                            KEY_STOCKS_DATE + " < ? AND " + KEY_STOCKS_STORED + " < ?", args);
+                    hashes = mDatabase.delete(TABLE_HASHES,
+                            KEY_HASHES_DATE + " < ? AND " + KEY_HASHES_STORED + " < ?", args);
+                    mDatabase.setTransactionSuccessful();
+                } finally {
+                    mDatabase.endTransaction();
+                }
                 
-                Log.v(DEBUG_TAG, "Info rows deleted: " + deleted);
+                PruneResult result = new PruneResult(stocks, hashes, getFreeBytes() - freeBefore);
+                Log.v(DEBUG_TAG, "Pruned everything before " + args[0] + " stored before "
+                        + StockDay.toDateKey(storedCutoff) + ": " + result);
+                return result;
             } catch (Exception e) {
                 // If something went wrong, let it go.
                 Log.w(DEBUG_TAG, "HEY!  Couldn't prune the stock cache database: " + e.toString());
+                return null;
             }
         }
     }
     
+    private static int today() {
+        return StockDay.fromCalendar(Calendar.getInstance());
+    }
+    
+    private long getFreeBytes() {
+        return DatabaseUtils.longForQuery(mDatabase, "PRAGMA freelist_count;", null) * mDatabase.getPageSize();
+    }
+    
     /**
      * Erases everything from the stock cache database.  This is really only to
      * be used if something's gone horribly wrong.
      */
+    @Override
     public synchronized boolean deleteCache() {
         synchronized(mDatabase) {
             try {
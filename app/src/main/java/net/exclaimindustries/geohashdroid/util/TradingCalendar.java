@@ -0,0 +1,372 @@
+/**
+ * TradingCalendar.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * <p>
+ * <code>TradingCalendar</code> knows which days the New York Stock Exchange is
+ * open.  That's every weekday except for the exchange's holidays (New Year's,
+ * Martin Luther King Jr. Day, Washington's Birthday, Good Friday, Memorial
+ * Day, Juneteenth, Independence Day, Labor Day, Thanksgiving, and Christmas),
+ * plus the odd day it closed for something nobody planned on.  On any day
+ * it's NOT open, there's no new opening value, so the geohash for that day
+ * uses whatever the last one was.
+ * </p>
+ *
+ * <p>
+ * The holidays are worked out from the rules the exchange has used since the
+ * Uniform Monday Holiday Act kicked in in 1971, once, when the class loads,
+ * into a table with one bit per day from {@link #FIRST_YEAR} through
+ * {@link #LAST_YEAR}.  That's about six kilobytes, and after that, every
+ * question is a bit test or two.  Outside those years, the rules weren't (or
+ * might not be) the same, so only weekends count as closed there.  Treating a
+ * holiday as a trading day just means asking a mirror for a stock we could've
+ * worked out ourselves; the other way around would mean the wrong stock, so
+ * that's the way to err.
+ * </p>
+ *
+ * <p>
+ * Like {@link StockDay}, days are plain ints (days since January 1, 1970).
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public final class TradingCalendar {
+    /** The exchange's time zone. */
+    public static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+
+    /** The hour of the opening bell, in New York. */
+    public static final int OPENING_HOUR = 9;
+    /** The minute of the opening bell, in New York. */
+    public static final int OPENING_MINUTE = 30;
+
+    /** The first year the holiday table covers. */
+    public static final int FIRST_YEAR = 1971;
+    /** The last year the holiday table covers. */
+    public static final int LAST_YEAR = 2099;
+
+    // Days the exchange closed that the rules don't cover, as yyyymmdd.  Keep
+    // this sorted, as it gets binary-searched.
+    private static final int[] SPECIAL_CLOSINGS = {
+            19721107, // Election Day (presidential years, through 1980)
+            19721228, // Truman's funeral
+            19730125, // Johnson's funeral
+            19761102, // Election Day
+            19770714, // New York City blackout
+            19801104, // Election Day
+            19850927, // Hurricane Gloria
+            19940427, // Nixon's funeral
+            20010911, // September 11th
+            20010912,
+            20010913,
+            20010914,
+            20040611, // Reagan's funeral
+            20070102, // Ford's funeral
+            20121029, // Hurricane Sandy
+            20121030,
+            20181205, // G.H.W. Bush's funeral
+            20250109, // Carter's funeral
+    };
+
+    // The year each of the newer holidays started being a closing.
+    private static final int FIRST_MLK_DAY = 1998;
+    private static final int FIRST_JUNETEENTH = 2022;
+
+    private static final int FIRST_DAY = StockDay.fromDate(FIRST_YEAR, 1, 1);
+    private static final int LAST_DAY = StockDay.fromDate(LAST_YEAR, 12, 31);
+
+    // One bit per day starting from FIRST_DAY, set if the exchange is open.
+    // Bit n of word w is day FIRST_DAY + w * 64 + n.
+    private static final long[] TRADING_DAYS = makeTable();
+
+    // How many trading days come before each word of the table.  With this,
+    // a day's ordinal is one lookup and one bit count.
+    private static final int[] RANKS = makeRanks();
+
+    // Nope, all static here.
+    private TradingCalendar() { }
+
+    /**
+     * Determines if the exchange is open on the given day.
+     *
+     * @param day days since the epoch
+     * @return true if it's a trading day, false if it's a weekend or holiday
+     */
+    public static boolean isTradingDay(int day) {
+        if(day < FIRST_DAY || day > LAST_DAY) return isWeekday(day);
+
+        int index = day - FIRST_DAY;
+        return (TRADING_DAYS[index >>> 6] & (1L << (index & 63))) != 0;
+    }
+
+    /**
+     * Determines if the given day is an exchange holiday.  Weekends don't
+     * count; this is just for the weekdays the exchange closes anyway.
+     *
+     * @param day days since the epoch
+     * @return true if it's a holiday, false if not
+     */
+    public static boolean isHoliday(int day) {
+        return isWeekday(day) && !isTradingDay(day);
+    }
+
+    /**
+     * Works out if the given day is a holiday from the rules, without the
+     * table.  This is what the table gets built from.
+     */
+    static boolean isHolidayByRules(int day) {
+        int dow = StockDay.dayOfWeek(day);
+        if(dow == Calendar.SATURDAY || dow == Calendar.SUNDAY) return false;
+
+        int dateKey = StockDay.toDateKey(day);
+        int year = dateKey / 10000;
+        int month = (dateKey / 100) % 100;
+        int dom = dateKey % 100;
+
+        // The nth-weekday holidays are easy enough.  (dom - 1) / 7 is which
+        // one of that weekday in the month it is, counting from zero.
+        int nth = (dom - 1) / 7;
+
+        switch(month) {
+            case 1:
+                // New Year's Day is special, in that if it's on a Saturday,
+                // the exchange DOESN'T close the Friday before (that'd be the
+                // last day of the year, and they want that one open).
+                if(dom == 1 || (dom == 2 && dow == Calendar.MONDAY))
+                    return true;
+                if(year >= FIRST_MLK_DAY && dow == Calendar.MONDAY && nth == 2)
+                    return true;
+                break;
+            case 2:
+                if(dow == Calendar.MONDAY && nth == 2)
+                    return true;
+                break;
+            case 5:
+                // Last Monday of May.
+                if(dow == Calendar.MONDAY && dom + 7 > 31)
+                    return true;
+                break;
+            case 6:
+                if(year >= FIRST_JUNETEENTH && isObserved(dom, dow, 19))
+                    return true;
+                break;
+            case 7:
+                if(isObserved(dom, dow, 4))
+                    return true;
+                break;
+            case 9:
+                if(dow == Calendar.MONDAY && nth == 0)
+                    return true;
+                break;
+            case 11:
+                if(dow == Calendar.THURSDAY && nth == 3)
+                    return true;
+                break;
+            case 12:
+                if(isObserved(dom, dow, 25))
+                    return true;
+                break;
+        }
+
+        // Good Friday moves around a bit more.  It can land in March or April.
+        if((month == 3 || month == 4) && dow == Calendar.FRIDAY
+                && day == getEaster(year) - 2)
+            return true;
+
+        return Arrays.binarySearch(SPECIAL_CLOSINGS, dateKey) >= 0;
+    }
+
+    /**
+     * Gets the most recent trading day on or before the given day.  That's the
+     * day whose opening value is the most recent one as of that day.
+     *
+     * @param day days since the epoch
+     * @return the most recent trading day, which might be the same day
+     */
+    public static int previousTradingDay(int day) {
+        if(day >= FIRST_DAY && day <= LAST_DAY) {
+            // Mask off everything after this day in its word, then take the
+            // highest bit left.  The longest the exchange has ever been shut
+            // since 1971 is a week, so this won't go back more than a word.
+            int index = day - FIRST_DAY;
+            int word = index >>> 6;
+            long bits = TRADING_DAYS[word] & (-1L >>> (63 - (index & 63)));
+            while(bits == 0 && word > 0)
+                bits = TRADING_DAYS[--word];
+
+            if(bits != 0)
+                return FIRST_DAY + (word << 6) + 63 - Long.numberOfLeadingZeros(bits);
+
+            // Ran off the start of the table.
+            day = FIRST_DAY - 1;
+        }
+
+        while(!isWeekday(day)) day--;
+        return day;
+    }
+
+    /**
+     * Gets the next trading day on or after the given day.
+     *
+     * @param day days since the epoch
+     * @return the next trading day, which might be the same day
+     */
+    public static int nextTradingDay(int day) {
+        if(day >= FIRST_DAY && day <= LAST_DAY) {
+            // Same as previousTradingDay, but the other way.
+            int index = day - FIRST_DAY;
+            int word = index >>> 6;
+            long bits = TRADING_DAYS[word] & (-1L << (index & 63));
+            while(bits == 0 && word < TRADING_DAYS.length - 1)
+                bits = TRADING_DAYS[++word];
+
+            if(bits != 0)
+                return FIRST_DAY + (word << 6) + Long.numberOfTrailingZeros(bits);
+
+            day = LAST_DAY + 1;
+        }
+
+        while(!isWeekday(day)) day++;
+        return day;
+    }
+
+    /**
+     * Gets the given trading day's ordinal; that is, how many trading days
+     * come before it in the table.  The first trading day of
+     * {@link #FIRST_YEAR} is zero, and they go up from there with no gaps.
+     * This only works inside the table, and only for trading days.
+     *
+     * @param day days since the epoch
+     * @return the ordinal, or -1 if it's not a trading day or it's outside
+     *         the table
+     */
+    public static int getOrdinal(int day) {
+        if(day < FIRST_DAY || day > LAST_DAY) return -1;
+
+        int index = day - FIRST_DAY;
+        long word = TRADING_DAYS[index >>> 6];
+        long bit = 1L << (index & 63);
+        if((word & bit) == 0) return -1;
+
+        return RANKS[index >>> 6] + Long.bitCount(word & (bit - 1));
+    }
+
+    /**
+     * Gets how many trading days the table covers.  Ordinals go from zero up
+     * to one less than this.
+     *
+     * @return the number of trading days in the table
+     */
+    public static int getOrdinalCount() {
+        int last = TRADING_DAYS.length - 1;
+        return RANKS[last] + Long.bitCount(TRADING_DAYS[last]);
+    }
+
+    /**
+     * Gets a number that changes whenever the table does (say, a new holiday
+     * or closing gets added in a later version).  Anything stored by ordinal
+     * needs to check this, since a change to the table can move ordinals
+     * around.
+     *
+     * @return the table's signature
+     */
+    public static int getSignature() {
+        return 31 * Arrays.hashCode(TRADING_DAYS) + FIRST_DAY;
+    }
+
+    /**
+     * Gets the time of the opening bell on the given day (9:30am in New York,
+     * whatever that happens to be with DST).  This doesn't check if the
+     * exchange actually opens that day.
+     *
+     * @param day days since the epoch
+     * @return the opening time, in milliseconds since the epoch
+     */
+    public static long getOpeningTime(int day) {
+        int dateKey = StockDay.toDateKey(day);
+
+        Calendar cal = Calendar.getInstance(NEW_YORK);
+        cal.clear();
+        cal.set(dateKey / 10000, (dateKey / 100) % 100 - 1, dateKey % 100,
+                OPENING_HOUR, OPENING_MINUTE, 0);
+        return cal.getTimeInMillis();
+    }
+
+    /**
+     * Gets the date in New York at the given time.
+     *
+     * @param time milliseconds since the epoch
+     * @return days since the epoch
+     */
+    public static int getNewYorkDay(long time) {
+        Calendar cal = Calendar.getInstance(NEW_YORK);
+        cal.setTimeInMillis(time);
+        return StockDay.fromCalendar(cal);
+    }
+
+    private static long[] makeTable() {
+        long[] table = new long[((LAST_DAY - FIRST_DAY) >>> 6) + 1];
+
+        for(int day = FIRST_DAY; day <= LAST_DAY; day++) {
+            if(isWeekday(day) && !isHolidayByRules(day)) {
+                int index = day - FIRST_DAY;
+                table[index >>> 6] |= 1L << (index & 63);
+            }
+        }
+
+        return table;
+    }
+
+    private static int[] makeRanks() {
+        int[] ranks = new int[TRADING_DAYS.length];
+        int count = 0;
+
+        for(int i = 0; i < TRADING_DAYS.length; i++) {
+            ranks[i] = count;
+            count += Long.bitCount(TRADING_DAYS[i]);
+        }
+
+        return ranks;
+    }
+
+    private static boolean isWeekday(int day) {
+        int dow = StockDay.dayOfWeek(day);
+        return dow != Calendar.SATURDAY && dow != Calendar.SUNDAY;
+    }
+
+    private static boolean isObserved(int dom, int dow, int holiday) {
+        // A fixed-date holiday on a Saturday gets the Friday before off, and
+        // one on a Sunday gets the Monday after.
+        return dom == holiday
+                || (dom == holiday - 1 && dow == Calendar.FRIDAY)
+                || (dom == holiday + 1 && dow == Calendar.MONDAY);
+    }
+
+    private static int getEaster(int year) {
+        // This is the anonymous Gregorian algorithm (Meeus/Jones/Butcher).
+        int a = year % 19;
+        int b = year / 100;
+        int c = year % 100;
+        int d = b / 4;
+        int e = b % 4;
+        int f = (b + 8) / 25;
+        int g = (b - f + 1) / 3;
+        int h = (19 * a + b - d - g + 15) % 30;
+        int i = c / 4;
+        int k = c % 4;
+        int l = (32 + 2 * e + 2 * i - h - k) % 7;
+        int m = (a + 11 * h + 22 * l) / 451;
+        int month = (h + l - 7 * m + 114) / 31;
+        int dom = ((h + l - 7 * m + 114) % 31) + 1;
+        return StockDay.fromDate(year, month, dom);
+    }
+}
@@ -142,7 +142,13 @@ public class WikiUtils {
 
         HttpEntity entity = response.getEntity();
 
-        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(entity.getContent());
+        // Make sure the whole response gets read out, even if the parser
+        // stops early or chokes, so the connection can go back in the pool.
+        try {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(entity.getContent());
+        } finally {
+            entity.consumeContent();
+        }
     }
 
     /**
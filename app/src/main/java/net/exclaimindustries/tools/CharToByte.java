@@ -15,6 +15,8 @@ package net.exclaimindustries.tools;
  */
 
 public class CharToByte {
+    private static final char[] HEXITS = "0123456789abcdef".toCharArray();
+
     /**
      * Converts the specified array of chars to an array of bytes.
      * 
@@ -40,20 +42,17 @@ public class CharToByte {
      * @return a String of hex digits
      */
     public static String bytesToString(byte[] bytes) {
-        StringBuffer sb = new StringBuffer();
-        String s;
-        int i;
-        for (i = 0; i < bytes.length; i++) {
+        // Two hexits per byte, plus a newline every 32 bytes.
+        int newlines = bytes.length == 0 ? 0 : (bytes.length - 1) / 32;
+        char[] out = new char[bytes.length * 2 + newlines];
+        int pos = 0;
+        for (int i = 0; i < bytes.length; i++) {
             if (i % 32 == 0 && i != 0)
-                sb.append("\n");
-            s = Integer.toHexString(bytes[i]);
-            if (s.length() < 2)
-                s = "0" + s;
-            if (s.length() > 2)
-                s = s.substring(s.length() - 2);
-            sb.append(s);
+                out[pos++] = '\n';
+            out[pos++] = HEXITS[(bytes[i] >> 4) & 0xF];
+            out[pos++] = HEXITS[bytes[i] & 0xF];
         }
-        return sb.toString();
+        return new String(out);
     }
 
     /**
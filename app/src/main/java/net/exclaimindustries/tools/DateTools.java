@@ -14,14 +14,22 @@ import java.util.Locale;
 /**
  * <code>DateTools</code> contains any method useful in the manipulation or use
  * of dates.  All without subclassing Calendar, for some reason.
+ * 
+ * Everything in here is safe to call from multiple threads at once.
  *
  * @author Nicholas Killewald
  */
 public class DateTools {
 
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyyMMdd", Locale.ENGLISH);
-    private static final SimpleDateFormat HYPHENATED_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd", Locale.ENGLISH);
-    private static final SimpleDateFormat WIKI_DATE_FORMAT = new SimpleDateFormat("HH:mm, d MMMM yyyy (z)", Locale.ENGLISH);
+    // SimpleDateFormat isn't thread-safe, and this gets called from all sorts
+    // of service threads, so each thread gets its own.  The other two formats
+    // are simple enough to just write out by hand.
+    private static final ThreadLocal<SimpleDateFormat> WIKI_DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("HH:mm, d MMMM yyyy (z)", Locale.ENGLISH);
+        }
+    };
 
     /**
      * Generates a YYYYMMDD string from a given Calendar object.
@@ -30,7 +38,7 @@ public class DateTools {
      * @return a YYYYMMDD string
      */
     public static String getDateString(Calendar c) {
-        return DATE_FORMAT.format(c.getTime());
+        return writeDate(c, false);
     }
     
     /**
@@ -40,9 +48,7 @@ public class DateTools {
      * @return a YYYY-MM-DD string
      */
     public static String getHyphenatedDateString(Calendar c) {
-        // Turns out the SimpleDateFormat class does all the tricky work for me.
-        // Huh.
-        return HYPHENATED_DATE_FORMAT.format(c.getTime());
+        return writeDate(c, true);
     }
     
     /**
@@ -58,6 +64,34 @@ public class DateTools {
      * @return a wiki-signature-like date string
      */
     public static String getWikiDateString(Calendar c) {
-        return WIKI_DATE_FORMAT.format(c.getTime());
+        return WIKI_DATE_FORMAT.get().format(c.getTime());
+    }
+
+    private static String writeDate(Calendar c, boolean hyphenated) {
+        int year = c.get(Calendar.YEAR);
+        int month = c.get(Calendar.MONTH) + 1;
+        int day = c.get(Calendar.DAY_OF_MONTH);
+
+        // The year's at least four digits, zero-padded, same as "yyyy" would
+        // give us.  Past 9999, it just keeps going.
+        int yearDigits = 4;
+        for(int y = year / 10000; y > 0; y /= 10)
+            yearDigits++;
+
+        char[] out = new char[yearDigits + (hyphenated ? 6 : 4)];
+        int pos = yearDigits;
+        for(int i = pos - 1; i >= 0; i--) {
+            out[i] = (char)('0' + year % 10);
+            year /= 10;
+        }
+
+        if(hyphenated) out[pos++] = '-';
+        out[pos++] = (char)('0' + month / 10);
+        out[pos++] = (char)('0' + month % 10);
+        if(hyphenated) out[pos++] = '-';
+        out[pos++] = (char)('0' + day / 10);
+        out[pos] = (char)('0' + day % 10);
+
+        return new String(out);
     }
 }
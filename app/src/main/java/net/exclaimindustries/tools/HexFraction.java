@@ -16,6 +16,12 @@ import java.math.BigDecimal;
  * @author Nicholas Killewald
  */
 public class HexFraction {
+    /** The most hexits that can be packed into a single long. */
+    private static final int MAX_PACKED_HEXITS = 16;
+
+    /** 2^-64, which turns a 64-bit fraction into its actual value. */
+    private static final double TWO_TO_MINUS_64 = 0x1.0p-64;
+
     /**
      * Converts a string, presumably the fractional part of a hex number, into
      * its fractional decimal counterpart. Don't feed it a negative.
@@ -27,6 +33,69 @@ public class HexFraction {
      *             parsing error with the string
      */
     public static double calculate(String s) throws NumberFormatException {
+        int len = s.length();
+
+        // Anything longer than a long can hold goes the long way around.  The
+        // hash only ever gives us 16 hexits per half, so this shouldn't happen
+        // in practice.
+        if(len > MAX_PACKED_HEXITS)
+            return calculateBig(s);
+
+        // Otherwise, pack the hexits into the top of a long, so that the long,
+        // read as unsigned, is the fraction times 2^64.  Character.digit is
+        // what Integer.parseInt uses under the hood, so this accepts exactly
+        // the same hexits the old way did.
+        long bits = 0;
+        for(int i = 0; i < len; i++) {
+            int part = Character.digit(s.charAt(i), 16);
+            if(part < 0)
+                throw new NumberFormatException("For input string: \"" + s.charAt(i) + "\"");
+            bits = (bits << 4) | part;
+        }
+
+        // Shift whatever we got up to the top, since missing hexits are
+        // trailing zeroes in a fraction.  Watch out, shifting a long by 64 is
+        // a no-op in Java, not a zero.
+        if(len == 0)
+            return 0.0;
+        bits <<= (MAX_PACKED_HEXITS - len) * 4;
+
+        return calculate(bits);
+    }
+
+    /**
+     * Converts 64 bits into the fraction they'd represent if they were the 16
+     * hexits after the point (that is, the unsigned value of the long divided
+     * by 2^64).  The result is correctly rounded to the nearest double, which
+     * makes it identical to what {@link #calculate(String)} gives for the same
+     * hexits.
+     *
+     * @param bits the fractional bits, treated as unsigned
+     * @return a double between 0 (inclusive) and 1 (inclusive, if it rounds up
+     *         that far)
+     */
+    public static double calculate(long bits) {
+        double value;
+
+        if(bits >= 0) {
+            // The easy case: The top bit's clear, so the long's signed value is
+            // the same as its unsigned value, and Java's conversion already
+            // rounds to nearest-even.
+            value = (double)bits;
+        } else {
+            // The top bit's set, so we halve it first.  The bit that falls off
+            // the bottom gets ORed back in so it still counts toward rounding
+            // (it's below where the double's precision ends anyway, so it can
+            // only break a tie, never make one).  Doubling it afterward is
+            // exact.
+            value = (double)((bits >>> 1) | (bits & 1)) * 2.0;
+        }
+
+        // Scaling by a power of two is exact, so this doesn't round again.
+        return value * TWO_TO_MINUS_64;
+    }
+
+    private static double calculateBig(String s) throws NumberFormatException {
         // We're dealing with values to the precision of 1/(16^16). I think
         // BigDecimal is quite called for in this case.
         BigDecimal curvalue = new BigDecimal(0);
@@ -0,0 +1,232 @@
+/**
+ * HttpConnectionPool.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.tools;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * <p>
+ * <code>HttpConnectionPool</code> is the one place the whole process gets its
+ * HTTP connections from.  Every HttpClient made with {@link #newClient()}
+ * shares the same pool of connections underneath, so once a connection to a
+ * server is open, the next request to that server (from anywhere) can reuse
+ * it instead of setting up a new one.
+ * </p>
+ *
+ * <p>
+ * Each client still gets its own cookies, so separate wiki sessions don't
+ * trample each other's logins.  Don't shut down a client's connection manager
+ * when you're done with it, as that's everybody's connection manager; just
+ * make sure each response's entity gets consumed (or the request aborted) so
+ * its connection goes back in the pool.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public final class HttpConnectionPool {
+    /** How long to wait for a connection to open, in milliseconds. */
+    public static final int CONNECT_TIMEOUT = 15000;
+    /** How long to wait on a read before giving up, in milliseconds. */
+    public static final int READ_TIMEOUT = 60000;
+    /** How long to wait for a connection from the pool, in milliseconds. */
+    public static final long POOL_TIMEOUT = 10000;
+    /** Longest a connection can sit idle in the pool, in milliseconds. */
+    public static final long IDLE_TIMEOUT = 30000;
+
+    // There's only a handful of servers we talk to (a couple stock mirrors and
+    // the wiki), so this doesn't need to be big.  It does need more than one
+    // per route, since hedged stock fetches and the wiki can both have a few
+    // requests going at once.
+    /**
+     * The most connections open to any one server at once.  Anything running
+     * more requests than this to the same server at once is just going to
+     * have the extras wait for a connection.
+     */
+    public static final int MAX_PER_ROUTE = 4;
+    /**
+     * The most connections open at once, total.  Same deal as
+     * {@link #MAX_PER_ROUTE}, but for everything.
+     */
+    public static final int MAX_TOTAL = 12;
+
+    private static final AtomicLong mLeases = new AtomicLong();
+    private static final AtomicLong mReuses = new AtomicLong();
+
+    private static final HttpParams mParams;
+    private static final PoolManager mManager;
+
+    static {
+        HttpParams params = new BasicHttpParams();
+
+        // These are what DefaultHttpClient would've set up on its own.
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, HTTP.DEFAULT_CONTENT_CHARSET);
+        HttpProtocolParams.setUseExpectContinue(params, true);
+
+        // And these are ours.  The timeouts used to be infinite, which is a
+        // bit much on a phone.
+        HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+        ConnManagerParams.setTimeout(params, POOL_TIMEOUT);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_PER_ROUTE));
+        ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL);
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        mParams = params;
+        mManager = new PoolManager(params, registry);
+    }
+
+    // Servers can tell us how long they'll keep a connection alive.  If they
+    // don't (or they say something longer than we'd hang on to it anyway),
+    // we go with our own idle timeout.
+    private static final ConnectionKeepAliveStrategy KEEP_ALIVE = new DefaultConnectionKeepAliveStrategy() {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = super.getKeepAliveDuration(response, context);
+            return (duration < 0 || duration > IDLE_TIMEOUT) ? IDLE_TIMEOUT : duration;
+        }
+    };
+
+    /**
+     * The connection manager itself.  This is just a ThreadSafeClientConnManager
+     * that keeps count of how many connections it hands out were already open,
+     * and sweeps out idle connections now and then.
+     */
+    private static class PoolManager extends ThreadSafeClientConnManager {
+        private long mLastSweep = System.currentTimeMillis();
+
+        PoolManager(HttpParams params, SchemeRegistry registry) {
+            super(params, registry);
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+            sweepIfDue();
+
+            final ClientConnectionRequest request = super.requestConnection(route, state);
+
+            return new ClientConnectionRequest() {
+                @Override
+                public ManagedClientConnection getConnection(long timeout, TimeUnit tunit)
+                        throws InterruptedException, ConnectionPoolTimeoutException {
+                    ManagedClientConnection conn = request.getConnection(timeout, tunit);
+
+                    // A connection fresh from the pool is already open.  A new
+                    // one won't be until the client opens it.
+                    mLeases.incrementAndGet();
+                    if(conn.isOpen()) mReuses.incrementAndGet();
+
+                    return conn;
+                }
+
+                @Override
+                public void abortRequest() {
+                    request.abortRequest();
+                }
+            };
+        }
+
+        private void sweepIfDue() {
+            // Rather than have a thread sitting around just to do this, it gets
+            // done whenever someone asks for a connection and it's been a
+            // while.
+            long now = System.currentTimeMillis();
+
+            synchronized(this) {
+                if(now - mLastSweep < IDLE_TIMEOUT) return;
+                mLastSweep = now;
+            }
+
+            closeExpiredConnections();
+            closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Nope, no constructing this one.
+    private HttpConnectionPool() { }
+
+    /**
+     * Makes a new HttpClient that uses the shared pool.  It's cheap to make;
+     * all the expensive bits are shared.
+     *
+     * @return a new HttpClient
+     */
+    public static HttpClient newClient() {
+        DefaultHttpClient client = new DefaultHttpClient(mManager, mParams);
+        client.setKeepAliveStrategy(KEEP_ALIVE);
+        return client;
+    }
+
+    /**
+     * Closes any connections that have been idle for longer than the idle
+     * timeout.  This happens on its own every so often, but it can't hurt to
+     * call it when, say, a service is shutting down.
+     */
+    public static void closeIdleConnections() {
+        mManager.closeExpiredConnections();
+        mManager.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets how many connections have been handed out of the pool.
+     *
+     * @return the total number of connection leases
+     */
+    public static long getLeaseCount() {
+        return mLeases.get();
+    }
+
+    /**
+     * Gets how many connections handed out of the pool were already open (that
+     * is, got reused rather than set up from scratch).
+     *
+     * @return the number of reused connections
+     */
+    public static long getReuseCount() {
+        return mReuses.get();
+    }
+
+    /**
+     * Gets how many connections are open right now, whether in use or idle.
+     *
+     * @return the number of pooled connections
+     */
+    public static int getPooledConnectionCount() {
+        return mManager.getConnectionsInPool();
+    }
+}
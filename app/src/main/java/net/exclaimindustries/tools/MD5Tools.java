@@ -8,6 +8,7 @@
 
 package net.exclaimindustries.tools;
 
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -19,6 +20,23 @@ import java.security.NoSuchAlgorithmException;
  * @author Nicholas Killewald
  */
 public class MD5Tools {
+    /** The length of an MD5 digest, in bytes. */
+    public static final int DIGEST_LENGTH = 16;
+
+    // MessageDigest isn't thread-safe, but getting a new one every time we
+    // want a hash is a provider lookup and a fresh object, so each thread gets
+    // its own to reuse.  If MD5 isn't available, this holds null.
+    private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                // No, seriously, if this fails, we're all doomed.
+                return null;
+            }
+        }
+    };
 
     /**
      * Hashes a string through the MD5 algorithm. If something goes wrong with
@@ -29,18 +47,47 @@ public class MD5Tools {
      * @return the MD5 hash of the input
      */
     public static String MD5hash(String input) {
-        MessageDigest diggy;
+        MessageDigest diggy = DIGESTS.get();
 
-        try {
-            diggy = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            // No, seriously, if this fails, we're all doomed.
+        if(diggy == null)
             return "";
-        }
 
         diggy.update(CharToByte.charsToBytes(input.toCharArray()));
 
         return CharToByte.bytesToString(diggy.digest());
     }
 
+    /**
+     * Hashes a range of bytes through the MD5 algorithm and writes the raw
+     * digest into the given array, starting at the given offset.  There must
+     * be at least {@link #DIGEST_LENGTH} bytes of room there.  This reuses a
+     * per-thread MessageDigest, so it doesn't allocate anything on its own.
+     *
+     * @param input bytes to hash
+     * @param inputOffset where in input to start
+     * @param inputLength how many bytes of input to hash
+     * @param output array into which the digest will be written
+     * @param outputOffset where in output to start writing
+     * @return true on success, false if MD5 isn't available or output didn't
+     *         have enough room
+     */
+    public static boolean MD5hash(byte[] input, int inputOffset, int inputLength,
+                                  byte[] output, int outputOffset) {
+        MessageDigest diggy = DIGESTS.get();
+
+        if(diggy == null)
+            return false;
+
+        diggy.update(input, inputOffset, inputLength);
+
+        try {
+            diggy.digest(output, outputOffset, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            // This resets the digest on its own, so we can just report it.
+            return false;
+        }
+
+        return true;
+    }
+
 }
@@ -0,0 +1,119 @@
+/**
+ * DateToolsTest.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.tools;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link DateTools} says the same thing SimpleDateFormat does,
+ * for a whole lot of dates, and keeps on saying it with a bunch of threads
+ * going at it at once.
+ *
+ * @author Nicholas Killewald
+ */
+public class DateToolsTest {
+    private static final int THREADS = 8;
+    private static final int PER_THREAD = 200000;
+
+    // The stress test picks its timestamps from between these two.  That's
+    // mostly four-digit years, with some five-digit ones thrown in.
+    private static final long EARLIEST = new GregorianCalendar(900, Calendar.JANUARY, 1).getTimeInMillis();
+    private static final long LATEST = new GregorianCalendar(12000, Calendar.JANUARY, 1).getTimeInMillis();
+
+    @Test
+    public void matchesSimpleDateFormat() {
+        SimpleDateFormat plain = new SimpleDateFormat("yyyyMMdd", Locale.ENGLISH);
+        SimpleDateFormat hyphenated = new SimpleDateFormat("yyyy-MM-dd", Locale.ENGLISH);
+
+        // Every week from the year 900 on, through to a good way past 9999.
+        // That covers the Julian/Gregorian changeover, the zero padding, and
+        // the years that won't fit in four digits.
+        Calendar cal = new GregorianCalendar(900, Calendar.JANUARY, 1);
+        int count = 0;
+        while(cal.get(Calendar.YEAR) < 24000) {
+            assertEquals(plain.format(cal.getTime()), DateTools.getDateString(cal));
+            assertEquals(hyphenated.format(cal.getTime()), DateTools.getHyphenatedDateString(cal));
+
+            cal.add(Calendar.DAY_OF_MONTH, 7);
+            count++;
+        }
+
+        assertTrue(count > 1000000);
+    }
+
+    @Test
+    public void manyThreadsAtOnce() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> results = new ArrayList<>();
+
+        for(int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    // Each thread checks against its very own formatters, so
+                    // the only thing being shared is whatever DateTools
+                    // shares.
+                    SimpleDateFormat plain = new SimpleDateFormat("yyyyMMdd", Locale.ENGLISH);
+                    SimpleDateFormat hyphenated = new SimpleDateFormat("yyyy-MM-dd", Locale.ENGLISH);
+                    SimpleDateFormat wiki = new SimpleDateFormat("HH:mm, d MMMM yyyy (z)", Locale.ENGLISH);
+                    Calendar cal = Calendar.getInstance();
+                    Random random = new Random(seed);
+                    int mismatches = 0;
+
+                    // Everyone starts at once, to give it the best chance of
+                    // tripping over itself.
+                    start.await();
+
+                    for(int i = 0; i < PER_THREAD; i++) {
+                        long when = EARLIEST + (long)(random.nextDouble() * (LATEST - EARLIEST));
+                        cal.setTimeInMillis(when);
+
+                        if(!plain.format(cal.getTime()).equals(DateTools.getDateString(cal)))
+                            mismatches++;
+                        if(!hyphenated.format(cal.getTime()).equals(DateTools.getHyphenatedDateString(cal)))
+                            mismatches++;
+                        if(!wiki.format(cal.getTime()).equals(DateTools.getWikiDateString(cal)))
+                            mismatches++;
+                    }
+
+                    return mismatches;
+                }
+            }));
+        }
+
+        start.countDown();
+
+        int mismatches = 0;
+        for(Future<Integer> result : results)
+            mismatches += result.get();
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(0, mismatches);
+    }
+}
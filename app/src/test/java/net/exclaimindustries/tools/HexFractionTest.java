@@ -0,0 +1,185 @@
+/**
+ * HexFractionTest.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.tools;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link HexFraction} gives bit-for-bit the same doubles as the
+ * BigDecimal version it replaced, everywhere that matters: every short string,
+ * a pile of random ones, the rounding ties, and a million raw longs.
+ *
+ * @author Nicholas Killewald
+ */
+public class HexFractionTest {
+    private static final String HEXITS = "0123456789abcdefABCDEF";
+    private static final BigDecimal TWO_TO_64 = new BigDecimal(BigInteger.ONE.shiftLeft(64));
+    private static final BigInteger UNSIGNED_MASK = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+
+    // Fixed seed, so a failure can be run again.
+    private final Random mRandom = new Random(20160526L);
+
+    @Test
+    public void everyShortString() {
+        // Every string of one to three hexits, in both cases.
+        StringBuilder sb = new StringBuilder();
+        for(int len = 1; len <= 3; len++) {
+            int count = (int)Math.pow(HEXITS.length(), len);
+            for(int n = 0; n < count; n++) {
+                sb.setLength(0);
+                for(int i = 0, rest = n; i < len; i++, rest /= HEXITS.length())
+                    sb.append(HEXITS.charAt(rest % HEXITS.length()));
+                assertSame(sb.toString());
+            }
+        }
+    }
+
+    @Test
+    public void emptyString() {
+        assertSame("");
+    }
+
+    @Test
+    public void randomStrings() {
+        // Zero to twenty hexits, so this covers both the packed path and the
+        // BigDecimal path past sixteen.
+        StringBuilder sb = new StringBuilder();
+        for(int n = 0; n < 100000; n++) {
+            sb.setLength(0);
+            int len = mRandom.nextInt(21);
+            for(int i = 0; i < len; i++)
+                sb.append(HEXITS.charAt(mRandom.nextInt(HEXITS.length())));
+            assertSame(sb.toString());
+        }
+    }
+
+    @Test
+    public void roundingTies() {
+        // A double only holds 53 bits, so anything whose top bit is above bit
+        // 52 has to round.  For each place the top bit can be, try the value
+        // that's exactly halfway between two doubles (both with an even and an
+        // odd last bit, since ties go to even), and one either side of it.
+        for(int top = 0; top < 64; top++) {
+            long power = 1L << top;
+            assertSame(power);
+            assertSame(power - 1);
+            assertSame(power + 1);
+
+            if(top < 53) continue;
+
+            long half = 1L << (top - 53);
+            for(int n = 0; n < 200; n++) {
+                long mantissa = mRandom.nextLong() & ((1L << 52) - 1);
+                long base = power | (mantissa << (top - 52));
+
+                assertSame(base | half);
+                assertSame((base | half) - 1);
+                assertSame((base | half) + 1);
+                assertSame((base ^ (half << 1)) | half);
+            }
+        }
+
+        // And the very top, where it rounds up to 1.0.
+        assertSame(-1L);
+        assertSame(0xfffffffffffff800L);
+        assertSame(0xfffffffffffff7ffL);
+    }
+
+    @Test
+    public void randomLongs() {
+        for(int n = 0; n < 1000000; n++) {
+            long bits = mRandom.nextLong();
+            assertEquals(Long.toHexString(bits), exact(bits), HexFraction.calculate(bits), 0.0);
+        }
+
+        // The string path goes through the old BigDecimal code, which isn't
+        // fast, so fewer of those.
+        for(int n = 0; n < 50000; n++)
+            assertSame(mRandom.nextLong());
+    }
+
+    @Test
+    public void badHexits() {
+        String[] bad = {"g", "0g", "12 4", "-1", "+1", "0x1", ".5", "\u0661"};
+
+        for(String s : bad) {
+            // The old one used Integer.parseInt, which takes some odd
+            // characters (other scripts' digits, for one).  Whatever it did,
+            // the new one should do the same.
+            boolean oldThrew = false;
+            double oldValue = 0.0;
+            try {
+                oldValue = oldCalculate(s);
+            } catch(NumberFormatException nfe) {
+                oldThrew = true;
+            }
+
+            try {
+                double newValue = HexFraction.calculate(s);
+                if(oldThrew) fail("\"" + s + "\" should have thrown");
+                assertEquals(s, oldValue, newValue, 0.0);
+            } catch(NumberFormatException nfe) {
+                if(!oldThrew) fail("\"" + s + "\" shouldn't have thrown");
+            }
+        }
+    }
+
+    private static void assertSame(String s) {
+        double expected = oldCalculate(s);
+        double actual = HexFraction.calculate(s);
+
+        // Compare the bits, so 0.0 and -0.0 (or any NaN) can't sneak by.
+        assertEquals("\"" + s + "\"", Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(actual));
+    }
+
+    private static void assertSame(long bits) {
+        String s = toHexits(bits);
+        double expected = oldCalculate(s);
+
+        assertEquals(s, Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(HexFraction.calculate(s)));
+        assertEquals(s, Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(HexFraction.calculate(bits)));
+    }
+
+    private static String toHexits(long bits) {
+        // All sixteen, leading zeroes and all.
+        String hex = Long.toHexString(bits);
+        StringBuilder sb = new StringBuilder(16);
+        for(int i = hex.length(); i < 16; i++)
+            sb.append('0');
+        return sb.append(hex).toString();
+    }
+
+    private static double exact(long bits) {
+        BigInteger unsigned = BigInteger.valueOf(bits).and(UNSIGNED_MASK);
+        return new BigDecimal(unsigned).divide(TWO_TO_64).doubleValue();
+    }
+
+    // This is HexFraction.calculate as it was before the packed long version,
+    // as the reference to compare against.
+    private static double oldCalculate(String s) throws NumberFormatException {
+        BigDecimal curvalue = new BigDecimal(0);
+
+        for(int i = 0; i < s.length(); i++) {
+            String hexit = s.substring(i, i + 1);
+            int part = Integer.parseInt(hexit, 16);
+            BigDecimal d1 = new BigDecimal(part);
+            BigDecimal d2 = new BigDecimal(16);
+            d2 = d2.pow(i + 1);
+            curvalue = curvalue.add(d1.divide(d2));
+        }
+
+        return curvalue.doubleValue();
+    }
+}
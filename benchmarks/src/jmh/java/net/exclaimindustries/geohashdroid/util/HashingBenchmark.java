@@ -0,0 +1,119 @@
+/**
+ * HashingBenchmark.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import android.location.Location;
+
+import net.exclaimindustries.tools.CharToByte;
+import net.exclaimindustries.tools.HexFraction;
+import net.exclaimindustries.tools.MD5Tools;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * JMH benchmarks for the hot paths in making a hashpoint.  This lives in the
+ * util package so it can get at HashBuilder's protected methods.  Run it with
+ * the gc profiler (the Gradle config does that already) to get allocation per
+ * operation along with the throughput.
+ *
+ * @author Nicholas Killewald
+ */
+@State(Scope.Thread)
+public class HashingBenchmark {
+    // The example from the wiki's algorithm description.
+    private static final String STOCK = "10458.68";
+    private static final String HASH_LINE = "2005-05-26-10458.68";
+    private static final String HASH_HALF = "db9318c2259923d0";
+
+    private Calendar mDate;
+    private byte[] mDigest;
+    private double[] mFractions;
+    private Graticule mGraticule;
+    private Location mLocation;
+    private Info mInfo;
+    private Info[] mNearby;
+    private int mOffset;
+
+    @Setup
+    public void setup() {
+        mDate = new GregorianCalendar(2005, Calendar.MAY, 26);
+        mDigest = new byte[MD5Tools.DIGEST_LENGTH];
+        HashCalculator.makeDigest(2005, 5, 26, STOCK, mDigest, 0);
+        mFractions = new double[2];
+        mGraticule = new Graticule(37, false, 122, true);
+
+        mLocation = new Location("");
+        mLocation.setLatitude(37.4);
+        mLocation.setLongitude(-122.1);
+
+        mInfo = HashBuilder.createInfo(mDate, STOCK, mGraticule);
+        mNearby = new Info[8];
+        int n = 0;
+        for(int i = -1; i <= 1; i++) {
+            for(int j = -1; j <= 1; j++) {
+                if(i == 0 && j == 0) continue;
+                mNearby[n++] = HashBuilder.createInfo(mDate, STOCK, Graticule.createOffsetFrom(mGraticule, i, j));
+            }
+        }
+    }
+
+    @Benchmark
+    public String makeHash() {
+        return HashBuilder.makeHash(mDate, STOCK);
+    }
+
+    @Benchmark
+    public double[] makeFractions() {
+        HashCalculator.makeFractions(mDate, STOCK, mFractions, 0);
+        return mFractions;
+    }
+
+    @Benchmark
+    public Info createInfo() {
+        return HashBuilder.createInfo(mDate, STOCK, mGraticule);
+    }
+
+    @Benchmark
+    public String md5Hash() {
+        return MD5Tools.MD5hash(HASH_LINE);
+    }
+
+    @Benchmark
+    public String bytesToString() {
+        return CharToByte.bytesToString(mDigest);
+    }
+
+    @Benchmark
+    public double hexFractionString() {
+        return HexFraction.calculate(HASH_HALF);
+    }
+
+    @Benchmark
+    public double hexFractionLong() {
+        return HexFraction.calculate(HashCalculator.digestHalf(mDigest, 0));
+    }
+
+    @Benchmark
+    public Graticule createOffsetFrom() {
+        // Walk around a bit so this crosses the Prime Meridian and equator now
+        // and then, rather than taking the same branches every time.
+        mOffset = (mOffset + 1) & 0xFF;
+        return Graticule.createOffsetFrom(mGraticule, mOffset - 128, 128 - mOffset);
+    }
+
+    @Benchmark
+    public Info measureClosest() {
+        return Info.measureClosest(mLocation, mInfo, mNearby);
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * InfoCodecBenchmark.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * JMH benchmark for Info's compact encoding, on the biggest batch of nearby
+ * points there is: the 48 around a graticule at the widest nearby radius.
+ * That's about a kilobyte either way.
+ *
+ * @author Nicholas Killewald
+ */
+@State(Scope.Thread)
+public class InfoCodecBenchmark {
+    private static final String STOCK = "10458.68";
+
+    private Info[] mNearby;
+    private byte[] mEncoded;
+
+    @Setup
+    public void setup() {
+        Calendar date = new GregorianCalendar(2005, Calendar.MAY, 26);
+        Graticule center = new Graticule(37, false, 122, true);
+        int radius = BulkHashpoints.MAX_NEARBY_RADIUS;
+
+        mNearby = new Info[(radius * 2 + 1) * (radius * 2 + 1) - 1];
+        int n = 0;
+        for(int i = -radius; i <= radius; i++) {
+            for(int j = -radius; j <= radius; j++) {
+                if(i == 0 && j == 0) continue;
+                mNearby[n++] = HashBuilder.createInfo(date, STOCK, Graticule.createOffsetFrom(center, i, j));
+            }
+        }
+
+        mEncoded = Info.encodeArray(mNearby);
+    }
+
+    @Benchmark
+    public byte[] encodeNearby() {
+        return Info.encodeArray(mNearby);
+    }
+
+    @Benchmark
+    public Info[] decodeNearby() {
+        return Info.decodeArray(mEncoded);
+    }
+}
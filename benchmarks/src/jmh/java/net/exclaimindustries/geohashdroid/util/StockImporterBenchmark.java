@@ -0,0 +1,117 @@
+/**
+ * StockImporterBenchmark.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * JMH benchmark for importing a full stock history, every trading day from
+ * 1971 through 2016 (a bit over 11,000 stocks).  Each operation is one whole
+ * import, so the score is imports per millisecond; divide into the stock count
+ * for the per-line cost.  The store just takes the batch and counts it, so
+ * this is the reading and checking, not SQLite or the mapped file.
+ *
+ * @author Nicholas Killewald
+ */
+@State(Scope.Thread)
+public class StockImporterBenchmark {
+    private String mCsv;
+    private StockStore mStore;
+
+    @Setup
+    public void setup() {
+        // Made-up stocks, except for the anchor, which has to be right or the
+        // import fails.  The extra columns are there because real exports have
+        // them.
+        StringBuilder csv = new StringBuilder("Date,Open,High,Low,Close\n");
+        int last = StockDay.fromDate(2016, 12, 31);
+
+        for(int day = StockDay.fromDate(1971, 1, 1); day <= last; day++) {
+            if(!TradingCalendar.isTradingDay(day)) continue;
+
+            int key = StockDay.toDateKey(day);
+            int year = key / 10000;
+            int month = key / 100 % 100;
+            int date = key % 100;
+
+            csv.append(year).append(month < 10 ? "-0" : "-").append(month)
+                    .append(date < 10 ? "-0" : "-").append(date).append(',');
+
+            if(key == 20050526)
+                csv.append("10458.68");
+            else
+                csv.append(1000 + day % 9000).append('.').append(date < 10 ? "0" : "").append(date);
+
+            csv.append(",0.00,0.00,0.00\n");
+        }
+
+        mCsv = csv.toString();
+
+        mStore = new StockStore() {
+            @Override
+            public String getStock(int stockDay) {
+                return null;
+            }
+
+            @Override
+            public long storeStock(int stockDay, String stock) {
+                return -1;
+            }
+
+            @Override
+            public int storeStocks(int[] stockDays, String[] stocks, int count) {
+                return count;
+            }
+
+            @Override
+            public boolean getHashes(int day, boolean uses30W, double[] dest) {
+                return false;
+            }
+
+            @Override
+            public long storeInfo(Info i) {
+                return -1;
+            }
+
+            @Override
+            public List<MirrorHealth.Stats> getMirrorStats() {
+                return null;
+            }
+
+            @Override
+            public boolean storeMirrorStats(List<MirrorHealth.Stats> stats) {
+                return false;
+            }
+
+            @Override
+            public void cleanup() { }
+
+            @Override
+            public StockStoreDatabase.PruneResult prune() {
+                return null;
+            }
+
+            @Override
+            public boolean deleteCache() {
+                return false;
+            }
+        };
+    }
+
+    @Benchmark
+    public int importHistory() throws IOException {
+        return StockImporter.importStocks(new StringReader(mCsv), mStore).getStocksStored();
+    }
+}
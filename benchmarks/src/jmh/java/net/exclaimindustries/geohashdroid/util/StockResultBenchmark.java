@@ -0,0 +1,264 @@
+/**
+ * StockResultBenchmark.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * <p>
+ * JMH benchmark for getting a StockService result over to CentralMap, directly
+ * through {@link StockResult} versus the old way, as a broadcast.  The result
+ * is a typical one: an Info and the eight nearby points around it.
+ * </p>
+ *
+ * <p>
+ * Bundle and Parcel are all native code, so they won't run on a plain JVM.
+ * The broadcast side is a stand-in: it writes everything the Bundle would
+ * have (keys and all, the Calendar through Java serialization just like
+ * putSerializable does, the Info and Graticule in their parcel layouts, and
+ * the nearby points as one {@link Info#encodeArray(Info[])} blob) and reads
+ * it all back into new objects on the other side.  The real thing also goes
+ * through the system and back, so that's the very least it costs.
+ * </p>
+ *
+ * <p>
+ * The inline ones are just the cost of the handoff itself.  The round trip
+ * ones hand it off to another thread, standing in for the main thread, and
+ * wait for it to be received there.  Run with the gc profiler for the
+ * allocation (the Gradle config does that already).
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StockResultBenchmark {
+    private static final String STOCK = "10458.68";
+
+    private Calendar mDate;
+    private Graticule mGraticule;
+    private Info mInfo;
+    private Info[] mNearby;
+
+    private ExecutorService mMainThread;
+    private SynchronousQueue<Object> mReceived;
+    private StockResult.Listener mListener;
+
+    // The inline version of the listener just keeps whatever it got.
+    private Object mLast;
+
+    @Setup
+    public void setup() {
+        mDate = new GregorianCalendar(2005, Calendar.MAY, 26);
+        mGraticule = new Graticule(37, false, 122, true);
+        mInfo = HashBuilder.createInfo(mDate, STOCK, mGraticule);
+
+        mNearby = new Info[8];
+        int n = 0;
+        for(int i = -1; i <= 1; i++) {
+            for(int j = -1; j <= 1; j++) {
+                if(i == 0 && j == 0) continue;
+                mNearby[n++] = HashBuilder.createInfo(mDate, STOCK, Graticule.createOffsetFrom(mGraticule, i, j));
+            }
+        }
+
+        mMainThread = Executors.newSingleThreadExecutor();
+        mReceived = new SynchronousQueue<>();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if(mListener != null) StockResult.removeListener(mListener);
+        mMainThread.shutdownNow();
+    }
+
+    @Benchmark
+    public Object directInline() {
+        if(mListener == null) {
+            mListener = new StockResult.Listener() {
+                @Override
+                public void onStockResult(StockResult result) {
+                    mLast = result.getInfo();
+                }
+            };
+            StockResult.addListener(mListener, new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    command.run();
+                }
+            });
+        }
+
+        StockResult.deliver(makeResult());
+        return mLast;
+    }
+
+    @Benchmark
+    public Object broadcastInline() throws IOException, ClassNotFoundException {
+        return unmarshal(marshal(makeResult())).getInfo();
+    }
+
+    @Benchmark
+    public Object directRoundTrip() throws InterruptedException {
+        if(mListener == null) {
+            mListener = new StockResult.Listener() {
+                @Override
+                public void onStockResult(StockResult result) {
+                    try {
+                        mReceived.put(result.getInfo());
+                    } catch(InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            StockResult.addListener(mListener, mMainThread);
+        }
+
+        StockResult.deliver(makeResult());
+        return mReceived.take();
+    }
+
+    @Benchmark
+    public Object broadcastRoundTrip() throws IOException, InterruptedException {
+        final byte[] bytes = marshal(makeResult());
+
+        mMainThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mReceived.put(unmarshal(bytes).getInfo());
+                } catch(Exception e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        return mReceived.take();
+    }
+
+    private StockResult makeResult() {
+        return new StockResult(0, 1L, 0x12, 0, mDate, mGraticule, mInfo, mNearby);
+    }
+
+    private static byte[] marshal(StockResult result) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeUTF("net.exclaimindustries.geohashdroid.EXTRA_RESPONSE_CODE");
+        out.writeInt(result.getResponseCode());
+        out.writeUTF("net.exclaimindustries.geohashdroid.EXTRA_REQUEST_ID");
+        out.writeLong(result.getRequestId());
+        out.writeUTF("net.exclaimindustries.geohashdroid.EXTRA_REQUEST_FLAGS");
+        out.writeInt(result.getRequestFlags());
+        out.writeUTF("net.exclaimindustries.geohashdroid.EXTRA_RESPONSE_FLAGS");
+        out.writeInt(result.getResponseFlags());
+
+        out.writeUTF("net.exclaimindustries.geohashdroid.EXTRA_DATE");
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(serialized);
+        oos.writeObject(result.getCalendar());
+        oos.close();
+        out.writeInt(serialized.size());
+        serialized.writeTo(out);
+
+        out.writeUTF("net.exclaimindustries.geohashdroid.EXTRA_GRATICULE");
+        writeGraticule(out, result.getGraticule());
+        out.writeUTF("net.exclaimindustries.geohashdroid.EXTRA_INFO");
+        writeInfo(out, result.getInfo());
+
+        byte[] nearby = Info.encodeArray(result.getNearbyPoints());
+        out.writeUTF("net.exclaimindustries.geohashdroid.EXTRA_NEARBY_POINTS");
+        out.writeInt(nearby.length);
+        out.write(nearby);
+
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static StockResult unmarshal(byte[] bytes) throws IOException, ClassNotFoundException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+        in.readUTF();
+        int responseCode = in.readInt();
+        in.readUTF();
+        long requestId = in.readLong();
+        in.readUTF();
+        int requestFlags = in.readInt();
+        in.readUTF();
+        int responseFlags = in.readInt();
+
+        in.readUTF();
+        byte[] serialized = new byte[in.readInt()];
+        in.readFully(serialized);
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serialized));
+        Calendar cal = (Calendar)ois.readObject();
+
+        in.readUTF();
+        Graticule g = readGraticule(in);
+        in.readUTF();
+        Info info = readInfo(in);
+
+        in.readUTF();
+        byte[] encoded = new byte[in.readInt()];
+        in.readFully(encoded);
+        Info[] nearby = Info.decodeArray(encoded);
+
+        return new StockResult(responseCode, requestId, requestFlags, responseFlags, cal, g, info, nearby);
+    }
+
+    private static void writeGraticule(DataOutputStream out, Graticule g) throws IOException {
+        // Parcel.writeParcelable puts the class name first.
+        out.writeUTF(Graticule.class.getName());
+        out.writeInt(g.pack());
+    }
+
+    private static Graticule readGraticule(DataInputStream in) throws IOException {
+        in.readUTF();
+        return Graticule.unpack(in.readInt());
+    }
+
+    private static void writeInfo(DataOutputStream out, Info i) throws IOException {
+        out.writeUTF(Info.class.getName());
+
+        byte[] encoded = new byte[Info.ENCODED_SIZE];
+        i.writeTo(ByteBuffer.wrap(encoded));
+        out.write(encoded);
+    }
+
+    private static Info readInfo(DataInputStream in) throws IOException {
+        in.readUTF();
+
+        byte[] encoded = new byte[Info.ENCODED_SIZE];
+        in.readFully(encoded);
+        return Info.readFrom(ByteBuffer.wrap(encoded));
+    }
+}
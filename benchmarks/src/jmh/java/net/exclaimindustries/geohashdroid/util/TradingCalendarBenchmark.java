@@ -0,0 +1,72 @@
+/**
+ * TradingCalendarBenchmark.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.util.Calendar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * JMH benchmarks for working out stock dates, run across a whole century of
+ * days (1971 through 2070) per invocation.  The scores are per day, thanks to
+ * OperationsPerInvocation.  The rules version is what the table replaced, more
+ * or less (it's what builds the table), so comparing the two shows what the
+ * table buys.
+ *
+ * @author Nicholas Killewald
+ */
+@State(Scope.Thread)
+public class TradingCalendarBenchmark {
+    // A hundred years, 25 of them leap years.  This has to be a constant for
+    // the annotations' sake.
+    private static final int DAYS = 36525;
+    private static final int FIRST_DAY = StockDay.fromDate(1971, 1, 1);
+    private static final int LAST_DAY = FIRST_DAY + DAYS - 1;
+
+    @Benchmark
+    @OperationsPerInvocation(DAYS)
+    public int adjustCentury() {
+        // This is the resolver everything goes through: 30W Rule, then back
+        // to the last trading day.  Summing the results keeps JMH from
+        // deciding none of it matters.
+        int sum = 0;
+        for(int day = FIRST_DAY; day <= LAST_DAY; day++)
+            sum += StockDay.adjust(day, (day & 1) == 0);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DAYS)
+    public int previousTradingDayCentury() {
+        int sum = 0;
+        for(int day = FIRST_DAY; day <= LAST_DAY; day++)
+            sum += TradingCalendar.previousTradingDay(day);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DAYS)
+    public int previousTradingDayByRulesCentury() {
+        int sum = 0;
+        for(int day = FIRST_DAY; day <= LAST_DAY; day++) {
+            int d = day;
+            while(!isTradingDayByRules(d)) d--;
+            sum += d;
+        }
+        return sum;
+    }
+
+    private static boolean isTradingDayByRules(int day) {
+        int dow = StockDay.dayOfWeek(day);
+        return dow != Calendar.SATURDAY && dow != Calendar.SUNDAY
+                && !TradingCalendar.isHolidayByRules(day);
+    }
+}
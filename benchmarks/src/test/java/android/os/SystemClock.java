@@ -0,0 +1,31 @@
+/**
+ * SystemClock.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package android.os;
+
+/**
+ * Stands in for Android's SystemClock in the tests, for the same reason as
+ * the Log stand-in: the real one's native.  Only the clocks are here, and
+ * they're all just the JVM's monotonic clock.
+ *
+ * @author Nicholas Killewald
+ */
+public final class SystemClock {
+    private SystemClock() { }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    public static long elapsedRealtimeNanos() {
+        return System.nanoTime();
+    }
+
+    public static long uptimeMillis() {
+        return elapsedRealtime();
+    }
+}
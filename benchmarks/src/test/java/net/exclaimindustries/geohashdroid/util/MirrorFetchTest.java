@@ -0,0 +1,374 @@
+/**
+ * MirrorFetchTest.java
+ * Copyright (C)2016 Nicholas Killewald
+ *
+ * This file is distributed under the terms of the BSD license.
+ * The source package should have a LICENSE file at the toplevel.
+ */
+package net.exclaimindustries.geohashdroid.util;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * <p>
+ * Runs {@link MirrorFetch} against a few local mock mirrors, each of which
+ * can be made slow, dead, wrong, stalled, or just plain broken.
+ * </p>
+ *
+ * <p>
+ * The mirrors keep track of when they got asked for something, so these check
+ * what happened in what order (who got asked, who answered, who got hung up
+ * on) rather than how long it all took.  The only clock checks are ones that
+ * can't come out wrong on a slow machine, like the hedge not going out before
+ * the hedge delay is up.
+ * </p>
+ *
+ * @author Nicholas Killewald
+ */
+public class MirrorFetchTest {
+    private static final String SLOW_STOCK = "10458.68";
+    private static final String FAST_STOCK = "10500.00";
+
+    // The hedge delay, when it's hedging at all, and how long the slow (but
+    // not stalled) mirror takes to answer.
+    private static final long HEDGE = 200;
+    private static final long SLOW = 1000;
+
+    // How long to wait on something that ought to happen before giving up on
+    // it.  This is way more than anything needs; it's just so a broken test
+    // fails instead of hanging.
+    private static final long WAIT = 10000;
+
+    /**
+     * One mock mirror, and what's happened to it so far.
+     */
+    private static class Mirror {
+        final String url;
+
+        private final AtomicInteger mRequests = new AtomicInteger();
+        private final CountDownLatch mArrived = new CountDownLatch(1);
+        private final CountDownLatch mHungUp = new CountDownLatch(1);
+        private volatile long mFirstArrival;
+
+        Mirror(String url) {
+            this.url = url;
+        }
+
+        void arrived() {
+            if(mRequests.getAndIncrement() == 0)
+                mFirstArrival = System.nanoTime();
+            mArrived.countDown();
+        }
+
+        void hungUp() {
+            mHungUp.countDown();
+        }
+
+        int requests() {
+            return mRequests.get();
+        }
+
+        long firstArrival() {
+            return mFirstArrival;
+        }
+
+        boolean awaitRequest() throws InterruptedException {
+            return mArrived.await(WAIT, TimeUnit.MILLISECONDS);
+        }
+
+        boolean awaitHangUp() throws InterruptedException {
+            return mHungUp.await(WAIT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final List<HttpServer> mServers = new ArrayList<>();
+    private final List<Closeable> mSockets = Collections.synchronizedList(new ArrayList<Closeable>());
+    private final ExecutorService mHandlers = Executors.newCachedThreadPool();
+
+    @BeforeClass
+    public static void warmUp() throws IOException {
+        // The very first request in the JVM has to load the whole HTTP client,
+        // which can take longer than the hedge delay.  Get that out of the way
+        // so it can't change which mirror gets asked first.
+        MirrorFetchTest test = new MirrorFetchTest();
+        try {
+            fetch(-1, test.mirror(200, FAST_STOCK, 0).url);
+        } finally {
+            test.tearDown();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for(HttpServer server : mServers)
+            server.stop(0);
+
+        synchronized(mSockets) {
+            for(Closeable socket : mSockets) {
+                try {
+                    socket.close();
+                } catch(IOException ioe) {
+                    // Closing it anyway.
+                }
+            }
+        }
+
+        mHandlers.shutdownNow();
+    }
+
+    @Test
+    public void slowThenFastHedged() throws Exception {
+        Mirror stalled = stalledMirror();
+        Mirror fast = mirror(200, FAST_STOCK, 0);
+
+        long start = System.nanoTime();
+        assertEquals(FAST_STOCK, fetch(HEDGE, stalled.url, fast.url));
+
+        // The stalled one got asked first, and the fast one only got asked
+        // once the hedge delay was up.
+        assertTrue(stalled.awaitRequest());
+        assertEquals(1, stalled.requests());
+        assertEquals(1, fast.requests());
+        assertTrue(stalled.firstArrival() <= fast.firstArrival());
+
+        long hedgedAfter = TimeUnit.NANOSECONDS.toMillis(fast.firstArrival() - start);
+        assertTrue("Hedged after only " + hedgedAfter + "ms", hedgedAfter >= HEDGE);
+
+        // Once the fast one won, the stalled one got hung up on.
+        assertTrue(stalled.awaitHangUp());
+    }
+
+    @Test
+    public void slowThenFastUnhedged() throws Exception {
+        Mirror slow = mirror(200, SLOW_STOCK, SLOW);
+        Mirror fast = mirror(200, FAST_STOCK, 0);
+
+        // No hedging means waiting out the slow one, which does come through
+        // eventually.  The fast one never hears a thing.
+        assertEquals(SLOW_STOCK, fetch(-1, slow.url, fast.url));
+        assertEquals(1, slow.requests());
+        assertEquals(0, fast.requests());
+    }
+
+    @Test(timeout = WAIT)
+    public void deadFirstMirror() throws Exception {
+        String dead = deadMirror();
+        Mirror fast = mirror(200, FAST_STOCK, 0);
+
+        // The hedge delay here's way past the timeout, so the only way this
+        // finishes at all is if a refused connection moves right on to the
+        // next mirror.
+        assertEquals(FAST_STOCK, fetch(WAIT * 6, dead, fast.url));
+        assertEquals(1, fast.requests());
+    }
+
+    @Test
+    public void notFoundBeatsServerError() throws Exception {
+        Mirror notFound = mirror(404, "Not Found", 0);
+        Mirror serverError = mirror(500, "Internal Server Error", 0);
+
+        // In either order, "not posted" is the answer, and both got asked
+        // both times.
+        assertNotPosted(notFound.url, serverError.url);
+        assertNotPosted(serverError.url, notFound.url);
+        assertEquals(2, notFound.requests());
+        assertEquals(2, serverError.requests());
+    }
+
+    @Test
+    public void garbageBody() throws Exception {
+        Mirror garbage = mirror(200, "<html><body>Hello!</body></html>", 0);
+        String dead = deadMirror();
+
+        try {
+            fetch(HEDGE, garbage.url, dead);
+            fail("Garbage shouldn't have come back as a stock");
+        } catch(FileNotFoundException fnfe) {
+            fail("Garbage isn't the same as not posted");
+        } catch(IOException ioe) {
+            // Good, that's a server error.
+        }
+
+        assertEquals(1, garbage.requests());
+    }
+
+    @Test
+    public void abortMidFlight() throws Exception {
+        Mirror stalled = stalledMirror();
+        final MirrorFetch fetch = newFetch(HEDGE, stalled.url);
+
+        ExecutorService runner = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> result = runner.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return fetch.run();
+                }
+            });
+
+            // Wait until the request's actually out there, THEN abort.
+            assertTrue(stalled.awaitRequest());
+            fetch.abort();
+
+            // run() came back blank, and the request itself got hung up on,
+            // not just forgotten about.
+            assertEquals("", result.get(WAIT, TimeUnit.MILLISECONDS));
+            assertTrue(stalled.awaitHangUp());
+            assertEquals(1, stalled.requests());
+        } finally {
+            runner.shutdownNow();
+        }
+    }
+
+    private void assertNotPosted(String first, String second) throws IOException {
+        try {
+            fetch(HEDGE, first, second);
+            fail("There wasn't a stock to get");
+        } catch(FileNotFoundException fnfe) {
+            // Good, that's "not posted".
+        }
+    }
+
+    private static MirrorFetch newFetch(long hedgeDelay, String... mirrors) {
+        // The mock mirrors don't need any date filled in, so they're their own
+        // locations.
+        return new MirrorFetch(mirrors, mirrors, hedgeDelay, null);
+    }
+
+    private static String fetch(long hedgeDelay, String... mirrors) throws IOException {
+        return newFetch(hedgeDelay, mirrors).run();
+    }
+
+    private Mirror mirror(final int code, final String body, final long delay) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        final Mirror mirror = new Mirror("http://127.0.0.1:" + server.getAddress().getPort() + "/stock");
+
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mirror.arrived();
+
+                try {
+                    if(delay > 0) Thread.sleep(delay);
+
+                    byte[] bytes = body.getBytes("US-ASCII");
+                    exchange.sendResponseHeaders(code, bytes.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(bytes);
+                    out.close();
+                } catch(InterruptedException ie) {
+                    // The test's over.
+                } catch(IOException ioe) {
+                    // The client hung up on us, which is fine.
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+
+        // Slow mirrors shouldn't hold up everything else on the same server.
+        server.setExecutor(mHandlers);
+        server.start();
+        mServers.add(server);
+
+        return mirror;
+    }
+
+    private Mirror stalledMirror() throws IOException {
+        // This one takes the request and then never answers.  It's a plain
+        // socket, not an HttpServer, so it can tell when the other end hangs
+        // up.
+        final ServerSocket server = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        final Mirror mirror = new Mirror("http://127.0.0.1:" + server.getLocalPort() + "/stock");
+        mSockets.add(server);
+
+        mHandlers.execute(new Runnable() {
+            @Override
+            public void run() {
+                while(true) {
+                    final Socket socket;
+                    try {
+                        socket = server.accept();
+                    } catch(IOException ioe) {
+                        // tearDown closed it.
+                        return;
+                    }
+
+                    mSockets.add(socket);
+                    mHandlers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            stall(socket, mirror);
+                        }
+                    });
+                }
+            }
+        });
+
+        return mirror;
+    }
+
+    private static void stall(Socket socket, Mirror mirror) {
+        try {
+            InputStream in = socket.getInputStream();
+
+            // Anything at all coming in means a request's here.  After that,
+            // just keep reading (and ignoring) until the client goes away.
+            if(in.read() == -1) return;
+            mirror.arrived();
+
+            byte[] buffer = new byte[1024];
+            while(in.read(buffer) != -1) {
+                // Still there...
+            }
+        } catch(IOException ioe) {
+            // A reset connection's a hang-up, too.
+        } finally {
+            mirror.hungUp();
+            try {
+                socket.close();
+            } catch(IOException ioe) {
+                // Closing it anyway.
+            }
+        }
+    }
+
+    private static String deadMirror() throws IOException {
+        // Grab a port, then let go of it, so there's nothing listening there.
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+
+        return "http://127.0.0.1:" + port + "/stock";
+    }
+}